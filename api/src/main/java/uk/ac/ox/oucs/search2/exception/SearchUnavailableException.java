@@ -0,0 +1,24 @@
+package uk.ac.ox.oucs.search2.exception;
+
+/**
+ * Exception thrown if the search backend is unavailable and the search can't be executed.
+ *
+ * @author Colin Hebert
+ */
+public class SearchUnavailableException extends RuntimeException {
+
+    public SearchUnavailableException() {
+    }
+
+    public SearchUnavailableException(String message) {
+        super(message);
+    }
+
+    public SearchUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public SearchUnavailableException(Throwable cause) {
+        super(cause);
+    }
+}
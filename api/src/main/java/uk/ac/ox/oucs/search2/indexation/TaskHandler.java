@@ -1,5 +1,7 @@
 package uk.ac.ox.oucs.search2.indexation;
 
+import java.util.Collection;
+
 /**
  * A TaskHandler is in charge of executing a Task.
  * <p>
@@ -20,4 +22,18 @@ public interface TaskHandler {
      *          if the {@link Task} can't be handled.
      */
     void executeTask(Task task);
+
+    /**
+     * Executes multiple Tasks at once.
+     * <p>
+     * The failure of one task doesn't prevent the other tasks from being executed. Every failure is reported in a
+     * {@link uk.ac.ox.oucs.search2.indexation.exception.MultipleTasksException}, temporary failures containing the
+     * task to execute again.
+     * </p>
+     *
+     * @param tasks tasks to execute.
+     * @throws uk.ac.ox.oucs.search2.indexation.exception.TaskException
+     *          if the execution of at least one task wasn't successful.
+     */
+    void executeTasks(Collection<Task> tasks);
 }
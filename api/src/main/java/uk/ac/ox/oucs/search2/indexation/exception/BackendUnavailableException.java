@@ -0,0 +1,31 @@
+package uk.ac.ox.oucs.search2.indexation.exception;
+
+import uk.ac.ox.oucs.search2.indexation.Task;
+
+/**
+ * Thrown when the {@link Task} couldn't be executed because the search backend itself is unavailable.
+ * <p>
+ * Unlike other {@link TemporaryTaskException}s, which usually affect a single Task (a document that couldn't be
+ * fetched for example), this exception means that every other Task is likely to fail as well until the backend is
+ * available again.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class BackendUnavailableException extends TemporaryTaskException {
+    public BackendUnavailableException(Task newTask) {
+        super(newTask);
+    }
+
+    public BackendUnavailableException(String message, Task newTask) {
+        super(message, newTask);
+    }
+
+    public BackendUnavailableException(String message, Throwable cause, Task newTask) {
+        super(message, cause, newTask);
+    }
+
+    public BackendUnavailableException(Throwable cause, Task newTask) {
+        super(cause, newTask);
+    }
+}
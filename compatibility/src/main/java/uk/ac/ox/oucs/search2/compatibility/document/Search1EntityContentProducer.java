@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ox.oucs.search2.compatibility.event.Search2EventManager;
 import uk.ac.ox.oucs.search2.document.*;
+import uk.ac.ox.oucs.search2.tika.cache.ExtractionCache;
 import uk.ac.ox.oucs.search2.tika.document.TikaDocument;
 
 import java.io.BufferedReader;
@@ -22,10 +23,20 @@ public class Search1EntityContentProducer implements EntityContentProducer {
     private static final Logger logger = LoggerFactory.getLogger(Search1EntityContentProducer.class);
     private final DocumentProducer documentProducer;
     private final Search2EventManager search2EventManager;
+    /**
+     * Cache of the content extracted from binary documents, may be null.
+     */
+    private final ExtractionCache extractionCache;
 
     public Search1EntityContentProducer(DocumentProducer documentProducer, Search2EventManager search2EventManager) {
+        this(documentProducer, search2EventManager, null);
+    }
+
+    public Search1EntityContentProducer(DocumentProducer documentProducer, Search2EventManager search2EventManager,
+                                        ExtractionCache extractionCache) {
         this.documentProducer = documentProducer;
         this.search2EventManager = search2EventManager;
+        this.extractionCache = extractionCache;
     }
 
     @Override
@@ -45,6 +56,9 @@ public class Search1EntityContentProducer implements EntityContentProducer {
     @Override
     public String getContent(String reference) {
         Document document = documentProducer.getDocument(reference);
+        if (document instanceof StreamDocument && extractionCache != null)
+            document = extractionCache.getExtractedDocument((StreamDocument) document);
+
         if (document instanceof StringDocument) {
             return ((StringDocument) document).getContent();
         } else if (document instanceof ReaderDocument) {
@@ -58,6 +72,12 @@ public class Search1EntityContentProducer implements EntityContentProducer {
                 } while (currentString != null);
             } catch (IOException e) {
                 logger.warn("Couldn't parse the content of '" + reference + "'", e);
+            } finally {
+                try {
+                    bufferedReader.close();
+                } catch (IOException e) {
+                    logger.warn("Couldn't close the content of '" + reference + "'", e);
+                }
             }
 
             return sb.toString();
@@ -4,6 +4,7 @@ import org.sakaiproject.search.api.SearchIndexBuilder;
 import uk.ac.ox.oucs.search2.compatibility.event.Search2EventManager;
 import uk.ac.ox.oucs.search2.document.DefaultDocumentProducerRegistry;
 import uk.ac.ox.oucs.search2.document.DocumentProducer;
+import uk.ac.ox.oucs.search2.tika.cache.ExtractionCache;
 
 /**
  * @author Colin Hebert
@@ -11,12 +12,13 @@ import uk.ac.ox.oucs.search2.document.DocumentProducer;
 public class Search2DocumentProducerRegistry extends DefaultDocumentProducerRegistry {
     private SearchIndexBuilder searchIndexBuilder;
     private Search2EventManager search2EventManager;
+    private ExtractionCache extractionCache;
 
     @Override
     public void registerDocumentProducer(DocumentProducer documentProducer) {
         super.registerDocumentProducer(documentProducer);
         searchIndexBuilder.registerEntityContentProducer(
-                new Search1EntityContentProducer(documentProducer, search2EventManager));
+                new Search1EntityContentProducer(documentProducer, search2EventManager, extractionCache));
     }
 
     public void setSearchIndexBuilder(SearchIndexBuilder searchIndexBuilder) {
@@ -26,4 +28,8 @@ public class Search2DocumentProducerRegistry extends DefaultDocumentProducerRegi
     public void setSearch2EventManager(Search2EventManager search2EventManager) {
         this.search2EventManager = search2EventManager;
     }
+
+    public void setExtractionCache(ExtractionCache extractionCache) {
+        this.extractionCache = extractionCache;
+    }
 }
@@ -7,30 +7,72 @@ import uk.ac.ox.oucs.search2.event.EventHandler;
 import uk.ac.ox.oucs.search2.indexation.DefaultTask;
 import uk.ac.ox.oucs.search2.indexation.Task;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Captures event for Search1 registered EntityContentProducers and tries to associate it with
  * the right content producer.
+ * <p>
+ * Finding the producer of an event means calling {@link EntityContentProducer#matches(Event)}, which can be slow.
+ * The last producer matched for an event type and a reference prefix (such as {@code /content}) is kept, and is
+ * tried first for the following events of the same kind.<br />
+ * The registration order of the producers is therefore only used when the kept producer doesn't match: if two
+ * producers match the same event, the one matched last for this kind of event wins, not the first one registered.
+ * Search1 producers are expected to match distinct events, each tool handling its own entities.
+ * </p>
+ * <p>
+ * Events of a type no producer has ever matched are remembered per event type and reference prefix in a bounded
+ * cache, so the following events of the same kind don't trigger a scan of every producer.<br />
+ * Once a producer has matched an event type, misses of that type aren't cached anymore:
+ * {@link EntityContentProducer#matches(Event)} can depend on the state of the entity, and a cached miss would drop
+ * the later events of a matching entity. For the same reason, cached misses expire after
+ * {@link #unmatchedEventsTimeToLive}, which is kept short: an entity changing state within that time is missed, in
+ * exchange for scanning the producers at most once per kind of unmatched event and period.<br />
+ * The cache is cleared when a new producer is registered.
+ * </p>
+ * <p>
+ * Events are received by multiple threads while producers are registered, so the producers are kept in
+ * copy-on-write lists.
+ * </p>
  *
  * @author Colin Hebert
  */
 public class Search2EventHandler implements EventHandler {
-    private Map<String, Collection<EntityContentProducer>> eventTypes =
-            new HashMap<String, Collection<EntityContentProducer>>();
-    private Collection<EntityContentProducer> entityContentProducers = new LinkedList<EntityContentProducer>();
+    private final ConcurrentMap<String, CopyOnWriteArrayList<EntityContentProducer>> eventTypes =
+            new ConcurrentHashMap<String, CopyOnWriteArrayList<EntityContentProducer>>();
+    private final Collection<EntityContentProducer> entityContentProducers =
+            new CopyOnWriteArrayList<EntityContentProducer>();
+    /**
+     * Last producer matched, mapped by event type and reference prefix.
+     */
+    private final ConcurrentMap<String, EntityContentProducer> routes =
+            new ConcurrentHashMap<String, EntityContentProducer>();
+    /**
+     * Kinds of events (type and reference prefix) which didn't match any producer, with the time (in ms) at which
+     * they expire.
+     */
+    private Map<String, Long> unmatchedEvents = createUnmatchedEventsCache(10000);
+    /**
+     * Time (in ms) during which an unmatched kind of event isn't checked again.
+     */
+    private long unmatchedEventsTimeToLive = 30 * 1000;
+    /**
+     * Incremented each time a producer is registered, so a scan started before the registration isn't cached.
+     */
+    private final AtomicInteger producersVersion = new AtomicInteger();
     private Search2EventManager eventManager;
 
     public void init() {
         eventManager.addEventHandler(this);
     }
 
-    public void addEventType(String eventType) {
+    public synchronized void addEventType(String eventType) {
         if (!eventTypes.containsKey(eventType)) {
-            eventTypes.put(eventType, new LinkedList<EntityContentProducer>());
+            eventTypes.put(eventType, new CopyOnWriteArrayList<EntityContentProducer>());
             // Update the event handler with the new events to watch
             eventManager.addEventHandlerForEvent(this, eventType);
         }
@@ -38,6 +80,9 @@ public class Search2EventHandler implements EventHandler {
 
     public void addEntityContentProducer(EntityContentProducer entityContentProducer) {
         entityContentProducers.add(entityContentProducer);
+        producersVersion.incrementAndGet();
+        // The new producer may match events which weren't matched before
+        unmatchedEvents.clear();
     }
 
     @Override
@@ -59,7 +104,7 @@ public class Search2EventHandler implements EventHandler {
                 taskType = DefaultTask.Type.INDEX_DOCUMENT;
                 break;
             case 2: // SearchBuilderItem.ACTION_DELETE
-                taskType = DefaultTask.Type.INDEX_DOCUMENT;
+                taskType = DefaultTask.Type.UNINDEX_DOCUMENT;
                 break;
             default:
                 taskType = DefaultTask.Type.IGNORE;
@@ -77,31 +122,94 @@ public class Search2EventHandler implements EventHandler {
     /**
      * Method that searches through contentProducers to find one matching the event.
      * <p>
-     * This methods gets faster over time as it caches successful results in {@link #eventTypes}.
+     * The producer previously matched for the same event type and reference prefix is tried first, then the
+     * producers already matched for the event type (cached in {@link #eventTypes}), then every other producer.
      * </p>
      *
      * @param event event for which an {@link EntityContentProducer} is required.
      * @return a matching {@code EntityContentProducer} or null if nothing was found.
      */
     private EntityContentProducer getEntityContentProducerForEvent(Event event) {
-        Collection<EntityContentProducer> contentProducers = eventTypes.get(event.getEvent());
+        CopyOnWriteArrayList<EntityContentProducer> contentProducers = eventTypes.get(event.getEvent());
+        if (contentProducers == null)
+            return null;
+
+        String routeKey = event.getEvent() + ' ' + getReferencePrefix(event.getResource());
+        Long unmatchedEventExpiry = unmatchedEvents.get(routeKey);
+        if (unmatchedEventExpiry != null) {
+            if (unmatchedEventExpiry > System.currentTimeMillis())
+                return null;
+            unmatchedEvents.remove(routeKey);
+        }
+        int version = producersVersion.get();
+
+        EntityContentProducer routedProducer = routes.get(routeKey);
+        if (routedProducer != null && routedProducer.matches(event))
+            return routedProducer;
+
         // Look through already matched content producers
         for (EntityContentProducer contentProducer : contentProducers) {
-            if (contentProducer.matches(event))
+            if (contentProducer != routedProducer && contentProducer.matches(event)) {
+                routes.put(routeKey, contentProducer);
                 return contentProducer;
+            }
         }
 
         // Look through not yet matched content producers (slower but we shouldn't hit this part often).
         for (EntityContentProducer contentProducer : entityContentProducers) {
-            if (contentProducer.matches(event)) {
-                contentProducers.add(contentProducer);
+            if (!contentProducers.contains(contentProducer) && contentProducer.matches(event)) {
+                contentProducers.addIfAbsent(contentProducer);
+                routes.put(routeKey, contentProducer);
                 return contentProducer;
             }
         }
 
+        // A producer matching this event type may match this event once the entity changed
+        if (contentProducers.isEmpty() && version == producersVersion.get())
+            unmatchedEvents.put(routeKey, System.currentTimeMillis() + unmatchedEventsTimeToLive);
         return null;
     }
 
+    /**
+     * Gets the first element of a reference, identifying the kind of entity.
+     *
+     * @param reference reference of an entity, such as {@code /content/group/siteId/file}.
+     * @return the prefix of the reference, such as {@code /content}.
+     */
+    private static String getReferencePrefix(String reference) {
+        if (reference == null)
+            return "";
+        int prefixEnd = reference.indexOf('/', 1);
+        return (prefixEnd < 0) ? reference : reference.substring(0, prefixEnd);
+    }
+
+    private static Map<String, Long> createUnmatchedEventsCache(final int maximumSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maximumSize;
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum number of unmatched kinds of events remembered.
+     *
+     * @param unmatchedEventsCacheSize size of the cache of unmatched events.
+     */
+    public void setUnmatchedEventsCacheSize(int unmatchedEventsCacheSize) {
+        this.unmatchedEvents = createUnmatchedEventsCache(unmatchedEventsCacheSize);
+    }
+
+    /**
+     * Sets the time during which an unmatched kind of event isn't checked again.
+     *
+     * @param unmatchedEventsTimeToLive time to live (in ms) of an unmatched kind of event.
+     */
+    public void setUnmatchedEventsTimeToLive(long unmatchedEventsTimeToLive) {
+        this.unmatchedEventsTimeToLive = unmatchedEventsTimeToLive;
+    }
+
     public void setEventManager(Search2EventManager eventManager) {
         this.eventManager = eventManager;
     }
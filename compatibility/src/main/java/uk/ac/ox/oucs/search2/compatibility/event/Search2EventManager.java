@@ -3,29 +3,59 @@ package uk.ac.ox.oucs.search2.compatibility.event;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.search.api.SearchIndexBuilder;
 import org.sakaiproject.search.model.SearchBuilderItem;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ox.oucs.search2.document.DocumentProducer;
+import uk.ac.ox.oucs.search2.document.DocumentProducerRegistry;
 import uk.ac.ox.oucs.search2.event.AbstractEventManager;
 import uk.ac.ox.oucs.search2.event.EventHandler;
 import uk.ac.ox.oucs.search2.indexation.DefaultTask;
 import uk.ac.ox.oucs.search2.indexation.Task;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * Event manager transferring the events to the Search1 index builder.
+ * <p>
+ * For each event, the Search1 index builder asks every {@link DocumentProducer} whether it handles the event.
+ * Instead of generating the tasks of the event again for each producer, the tasks of the last event received by
+ * the current thread are kept in the {@link ThreadLocalManager}. The event is held with a weak reference and
+ * compared by identity, so a new event always generates new tasks.<br />
+ * The producers of the {@link DocumentProducerRegistry} handling the reference of each task are looked up once, so
+ * they are answered without calling {@link DocumentProducer#isHandled(String)} again. Several producers can handle
+ * the same reference, each of them gets the task.<br />
+ * Producers which aren't in the registry are still asked through {@link DocumentProducer#isHandled(String)}.<br />
+ * Producers don't declare which references they handle (the Search1 ones only answer
+ * {@code EntityContentProducer.matches}), so they can't be indexed by prefix: the lookup still asks each registered
+ * producer, but only once per task instead of once per producer and per task.
+ * </p>
+ *
  * @author Colin Hebert
  */
 public class Search2EventManager extends AbstractEventManager {
     private static final Logger logger = LoggerFactory.getLogger(AbstractEventManager.class);
+    private static final String EVENT_TASKS_KEY = Search2EventManager.class.getCanonicalName() + ".eventTasks";
     private SearchIndexBuilder searchIndexBuilder;
+    private ThreadLocalManager threadLocalManager;
+    /**
+     * Registry used to find the producer of a reference, optional.
+     */
+    private DocumentProducerRegistry documentProducerRegistry;
     /**
      * {@link EventHandler} mapped by event types.
      */
-    private Map<String, Collection<EventHandler>> eventHandlers = new HashMap<String, Collection<EventHandler>>();
+    private final ConcurrentMap<String, Collection<EventHandler>> eventHandlers =
+            new ConcurrentHashMap<String, Collection<EventHandler>>();
 
     @Override
     public void addEventHandler(EventHandler eventHandler) {
@@ -42,25 +72,18 @@ public class Search2EventManager extends AbstractEventManager {
 
         Collection<EventHandler> eventHandlers = this.eventHandlers.get(eventName);
         if (eventHandlers == null) {
-            eventHandlers = new LinkedList<EventHandler>();
-            this.eventHandlers.put(eventName, eventHandlers);
+            Collection<EventHandler> newEventHandlers = new CopyOnWriteArrayList<EventHandler>();
+            eventHandlers = this.eventHandlers.putIfAbsent(eventName, newEventHandlers);
+            if (eventHandlers == null)
+                eventHandlers = newEventHandlers;
         }
         eventHandlers.add(eventHandler);
     }
 
     @Override
     public void notify(Event event) {
-        Collection<EventHandler> eventHandlers = this.eventHandlers.get(event.getEvent());
-
-        if (logger.isDebugEnabled())
-            logger.debug("The EventHandlers '" + eventHandlers + "' match the event '" + event + "'");
-
-        for (EventHandler eventHandler : eventHandlers) {
-            if (eventHandler.isHandled(event)) {
-                transferEvent(event, eventHandler.getTask(event));
-            } else if (logger.isDebugEnabled()) {
-                logger.debug("The EventHandler '" + eventHandler + "' couldn't handle '" + event + "'");
-            }
+        for (Task task : getEventTasks(event).tasks) {
+            transferEvent(event, task);
         }
     }
 
@@ -93,19 +116,112 @@ public class Search2EventManager extends AbstractEventManager {
     }
 
     private Task getTaskForEventAndDocumentProducer(Event event, DocumentProducer documentProducer) {
+        EventTasks eventTasks = getEventTasks(event);
+        for (int i = 0; i < eventTasks.tasks.size(); i++) {
+            Task task = eventTasks.tasks.get(i);
+            Boolean handled = eventTasks.getRegisteredHandlers(i).get(documentProducer);
+            if (handled == null)
+                handled = documentProducer.isHandled(task.getProperty(DefaultTask.DOCUMENT_REFERENCE));
+            if (handled)
+                return task;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the tasks generated for an event, reusing the tasks of the previous call if it was for the same event.
+     *
+     * @param event event for which tasks are required.
+     * @return the tasks of the event.
+     */
+    private EventTasks getEventTasks(Event event) {
+        EventTasks eventTasks = (EventTasks) threadLocalManager.get(EVENT_TASKS_KEY);
+        if (eventTasks == null || eventTasks.event.get() != event) {
+            eventTasks = new EventTasks(event, generateTasks(event));
+            threadLocalManager.set(EVENT_TASKS_KEY, eventTasks);
+        }
+        return eventTasks;
+    }
+
+    private List<Task> generateTasks(Event event) {
         Collection<EventHandler> eventHandlers = this.eventHandlers.get(event.getEvent());
+        if (eventHandlers == null)
+            return Collections.emptyList();
+
+        if (logger.isDebugEnabled())
+            logger.debug("The EventHandlers '" + eventHandlers + "' match the event '" + event + "'");
+
+        List<Task> tasks = new ArrayList<Task>(eventHandlers.size());
         for (EventHandler eventHandler : eventHandlers) {
             if (eventHandler.isHandled(event)) {
-                Task task = eventHandler.getTask(event);
-                String reference = task.getProperty(DefaultTask.DOCUMENT_REFERENCE);
-                if (documentProducer.isHandled(reference))
-                    return task;
+                tasks.add(eventHandler.getTask(event));
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("The EventHandler '" + eventHandler + "' couldn't handle '" + event + "'");
             }
         }
-        return null;
+        return tasks;
     }
 
     public void setSearchIndexBuilder(SearchIndexBuilder searchIndexBuilder) {
         this.searchIndexBuilder = searchIndexBuilder;
     }
+
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
+    public void setDocumentProducerRegistry(DocumentProducerRegistry documentProducerRegistry) {
+        this.documentProducerRegistry = documentProducerRegistry;
+    }
+
+    /**
+     * Tasks generated for an event, with the registered producers handling the reference of each task.
+     */
+    private final class EventTasks {
+        private final WeakReference<Event> event;
+        private final List<Task> tasks;
+        private final List<Map<DocumentProducer, Boolean>> registeredHandlers;
+
+        private EventTasks(Event event, List<Task> tasks) {
+            this.event = new WeakReference<Event>(event);
+            this.tasks = tasks;
+            this.registeredHandlers = new ArrayList<Map<DocumentProducer, Boolean>>(
+                    Collections.<Map<DocumentProducer, Boolean>>nCopies(tasks.size(), null));
+        }
+
+        /**
+         * Gets whether each producer of the registry handles the reference of a task, looked up once.
+         * <p>
+         * The registry is queried producer by producer rather than with
+         * {@link DocumentProducerRegistry#getDocumentProducer(String)}, which only returns the first match and logs
+         * an error when there is none.
+         * </p>
+         *
+         * @param taskIndex index of the task.
+         * @return every registered producer (compared by identity) mapped to whether it handles the task reference.
+         */
+        private Map<DocumentProducer, Boolean> getRegisteredHandlers(int taskIndex) {
+            Map<DocumentProducer, Boolean> handlers = registeredHandlers.get(taskIndex);
+            if (handlers == null) {
+                handlers = new IdentityHashMap<DocumentProducer, Boolean>();
+                String reference = tasks.get(taskIndex).getProperty(DefaultTask.DOCUMENT_REFERENCE);
+                if (documentProducerRegistry != null && reference != null) {
+                    for (DocumentProducer documentProducer : documentProducerRegistry.getDocumentProducers()) {
+                        handlers.put(documentProducer, isHandled(documentProducer, reference));
+                    }
+                }
+                registeredHandlers.set(taskIndex, handlers);
+            }
+            return handlers;
+        }
+
+        private boolean isHandled(DocumentProducer documentProducer, String reference) {
+            try {
+                return documentProducer.isHandled(reference);
+            } catch (Exception e) {
+                logger.warn("The documentProducer '" + documentProducer + "' has thrown an exception", e);
+                return false;
+            }
+        }
+    }
 }
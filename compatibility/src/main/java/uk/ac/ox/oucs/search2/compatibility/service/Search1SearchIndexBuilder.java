@@ -13,6 +13,8 @@ import uk.ac.ox.oucs.search2.compatibility.event.Search2EventManager;
 import uk.ac.ox.oucs.search2.document.DocumentProducer;
 import uk.ac.ox.oucs.search2.document.DocumentProducerRegistry;
 import uk.ac.ox.oucs.search2.event.IndexEventHandler;
+import uk.ac.ox.oucs.search2.indexation.metrics.TaskMetrics;
+import uk.ac.ox.oucs.search2.tika.cache.ExtractionCache;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -26,6 +28,11 @@ public class Search1SearchIndexBuilder implements SearchIndexBuilder {
     private Search2EventManager search2EventManager;
     private DocumentProducerRegistry documentProducerRegistry;
     private EventTrackingService eventTrackingService;
+    private ExtractionCache extractionCache;
+    /**
+     * Metrics giving the number of pending tasks, optional.
+     */
+    private TaskMetrics taskMetrics;
     private boolean excludeUserSites;
     private boolean onlyIndexSearchToolSites;
 
@@ -52,7 +59,7 @@ public class Search1SearchIndexBuilder implements SearchIndexBuilder {
 
     @Override
     public boolean isBuildQueueEmpty() {
-        return false;  // To change body of implemented methods use File | Settings | File Templates.
+        return taskMetrics != null && taskMetrics.getPendingTaskCount() == 0;
     }
 
     @Override
@@ -63,7 +70,8 @@ public class Search1SearchIndexBuilder implements SearchIndexBuilder {
 
             @Override
             public EntityContentProducer get(int index) {
-                return new Search1EntityContentProducer(documentProducers.get(index), search2EventManager);
+                return new Search1EntityContentProducer(documentProducers.get(index), search2EventManager,
+                        extractionCache);
             }
 
             @Override
@@ -79,7 +87,7 @@ public class Search1SearchIndexBuilder implements SearchIndexBuilder {
 
     @Override
     public int getPendingDocuments() {
-        return 0;  // To change body of implemented methods use File | Settings | File Templates.
+        return (taskMetrics != null) ? Math.max(taskMetrics.getPendingTaskCount(), 0) : 0;
     }
 
     @Override
@@ -107,7 +115,7 @@ public class Search1SearchIndexBuilder implements SearchIndexBuilder {
     public EntityContentProducer newEntityContentProducer(String ref) {
         DocumentProducer documentProducer = documentProducerRegistry.getDocumentProducer(ref);
         if (documentProducer != null) {
-            return new Search1EntityContentProducer(documentProducer, search2EventManager);
+            return new Search1EntityContentProducer(documentProducer, search2EventManager, extractionCache);
         } else {
             return null;
         }
@@ -156,4 +164,12 @@ public class Search1SearchIndexBuilder implements SearchIndexBuilder {
     public void setEventTrackingService(EventTrackingService eventTrackingService) {
         this.eventTrackingService = eventTrackingService;
     }
+
+    public void setExtractionCache(ExtractionCache extractionCache) {
+        this.extractionCache = extractionCache;
+    }
+
+    public void setTaskMetrics(TaskMetrics taskMetrics) {
+        this.taskMetrics = taskMetrics;
+    }
 }
@@ -80,7 +80,7 @@ public class Search1SearchService implements org.sakaiproject.search.api.SearchS
 
     @Override
     public int getPendingDocs() {
-        return 0;  // To change body of implemented methods use File | Settings | File Templates.
+        return searchIndexBuilder.getPendingDocuments();
     }
 
     @Override
@@ -0,0 +1,146 @@
+package uk.ac.ox.oucs.search2.compatibility.event;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.search.api.EntityContentProducer;
+import uk.ac.ox.oucs.search2.event.EventHandler;
+import uk.ac.ox.oucs.search2.indexation.DefaultTask;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how the {@link Search2EventHandler} finds the producer of an event, and which misses it remembers.
+ * <p>
+ * Producers are told apart by the action they give, so the type of the task shows which producer matched.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class Search2EventHandlerTest {
+    private static final String REVISE_EVENT = "content.revise";
+    private static final String NEW_EVENT = "annc.new";
+    private Search2EventHandler eventHandler;
+
+    @Before
+    public void setUp() {
+        eventHandler = new Search2EventHandler();
+        eventHandler.setEventManager(new Search2EventManager() {
+            @Override
+            protected void addEventHandlerForEvent(EventHandler eventHandler, String eventName) {
+            }
+        });
+        eventHandler.addEventType(REVISE_EVENT);
+        eventHandler.addEventType(NEW_EVENT);
+    }
+
+    @Test
+    public void testStateDependentMissNotCached() {
+        TestProducer producer = new TestProducer("/content", 1);
+        eventHandler.addEntityContentProducer(producer.proxy);
+        assertTrue(eventHandler.isHandled(createEvent(REVISE_EVENT, "/content/group/site/file1")));
+
+        // The second file isn't indexable yet
+        producer.matching = false;
+        Event event = createEvent(REVISE_EVENT, "/content/group/site/file2");
+        assertFalse(eventHandler.isHandled(event));
+
+        producer.matching = true;
+        assertTrue(eventHandler.isHandled(event));
+    }
+
+    @Test
+    public void testMissCachedForUnmatchedEventType() {
+        TestProducer producer = new TestProducer("/content", 1);
+        eventHandler.addEntityContentProducer(producer.proxy);
+
+        assertFalse(eventHandler.isHandled(createEvent(NEW_EVENT, "/announcement/msg/site/1")));
+        int matchCalls = producer.matchCalls.get();
+        assertFalse(eventHandler.isHandled(createEvent(NEW_EVENT, "/announcement/msg/site/2")));
+        assertEquals("The kind of event should be remembered as unmatched", matchCalls, producer.matchCalls.get());
+
+        // A new producer may match the remembered kind of event
+        eventHandler.addEntityContentProducer(new TestProducer("/announcement", 1).proxy);
+        assertTrue(eventHandler.isHandled(createEvent(NEW_EVENT, "/announcement/msg/site/2")));
+    }
+
+    @Test
+    public void testLastMatchedProducerTriedFirst() {
+        TestProducer firstProducer = new TestProducer("/content", 1);
+        TestProducer secondProducer = new TestProducer("/content", 2);
+        eventHandler.addEntityContentProducer(firstProducer.proxy);
+        eventHandler.addEntityContentProducer(secondProducer.proxy);
+
+        // Both producers match, the first one registered is found first
+        Event event = createEvent(REVISE_EVENT, "/content/group/site/file");
+        assertEquals(DefaultTask.Type.INDEX_DOCUMENT.getTypeName(), eventHandler.getTask(event).getType());
+
+        // Once the second producer has been matched for this kind of event, it's tried first
+        firstProducer.matching = false;
+        assertEquals(DefaultTask.Type.UNINDEX_DOCUMENT.getTypeName(), eventHandler.getTask(event).getType());
+        firstProducer.matching = true;
+        assertEquals(DefaultTask.Type.UNINDEX_DOCUMENT.getTypeName(), eventHandler.getTask(event).getType());
+    }
+
+    private static Event createEvent(final String eventType, final String resource) {
+        return (Event) Proxy.newProxyInstance(Event.class.getClassLoader(), new Class<?>[]{Event.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getEvent".equals(method.getName()))
+                            return eventType;
+                        else if ("getResource".equals(method.getName()))
+                            return resource;
+                        else if ("getEventTime".equals(method.getName()))
+                            return new Date();
+                        else if ("toString".equals(method.getName()))
+                            return eventType + '@' + resource;
+                        else
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Producer matching the events whose resource starts with a prefix, while it's matching.
+     */
+    private static final class TestProducer implements InvocationHandler {
+        private final String prefix;
+        private final int action;
+        private final AtomicInteger matchCalls = new AtomicInteger();
+        private final EntityContentProducer proxy;
+        private volatile boolean matching = true;
+
+        private TestProducer(String prefix, int action) {
+            this.prefix = prefix;
+            this.action = action;
+            proxy = (EntityContentProducer) Proxy.newProxyInstance(EntityContentProducer.class.getClassLoader(),
+                    new Class<?>[]{EntityContentProducer.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String methodName = method.getName();
+            if ("matches".equals(methodName) && args[0] instanceof Event) {
+                matchCalls.incrementAndGet();
+                return matching && ((Event) args[0]).getResource().startsWith(prefix);
+            } else if ("getAction".equals(methodName)) {
+                return action;
+            } else if ("equals".equals(methodName)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(methodName)) {
+                return "TestProducer(" + prefix + ", " + action + ")";
+            } else {
+                throw new UnsupportedOperationException(methodName);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package uk.ac.ox.oucs.search2.compatibility.event;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.search.model.SearchBuilderItem;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import uk.ac.ox.oucs.search2.document.DefaultDocumentProducerRegistry;
+import uk.ac.ox.oucs.search2.document.Document;
+import uk.ac.ox.oucs.search2.document.DocumentProducer;
+import uk.ac.ox.oucs.search2.event.EventHandler;
+import uk.ac.ox.oucs.search2.indexation.DefaultTask;
+import uk.ac.ox.oucs.search2.indexation.Task;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link Search2EventManager} generates the tasks of an event once, recognises the event by identity,
+ * and doesn't keep the event alive.
+ *
+ * @author Colin Hebert
+ */
+public class Search2EventManagerTest {
+    private static final String REVISE_EVENT = "content.revise";
+    private static final String REFERENCE = "/content/group/site/document";
+    private final AtomicInteger generatedTasks = new AtomicInteger();
+    private Search2EventManager eventManager;
+    private TestDocumentProducer registeredProducer;
+    private TestDocumentProducer unregisteredProducer;
+
+    @Before
+    public void setUp() {
+        eventManager = new Search2EventManager() {
+            @Override
+            protected void addEventType(String eventType) {
+            }
+        };
+        eventManager.setThreadLocalManager(new TestThreadLocalManager());
+        eventManager.addEventHandler(new EventHandler() {
+            @Override
+            public Collection<String> getSupportedEventTypes() {
+                return Collections.singleton(REVISE_EVENT);
+            }
+
+            @Override
+            public Task getTask(Event event) {
+                generatedTasks.incrementAndGet();
+                return new DefaultTask(DefaultTask.Type.INDEX_DOCUMENT)
+                        .setProperty(DefaultTask.DOCUMENT_REFERENCE, event.getResource());
+            }
+
+            @Override
+            public boolean isHandled(Event event) {
+                return true;
+            }
+        });
+
+        registeredProducer = new TestDocumentProducer();
+        unregisteredProducer = new TestDocumentProducer();
+        DefaultDocumentProducerRegistry documentProducerRegistry = new DefaultDocumentProducerRegistry();
+        documentProducerRegistry.registerDocumentProducer(registeredProducer);
+        eventManager.setDocumentProducerRegistry(documentProducerRegistry);
+    }
+
+    @Test
+    public void testTasksReusedForTheSameEvent() {
+        Event event = createEvent();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(eventManager.isProducerForEvent(event, registeredProducer));
+            assertEquals(SearchBuilderItem.ACTION_ADD.intValue(), eventManager.getActionForEvent(event, registeredProducer));
+            assertTrue(eventManager.isProducerForEvent(event, unregisteredProducer));
+        }
+        assertEquals(1, generatedTasks.get());
+        // The registered producer is asked once, the other one on every call
+        assertEquals(1, registeredProducer.handledCalls.get());
+        assertEquals(3, unregisteredProducer.handledCalls.get());
+
+        // An identical but distinct event is a new event
+        assertTrue(eventManager.isProducerForEvent(createEvent(), registeredProducer));
+        assertEquals(2, generatedTasks.get());
+        assertEquals(2, registeredProducer.handledCalls.get());
+    }
+
+    @Test
+    public void testEventNotRetained() throws Exception {
+        Event event = createEvent();
+        assertTrue(eventManager.isProducerForEvent(event, registeredProducer));
+        WeakReference<Event> eventReference = new WeakReference<Event>(event);
+        event = null;
+
+        for (int i = 0; i < 50 && eventReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("The memoised tasks shouldn't keep the event alive", eventReference.get());
+
+        // Once collected, the next event generates its tasks again
+        assertTrue(eventManager.isProducerForEvent(createEvent(), registeredProducer));
+        assertEquals(2, generatedTasks.get());
+    }
+
+    private static Event createEvent() {
+        return (Event) Proxy.newProxyInstance(Event.class.getClassLoader(), new Class<?>[]{Event.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getEvent".equals(method.getName()))
+                            return REVISE_EVENT;
+                        else if ("getResource".equals(method.getName()))
+                            return REFERENCE;
+                        else if ("getEventTime".equals(method.getName()))
+                            return new Date();
+                        else if ("toString".equals(method.getName()))
+                            return REVISE_EVENT + '@' + REFERENCE;
+                        else
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Thread local manager of a single thread.
+     */
+    private static final class TestThreadLocalManager implements ThreadLocalManager {
+        private final Map<String, Object> values = new HashMap<String, Object>();
+
+        @Override
+        public void clear() {
+            values.clear();
+        }
+
+        @Override
+        public Object get(String name) {
+            return values.get(name);
+        }
+
+        @Override
+        public void set(String name, Object value) {
+            values.put(name, value);
+        }
+    }
+
+    /**
+     * Producer handling every reference, counting how many times it's asked.
+     */
+    private static final class TestDocumentProducer implements DocumentProducer {
+        private final AtomicInteger handledCalls = new AtomicInteger();
+
+        @Override
+        public Document getDocument(String reference) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Queue<Document> getSiteDocuments(String siteId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isHandled(String reference) {
+            handledCalls.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isReadable(String reference) {
+            return true;
+        }
+    }
+}
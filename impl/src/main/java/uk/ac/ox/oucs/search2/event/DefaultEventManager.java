@@ -4,12 +4,14 @@ import org.sakaiproject.event.api.Event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ox.oucs.search2.indexation.Task;
+import uk.ac.ox.oucs.search2.indexation.TaskOwnership;
 import uk.ac.ox.oucs.search2.indexation.TaskQueuing;
+import uk.ac.ox.oucs.search2.indexation.metrics.TaskMetrics;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Default implementation for {@link EventManager}, it will generate and queue {@link Task} for each {@link Event}.
@@ -17,6 +19,22 @@ import java.util.Map;
  * When an {@link EventHandler} is added, it is stored and waits for an Event to be intercepted.<br />
  * Once an Event is captured, a Task is generated from each relevant EventHandler and added to the {@link TaskQueuing}.
  * </p>
+ * <p>
+ * Events are received on the thread of the Sakai event system, which must never wait for the indexation.<br />
+ * Captured events are only stored in a {@link RingBuffer} and a dispatcher thread generates and queues the tasks.
+ * If the buffer is full, the event is dropped with a warning rather than blocking Sakai, and counted in the
+ * {@link TaskMetrics} if set.<br />
+ * The handlers are kept in an immutable map replaced on each registration, so the dispatcher reads it without lock.
+ * </p>
+ * <p>
+ * If a {@link TaskDebouncer} is set, tasks go through it before being queued, so a document updated many times in a
+ * row is indexed once.
+ * </p>
+ * <p>
+ * In a cluster every node receives the same events. If a {@link TaskOwnership} is set (or if the {@link TaskQueuing}
+ * is one), tasks owned by other nodes are handed to it rather than queued, so they can be taken over if their owner
+ * dies.
+ * </p>
  *
  * @author Colin Hebert
  */
@@ -25,37 +43,118 @@ public class DefaultEventManager extends AbstractEventManager {
     /**
      * {@link EventHandler} mapped by event types.
      */
-    private Map<String, Collection<EventHandler>> eventHandlers = new HashMap<String, Collection<EventHandler>>();
+    private volatile Map<String, Collection<EventHandler>> eventHandlers = Collections.emptyMap();
     /**
      * Queueing system.
      */
     private TaskQueuing taskQueuing;
+    /**
+     * Optional stage holding the tasks of bursty documents before their queuing.
+     */
+    private TaskDebouncer taskDebouncer;
+    /**
+     * Optional owner of the tasks executed by other nodes of the cluster.
+     */
+    private TaskOwnership taskOwnership;
+    /**
+     * Optional registry counting the dropped events.
+     */
+    private TaskMetrics taskMetrics;
+    private RingBuffer<Event> events;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private Thread dispatcherThread;
+    private volatile boolean running;
+    private volatile boolean dispatcherWaiting;
+    /**
+     * Maximum number of events waiting to be dispatched.
+     */
+    private int eventQueueCapacity = 16384;
 
     @Override
-    public void addEventHandler(EventHandler eventHandler) {
+    public void init() {
+        if (taskOwnership == null && taskQueuing instanceof TaskOwnership)
+            taskOwnership = (TaskOwnership) taskQueuing;
+        events = new RingBuffer<Event>(eventQueueCapacity);
+        running = true;
+        dispatcherThread = new Thread(new Dispatcher(), "search2-event-dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+
+        super.init();
+    }
+
+    public void destroy() {
+        running = false;
+        LockSupport.unpark(dispatcherThread);
+        try {
+            dispatcherThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!events.isEmpty())
+            logger.warn(events.size() + " events haven't been dispatched before the shutdown");
+    }
+
+    @Override
+    public synchronized void addEventHandler(EventHandler eventHandler) {
         logger.info("Registering '" + eventHandler + "' for future events.");
 
         super.addEventHandler(eventHandler);
+        Map<String, Collection<EventHandler>> newEventHandlers =
+                new HashMap<String, Collection<EventHandler>>(this.eventHandlers);
         for (String eventName : eventHandler.getSupportedEventTypes()) {
-            Collection<EventHandler> eventHandlers = this.eventHandlers.get(eventName);
-            if (eventHandlers == null) {
-                eventHandlers = new LinkedList<EventHandler>();
-                this.eventHandlers.put(eventName, eventHandlers);
-            }
-            eventHandlers.add(eventHandler);
+            Collection<EventHandler> eventHandlers = newEventHandlers.get(eventName);
+            List<EventHandler> newHandlersForEvent = (eventHandlers == null)
+                    ? new ArrayList<EventHandler>(1) : new ArrayList<EventHandler>(eventHandlers);
+            newHandlersForEvent.add(eventHandler);
+            newEventHandlers.put(eventName, Collections.unmodifiableList(newHandlersForEvent));
         }
+        this.eventHandlers = Collections.unmodifiableMap(newEventHandlers);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The event is only stored, to be dispatched later by the dispatcher thread.
+     * </p>
+     */
     @Override
     protected void notify(Event event) {
+        if (!events.offer(event)) {
+            long dropped = droppedEvents.incrementAndGet();
+            if (taskMetrics != null)
+                taskMetrics.eventDropped();
+            if (dropped == 1 || dropped % 1000 == 0)
+                logger.warn("Too many events waiting, '" + event + "' dropped (" + dropped + " dropped so far)");
+            return;
+        }
+
+        if (dispatcherWaiting)
+            LockSupport.unpark(dispatcherThread);
+    }
+
+    /**
+     * Generates and queues the {@link Task} of each {@link EventHandler} handling an event.
+     *
+     * @param event event to dispatch.
+     */
+    protected void dispatchEvent(Event event) {
         Collection<EventHandler> eventHandlersForCurrentEvent = eventHandlers.get(event.getEvent());
+        if (eventHandlersForCurrentEvent == null)
+            return;
 
         if (logger.isDebugEnabled())
             logger.debug("The EventHandlers '" + eventHandlersForCurrentEvent + "' match the event '" + event + "'");
 
         for (EventHandler eventHandler : eventHandlersForCurrentEvent) {
             if (eventHandler.isHandled(event)) {
-                queueTask(eventHandler.getTask(event));
+                Task task = eventHandler.getTask(event);
+                if (taskOwnership != null && !taskOwnership.acceptTask(task))
+                    continue;
+                if (taskDebouncer != null)
+                    taskDebouncer.addTask(event.getEvent(), task);
+                else
+                    queueTask(task);
             } else if (logger.isDebugEnabled()) {
                 logger.debug("The EventHandler '" + eventHandler + "' couldn't handle '" + event + "'");
             }
@@ -71,7 +170,67 @@ public class DefaultEventManager extends AbstractEventManager {
         taskQueuing.addTaskToQueue(task);
     }
 
+    /**
+     * Gets the number of events waiting to be dispatched.
+     *
+     * @return the number of pending events.
+     */
+    public int getPendingEventCount() {
+        return events.size();
+    }
+
+    /**
+     * Gets the number of events dropped because too many events were waiting.
+     *
+     * @return the number of dropped events.
+     */
+    public long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
     public void setTaskQueuing(TaskQueuing taskQueuing) {
         this.taskQueuing = taskQueuing;
     }
+
+    public void setTaskDebouncer(TaskDebouncer taskDebouncer) {
+        this.taskDebouncer = taskDebouncer;
+    }
+
+    public void setTaskOwnership(TaskOwnership taskOwnership) {
+        this.taskOwnership = taskOwnership;
+    }
+
+    public void setTaskMetrics(TaskMetrics taskMetrics) {
+        this.taskMetrics = taskMetrics;
+    }
+
+    public void setEventQueueCapacity(int eventQueueCapacity) {
+        this.eventQueueCapacity = eventQueueCapacity;
+    }
+
+    /**
+     * Dispatches the stored events, and sleeps when there is none.
+     */
+    private final class Dispatcher implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                Event event = events.poll();
+                if (event == null) {
+                    dispatcherWaiting = true;
+                    // An event stored before the flag was set wouldn't wake the dispatcher up
+                    if (events.isEmpty())
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                    dispatcherWaiting = false;
+                    continue;
+                }
+
+                try {
+                    dispatchEvent(event);
+                } catch (Exception e) {
+                    logger.error("Couldn't dispatch the event '" + event + "'", e);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,131 @@
+package uk.ac.ox.oucs.search2.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue backed by an array, usable by multiple producers and consumers.
+ * <p>
+ * Each slot of the array has a sequence number telling whether it's ready to be written or read, so producers and
+ * consumers only compete on the head or tail counter with a compare and swap and never block.<br />
+ * When the buffer is full {@link #offer(Object)} fails immediately instead of waiting for a free slot.
+ * </p>
+ * <p>
+ * The capacity is rounded up to a power of two, so the position in the array is obtained with a mask.
+ * </p>
+ *
+ * @param <E> type of the elements.
+ * @author Colin Hebert
+ */
+public class RingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a buffer.
+     *
+     * @param capacity minimum number of elements the buffer can contain.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("The capacity must be between 1 and 2^30");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element at the end of the buffer if there is some space left.
+     *
+     * @param element element to add.
+     * @return true if the element has been added, false if the buffer is full.
+     */
+    public boolean offer(E element) {
+        if (element == null)
+            throw new NullPointerException();
+
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot still contains the element of the previous lap
+                return false;
+            } else {
+                // Another producer took this position
+                position = tail.get();
+            }
+        }
+
+        elements.set(index, element);
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Removes the first element of the buffer.
+     *
+     * @return the first element, or null if there is no element ready to be read.
+     */
+    public E poll() {
+        long position = head.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1))
+                    break;
+                position = head.get();
+            } else if (difference < 0) {
+                // The slot hasn't been written yet
+                return null;
+            } else {
+                // Another consumer took this position
+                position = head.get();
+            }
+        }
+
+        E element = elements.get(index);
+        elements.set(index, null);
+        sequences.set(index, position + mask + 1);
+        return element;
+    }
+
+    /**
+     * Gets the number of elements in the buffer.
+     * <p>
+     * The value is only an estimation while elements are added or removed.
+     * </p>
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return tail.get() <= head.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
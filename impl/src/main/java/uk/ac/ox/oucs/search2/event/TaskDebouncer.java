@@ -0,0 +1,290 @@
+package uk.ac.ox.oucs.search2.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.DefaultTask;
+import uk.ac.ox.oucs.search2.indexation.Task;
+import uk.ac.ox.oucs.search2.indexation.TaskQueuing;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the tasks generated for a document until its events stop, and only queues the last one.
+ * <p>
+ * Some tools send dozens of update events for the same document within a few seconds (drafts, synchronisations).
+ * Instead of indexing the document each time, the task is held until no new task has been received for the
+ * document during the quiet period. The last task received is then added to the {@link TaskQueuing}.<br />
+ * A task is never held longer than the {@link #maximumHoldTime}, even if the events don't stop.
+ * </p>
+ * <p>
+ * The quiet period can be set for each event type or each task type. A quiet period of 0 bypasses the debouncer:
+ * the task is queued immediately and replaces the task held for the same document, so a deletion isn't followed by
+ * an older update.<br />
+ * Tasks which aren't related to a document are always queued immediately.
+ * </p>
+ * <p>
+ * Tasks are queued outside of the lock protecting the held tasks, so a slow {@link TaskQueuing} doesn't block the
+ * other documents.<br />
+ * Each task leaving the debouncer gets a sequence number, and for each document a task is only queued if no task
+ * with a higher sequence number has been queued. A held task released while a deletion bypasses the debouncer is
+ * therefore dropped rather than queued after the deletion.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class TaskDebouncer {
+    private static final Logger logger = LoggerFactory.getLogger(TaskDebouncer.class);
+    /**
+     * Tasks held, mapped by document reference.
+     */
+    private final Map<String, HeldTask> heldTasks = new HashMap<String, HeldTask>();
+    /**
+     * Documents with tasks being queued, mapped by document reference and protected by the lock on
+     * {@link #heldTasks}.
+     */
+    private final Map<String, QueuingState> queuingStates = new HashMap<String, QueuingState>();
+    /**
+     * Sequence number of the last task which left the debouncer, protected by the lock on {@link #heldTasks}.
+     */
+    private long sequence;
+    private ScheduledExecutorService scheduler;
+    private TaskQueuing taskQueuing;
+    /**
+     * Time (in ms) without new task for a document before its last task is queued.
+     */
+    private long quietPeriod = 2 * 1000;
+    /**
+     * Maximum time (in ms) a task can be held.
+     */
+    private long maximumHoldTime = 30 * 1000;
+    /**
+     * Quiet periods (in ms) mapped by event type.
+     */
+    private Map<String, Long> eventTypeQuietPeriods = Collections.emptyMap();
+    /**
+     * Quiet periods (in ms) mapped by task type, used if the event type doesn't have a quiet period.
+     */
+    private Map<String, Long> taskTypeQuietPeriods = Collections.emptyMap();
+
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search2-task-debouncer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues every task held before stopping the debouncer.
+     */
+    public void destroy() {
+        scheduler.shutdownNow();
+        List<Task> tasks = new ArrayList<Task>();
+        synchronized (heldTasks) {
+            for (HeldTask heldTask : heldTasks.values()) {
+                tasks.add(heldTask.task);
+            }
+            heldTasks.clear();
+        }
+        for (Task task : tasks) {
+            taskQueuing.addTaskToQueue(task);
+        }
+    }
+
+    /**
+     * Holds a task until the events of its document stop, or queues it immediately if it isn't debounced.
+     *
+     * @param eventType type of the event which generated the task.
+     * @param task      task to queue.
+     */
+    public void addTask(String eventType, Task task) {
+        String reference = task.getProperty(DefaultTask.DOCUMENT_REFERENCE);
+        long taskQuietPeriod = getQuietPeriod(eventType, task);
+        if (reference == null) {
+            taskQueuing.addTaskToQueue(task);
+            return;
+        }
+
+        if (taskQuietPeriod <= 0) {
+            QueuingState queuingState;
+            long taskSequence;
+            synchronized (heldTasks) {
+                HeldTask replacedTask = heldTasks.remove(reference);
+                if (replacedTask != null && logger.isDebugEnabled())
+                    logger.debug("'" + replacedTask.task + "' replaced by '" + task + "'");
+                queuingState = startQueuing(reference);
+                taskSequence = ++sequence;
+            }
+            queueTask(reference, task, queuingState, taskSequence);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (heldTasks) {
+            HeldTask heldTask = heldTasks.get(reference);
+            if (heldTask == null) {
+                heldTask = new HeldTask(reference, now);
+                heldTasks.put(reference, heldTask);
+                heldTask.update(task, taskQuietPeriod, now);
+                scheduler.schedule(heldTask, taskQuietPeriod, TimeUnit.MILLISECONDS);
+            } else {
+                if (logger.isDebugEnabled())
+                    logger.debug("'" + heldTask.task + "' replaced by '" + task + "'");
+                // The pending check will find the new deadline and wait again
+                heldTask.update(task, taskQuietPeriod, now);
+            }
+        }
+    }
+
+    /**
+     * Gets the queuing state of a document, while holding the lock on {@link #heldTasks}.
+     *
+     * @param reference reference of the document.
+     * @return the state shared by the tasks of the document being queued.
+     */
+    private QueuingState startQueuing(String reference) {
+        QueuingState queuingState = queuingStates.get(reference);
+        if (queuingState == null) {
+            queuingState = new QueuingState();
+            queuingStates.put(reference, queuingState);
+        }
+        queuingState.queuingTasks++;
+        return queuingState;
+    }
+
+    /**
+     * Queues a task which left the debouncer, unless a more recent task for the same document has been queued.
+     *
+     * @param reference    reference of the document.
+     * @param task         task to queue.
+     * @param queuingState state shared by the tasks of the document being queued.
+     * @param taskSequence sequence number given to the task when it left the debouncer.
+     */
+    private void queueTask(String reference, Task task, QueuingState queuingState, long taskSequence) {
+        try {
+            synchronized (queuingState) {
+                if (taskSequence > queuingState.lastQueuedSequence) {
+                    queuingState.lastQueuedSequence = taskSequence;
+                    taskQueuing.addTaskToQueue(task);
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("'" + task + "' dropped, a more recent task has already been queued");
+                }
+            }
+        } finally {
+            synchronized (heldTasks) {
+                // Once no task is being queued, the next tasks will have higher sequence numbers anyway
+                if (--queuingState.queuingTasks == 0)
+                    queuingStates.remove(reference);
+            }
+        }
+    }
+
+    private long getQuietPeriod(String eventType, Task task) {
+        Long eventTypeQuietPeriod = eventTypeQuietPeriods.get(eventType);
+        if (eventTypeQuietPeriod != null)
+            return eventTypeQuietPeriod;
+        Long taskTypeQuietPeriod = taskTypeQuietPeriods.get(task.getType());
+        if (taskTypeQuietPeriod != null)
+            return taskTypeQuietPeriod;
+        return quietPeriod;
+    }
+
+    /**
+     * Gets the number of tasks currently held.
+     *
+     * @return the number of held tasks.
+     */
+    public int getHeldTaskCount() {
+        synchronized (heldTasks) {
+            return heldTasks.size();
+        }
+    }
+
+    public void setTaskQueuing(TaskQueuing taskQueuing) {
+        this.taskQueuing = taskQueuing;
+    }
+
+    public void setQuietPeriod(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    public void setMaximumHoldTime(long maximumHoldTime) {
+        this.maximumHoldTime = maximumHoldTime;
+    }
+
+    public void setEventTypeQuietPeriods(Map<String, Long> eventTypeQuietPeriods) {
+        this.eventTypeQuietPeriods = new HashMap<String, Long>(eventTypeQuietPeriods);
+    }
+
+    public void setTaskTypeQuietPeriods(Map<String, Long> taskTypeQuietPeriods) {
+        this.taskTypeQuietPeriods = new HashMap<String, Long>(taskTypeQuietPeriods);
+    }
+
+    /**
+     * Last task received for a document, checked when its quiet period should be over.
+     */
+    private final class HeldTask implements Runnable {
+        private final String reference;
+        private final long firstReceived;
+        private Task task;
+        private long deadline;
+
+        private HeldTask(String reference, long firstReceived) {
+            this.reference = reference;
+            this.firstReceived = firstReceived;
+        }
+
+        private void update(Task task, long taskQuietPeriod, long now) {
+            this.task = task;
+            this.deadline = Math.min(now + taskQuietPeriod, firstReceived + maximumHoldTime);
+        }
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            Task releasedTask;
+            QueuingState queuingState;
+            long taskSequence;
+            synchronized (heldTasks) {
+                // The task may have been replaced by a task which wasn't debounced
+                if (heldTasks.get(reference) != this)
+                    return;
+                if (now < deadline) {
+                    scheduler.schedule(this, deadline - now, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                heldTasks.remove(reference);
+                releasedTask = task;
+                queuingState = startQueuing(reference);
+                taskSequence = ++sequence;
+            }
+
+            try {
+                queueTask(reference, releasedTask, queuingState, taskSequence);
+            } catch (Exception e) {
+                logger.error("Couldn't queue '" + releasedTask + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Tasks of a document leaving the debouncer.
+     */
+    private static final class QueuingState {
+        /**
+         * Number of tasks of the document being queued, protected by the lock on {@link #heldTasks}.
+         */
+        private int queuingTasks;
+        /**
+         * Sequence number of the last task of the document queued, protected by the lock on this state.
+         */
+        private long lastQueuedSequence;
+    }
+}
@@ -11,12 +11,22 @@ import uk.ac.ox.oucs.search2.indexation.exception.TaskException;
 import uk.ac.ox.oucs.search2.indexation.exception.UnsupportedTaskException;
 import uk.ac.ox.oucs.search2.service.IndexService;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import static uk.ac.ox.oucs.search2.indexation.DefaultTask.Type.*;
 
 /**
  * Abstract implementation of a {@link TaskHandler} handling any {@link DefaultTask}.
+ * <p>
+ * When a {@link #siteIndexationExecutor} is provided, the sites are indexed in parallel during a full indexation.
+ * </p>
  *
  * @author Colin Hebert
  */
@@ -24,6 +34,18 @@ public abstract class AbstractTaskHandler implements TaskHandler {
     private static final Logger logger = LoggerFactory.getLogger(AbstractTaskHandler.class);
     private IndexService indexService;
     private DocumentProducerRegistry documentProducerRegistry;
+    /**
+     * Executor in charge of indexing sites in parallel during a full indexation, optional.
+     * <p>
+     * The executor should provide the same environment as a {@link TaskRunner}
+     * (see {@link IndexationThreadPoolExecutor}).
+     * </p>
+     */
+    private ExecutorService siteIndexationExecutor;
+    /**
+     * Maximum number of sites indexed at the same time during a full indexation.
+     */
+    private int siteIndexationParallelism = 1;
 
     @Override
     public void executeTask(Task task) {
@@ -35,9 +57,7 @@ public abstract class AbstractTaskHandler implements TaskHandler {
             DateTime taskCreationDate = new DateTime(task.getCreationDate());
 
             if (INDEX_DOCUMENT.getTypeName().equals(type)) {
-                String documentReference = task.getProperty(DefaultTask.DOCUMENT_REFERENCE);
-                DocumentProducer documentProducer = documentProducerRegistry.getDocumentProducer(documentReference);
-                indexDocument(documentProducer.getDocument(documentReference), taskCreationDate);
+                indexDocument(getDocument(task), taskCreationDate);
             } else if (UNINDEX_DOCUMENT.getTypeName().equals(type)) {
                 unindexDocument(task.getProperty(DefaultTask.DOCUMENT_REFERENCE), taskCreationDate);
             } else if (INDEX_SITE.getTypeName().equals(type)) {
@@ -58,6 +78,42 @@ public abstract class AbstractTaskHandler implements TaskHandler {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every task is executed with {@link #executeTask(Task)}.<br />
+     * Implementations able to handle multiple tasks at once should override this method.
+     * </p>
+     *
+     * @param tasks tasks to execute.
+     */
+    @Override
+    public void executeTasks(Collection<Task> tasks) {
+        MultipleTasksException mte = new MultipleTasksException("An exception occurred while executing "
+                + tasks.size() + " tasks");
+        for (Task task : tasks) {
+            try {
+                executeTask(task);
+            } catch (TaskException e) {
+                mte.addTaskException(e);
+            }
+        }
+
+        if (!mte.isEmpty()) throw mte;
+    }
+
+    /**
+     * Gets the document related to an {@link DefaultTask.Type#INDEX_DOCUMENT} task.
+     *
+     * @param task task referencing a document.
+     * @return the document to index.
+     */
+    protected Document getDocument(Task task) {
+        String documentReference = task.getProperty(DefaultTask.DOCUMENT_REFERENCE);
+        DocumentProducer documentProducer = documentProducerRegistry.getDocumentProducer(documentReference);
+        return documentProducer.getDocument(documentReference);
+    }
+
     /**
      * Indexes a single document.
      *
@@ -89,8 +145,35 @@ public abstract class AbstractTaskHandler implements TaskHandler {
         MultipleTasksException nthe =
                 new MultipleTasksException("An exception occurred while indexing the site '" + siteId + "'");
 
-        for (Document document : indexService.getIndexableDocumentsForSite(siteId)) {
-            indexDocument(document, taskCreationDate);
+        try {
+            indexDocuments(indexService.getIndexableDocumentsForSite(siteId), taskCreationDate);
+        } catch (TaskException e) {
+            nthe.addTaskException(e);
+        }
+
+        if (!nthe.isEmpty()) throw nthe;
+    }
+
+    /**
+     * Indexes multiple documents sharing the same original {@link Task}.
+     * <p>
+     * Every document is indexed with {@link #indexDocument(Document, DateTime)}, a failure on one document doesn't
+     * prevent the other documents from being indexed.<br />
+     * Implementations able to send multiple documents at once should override this method.
+     * </p>
+     *
+     * @param documents        documents to index.
+     * @param taskCreationDate creation date of the original {@link Task}.
+     */
+    protected void indexDocuments(Iterable<Document> documents, DateTime taskCreationDate) {
+        MultipleTasksException nthe = new MultipleTasksException("An exception occurred while indexing documents");
+
+        for (Document document : documents) {
+            try {
+                indexDocument(document, taskCreationDate);
+            } catch (TaskException e) {
+                nthe.addTaskException(e);
+            }
         }
 
         if (!nthe.isEmpty()) throw nthe;
@@ -132,13 +215,77 @@ public abstract class AbstractTaskHandler implements TaskHandler {
         MultipleTasksException nthe = new MultipleTasksException("An exception occurred while rebuilding the index");
         Collection<String> indexableSites = indexService.getIndexableSiteIds();
 
-        for (String siteId : indexableSites) {
-            indexSite(siteId, taskCreationDate);
+        if (siteIndexationExecutor != null && siteIndexationParallelism > 1) {
+            indexSitesInParallel(indexableSites, taskCreationDate, nthe);
+        } else {
+            for (String siteId : indexableSites) {
+                try {
+                    indexSite(siteId, taskCreationDate);
+                } catch (TaskException e) {
+                    nthe.addTaskException(e);
+                }
+            }
         }
 
         if (!nthe.isEmpty()) throw nthe;
     }
 
+    /**
+     * Indexes sites with the {@link #siteIndexationExecutor}.
+     * <p>
+     * No more than {@link #siteIndexationParallelism} sites are indexed (or waiting to be indexed) at the same time.
+     * <br />
+     * The current thread waits until every site has been indexed.
+     * </p>
+     *
+     * @param siteIds          identifiers of the sites to index.
+     * @param taskCreationDate creation date of the original {@link Task}.
+     * @param nthe             exception in which every failure is collected.
+     */
+    private void indexSitesInParallel(Collection<String> siteIds, final DateTime taskCreationDate,
+                                      MultipleTasksException nthe) {
+        final Semaphore availableSlots = new Semaphore(siteIndexationParallelism);
+        List<Future<?>> siteIndexations = new ArrayList<Future<?>>(siteIds.size());
+        try {
+            for (final String siteId : siteIds) {
+                availableSlots.acquire();
+                try {
+                    siteIndexations.add(siteIndexationExecutor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                indexSite(siteId, taskCreationDate);
+                            } finally {
+                                availableSlots.release();
+                            }
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    availableSlots.release();
+                    throw e;
+                }
+            }
+
+            for (Future<?> siteIndexation : siteIndexations) {
+                try {
+                    siteIndexation.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof TaskException)
+                        nthe.addTaskException((TaskException) e.getCause());
+                    else
+                        nthe.addTaskException(new TaskException("An exception occurred while indexing a site",
+                                e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> siteIndexation : siteIndexations) {
+                siteIndexation.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new TaskException("Interrupted while rebuilding the index", e);
+        }
+    }
+
     /**
      * Empties the entire index.
      *
@@ -163,4 +310,12 @@ public abstract class AbstractTaskHandler implements TaskHandler {
     public void setDocumentProducerRegistry(DocumentProducerRegistry documentProducerRegistry) {
         this.documentProducerRegistry = documentProducerRegistry;
     }
+
+    public void setSiteIndexationExecutor(ExecutorService siteIndexationExecutor) {
+        this.siteIndexationExecutor = siteIndexationExecutor;
+    }
+
+    public void setSiteIndexationParallelism(int siteIndexationParallelism) {
+        this.siteIndexationParallelism = siteIndexationParallelism;
+    }
 }
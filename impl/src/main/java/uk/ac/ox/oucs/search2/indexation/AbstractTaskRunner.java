@@ -5,130 +5,278 @@ import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.exception.BackendUnavailableException;
 import uk.ac.ox.oucs.search2.indexation.exception.MultipleTasksException;
 import uk.ac.ox.oucs.search2.indexation.exception.TaskException;
 import uk.ac.ox.oucs.search2.indexation.exception.TemporaryTaskException;
+import uk.ac.ox.oucs.search2.indexation.metrics.TaskMetrics;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Task runner putting the polling system on hold if a TemporaryTaskException has been caught and
- * requeuing the failed task.
+ * Task runner scheduling the failed tasks to be executed again later.
  * <p>
  * Assuming that every {@link Task} should be successfully executed or completely fail, a {@link TemporaryTaskException}
- * could mean that the {@link TaskHandler} can't process new tasks at the moment.
+ * means that the task could succeed later.
  * </p>
  * <p>
- * This TaskRunner will put every thread that attempt to run a indexation on hold each time a
- * TemporaryTaskHandlingException is caught.<br />
- * The waiting time is doubled each time a Task fails with a TemporaryTaskHandlingException until it reaches
- * the {@link #maximumWaitingTime}.<br />
- * The waiting time is reset each time a indexation is successfully executed.
+ * Each task failing with a TemporaryTaskException is queued again after a delay, without blocking the other
+ * tasks.<br />
+ * The number of attempts is kept in the task, and the delay is doubled on each attempt until it reaches
+ * the {@link #maximumWaitingTime}. After {@link #maximumAttempts} the task is abandoned.
+ * </p>
+ * <p>
+ * When the backend itself is unavailable ({@link BackendUnavailableException}), every task would fail. In that case
+ * the {@link CircuitBreaker} stops the execution of new tasks until the backend is available again. Such failures
+ * don't count as attempts.<br />
+ * The runner only waits for the breaker, the availability of the backend is recorded request by request by the
+ * client talking to it.
+ * </p>
+ * <p>
+ * Multiple tasks can be run at once with {@link #runTasks(Collection)}, the failures reported by the
+ * {@link TaskHandler} are then mapped back to the original tasks, so their number of attempts is kept.
+ * </p>
+ * <p>
+ * If {@link TaskMetrics} are available, they're notified of the life cycle of every task.<br />
+ * If the {@link #taskQueuing} is a {@link TaskOwnership}, it's notified when a task won't be executed again, so
+ * other nodes of the cluster stop keeping it.
  * </p>
  *
  * @author Colin Hebert
  */
 public abstract class AbstractTaskRunner implements TaskRunner {
     private static final Logger logger = LoggerFactory.getLogger(AbstractTaskRunner.class);
-    private static final SecurityAdvisor GRANT_ALL_SECURITY_ADVISOR = new SecurityAdvisor() {
+    /**
+     * Advisor allowing the access to everything, shared with {@link IndexationThreadPoolExecutor}.
+     */
+    static final SecurityAdvisor GRANT_ALL_SECURITY_ADVISOR = new SecurityAdvisor() {
         @Override
         public SecurityAdvice isAllowed(String userId, String function, String reference) {
             return SecurityAdvice.ALLOWED;
         }
     };
     /**
-     * Waiting time when the first {@link TemporaryTaskException} occurs. (1 second)
+     * Waiting time before the first retry of a task. (1 second)
      */
     private static final int BASE_WAITING_TIME = 1000;
-    private final ReentrantLock taskRunnerLock = new ReentrantLock();
     /**
-     * Maximum wait.
+     * Maximum wait before a new attempt.
      * Set to 5 minutes by default.
      */
     private int maximumWaitingTime = 5 * 60 * 1000;
-    private int waitingTime = BASE_WAITING_TIME;
+    /**
+     * Number of attempts after which a task is abandoned.
+     */
+    private int maximumAttempts = 10;
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private ScheduledExecutorService retryScheduler;
+    private TaskMetrics taskMetrics;
     private SecurityService securityService;
     private ThreadLocalManager threadLocalManager;
     private TaskQueuing taskQueuing;
     private TaskHandler taskHandler;
 
     public void runTask(Task task) {
+        boolean successful = false;
+        Set<Task> retriedTasks = new HashSet<Task>();
+        long startTime = System.currentTimeMillis();
         try {
-            checkLockdown();
+            if (!acquirePermission(Collections.singleton(task))) {
+                retriedTasks.add(task);
+                return;
+            }
+
             // Unlock permissions so every resource is accessible
             unlockPermissions();
-
             try {
                 taskHandler.executeTask(task);
-                // The indexation was successful, reset the waiting time
-                waitingTime = BASE_WAITING_TIME;
+                successful = true;
             } catch (MultipleTasksException e) {
                 logger.warn("Some exceptions happened during the execution of '" + task + "'.", e);
-                unfoldMultipleTasksException(e);
+                unfoldMultipleTasksException(e, Collections.singleton(task), new HashSet<Task>(), retriedTasks);
             } catch (TemporaryTaskException e) {
-                taskRunnerLock.tryLock();
                 logger.warn("The task '" + task + "' couldn't be executed, try again later.", e);
-                taskQueuing.addTaskToQueue(task);
+                if (scheduleRetry(task, e instanceof BackendUnavailableException))
+                    retriedTasks.add(task);
             } catch (Exception e) {
                 logger.error("Couldn't execute '" + task + "'.", e);
-            }
-
-            if (taskRunnerLock.isHeldByCurrentThread()) {
-                lockdown();
+            } finally {
+                // Empties the content of the localThread
+                cleanLocalThread();
+                // Lock permissions as they're not used anymore
+                lockPermissions();
             }
         } finally {
-            // Empties the content of the localThread
-            cleanLocalThread();
-            // Lock permissions as they're not used anymore
-            lockPermissions();
+            if (taskMetrics != null)
+                taskMetrics.taskExecuted(task, System.currentTimeMillis() - startTime, successful);
+            tasksCompleted(Collections.singleton(task), retriedTasks);
         }
     }
 
     /**
-     * Checks if the TaskRunner is in a lockdown, waits for it to finish if it's the case.
+     * Runs multiple tasks at once, with {@link TaskHandler#executeTasks(Collection)}.
+     *
+     * @param tasks the recently dequeued tasks, about to be executed.
      */
-    private void checkLockdown() {
-        synchronized (taskRunnerLock) {
-            if (logger.isDebugEnabled())
-                logger.debug("Check if the taskRunnerLock is open");
+    public void runTasks(Collection<Task> tasks) {
+        // Tasks which failed, if only some of them did
+        Set<Task> failedTasks = null;
+        Set<Task> retriedTasks = new HashSet<Task>();
+        long startTime = System.currentTimeMillis();
+        try {
+            if (!acquirePermission(tasks)) {
+                retriedTasks.addAll(tasks);
+                return;
+            }
+
+            // Unlock permissions so every resource is accessible
+            unlockPermissions();
             try {
-                while (taskRunnerLock.isLocked()) {
-                    // Stop for a while because some tasks failed and should be run again.
-                    logger.info("TaskRunner on lockdown, waiting for a while.");
-                    taskRunnerLock.wait();
+                taskHandler.executeTasks(tasks);
+                failedTasks = Collections.emptySet();
+            } catch (MultipleTasksException e) {
+                logger.warn("Some exceptions happened during the execution of " + tasks.size() + " tasks.", e);
+                failedTasks = new HashSet<Task>();
+                unfoldMultipleTasksException(e, tasks, failedTasks, retriedTasks);
+            } catch (TemporaryTaskException e) {
+                logger.warn(tasks.size() + " tasks couldn't be executed, try again later.", e);
+                boolean backendUnavailable = e instanceof BackendUnavailableException;
+                for (Task task : tasks) {
+                    if (scheduleRetry(task, backendUnavailable))
+                        retriedTasks.add(task);
+                }
+            } catch (Exception e) {
+                logger.error("Couldn't execute " + tasks.size() + " tasks.", e);
+            } finally {
+                // Empties the content of the localThread
+                cleanLocalThread();
+                // Lock permissions as they're not used anymore
+                lockPermissions();
+            }
+        } finally {
+            if (taskMetrics != null) {
+                // The execution time is shared between the tasks
+                long executionTime = (System.currentTimeMillis() - startTime) / Math.max(tasks.size(), 1);
+                for (Task task : tasks) {
+                    taskMetrics.taskExecuted(task, executionTime, failedTasks != null && !failedTasks.contains(task));
                 }
-            } catch (InterruptedException e) {
-                logger.error("Thread interrupted while the system was on lockdown.", e);
             }
+            tasksCompleted(tasks, retriedTasks);
         }
     }
 
     /**
-     * Starts and stop a lockdown.
+     * Waits until the {@link CircuitBreaker} allows the execution of tasks.
      * <p>
-     * A lockdown is often started when a {@link TemporaryTaskException} occured.<br />
-     * Prevents other threads from polling from the queue for a while, leaving some time to recover from the
-     * TemporaryTaskException.
+     * Tasks queued again after an interruption are still reported as executed (unsuccessfully) to the
+     * {@link TaskMetrics}, so they aren't counted as running anymore.
      * </p>
+     *
+     * @param tasks tasks about to be executed, queued again if the thread is interrupted.
+     * @return true if the tasks can be executed, false if the thread has been interrupted.
      */
-    private void lockdown() {
+    private boolean acquirePermission(Collection<Task> tasks) {
         try {
-            logger.info("Tasks runner on lockdown, waiting " + waitingTime + "ms");
-            Thread.sleep(waitingTime);
-            // Multiply the waiting time by two
-            if (waitingTime <= maximumWaitingTime)
-                waitingTime <<= 1;
+            // Wait while the backend is unavailable
+            circuitBreaker.acquirePermission();
+            return true;
         } catch (InterruptedException e) {
-            logger.error("Thread interrupted while the system was on lockdown.", e);
-        } finally {
-            synchronized (taskRunnerLock) {
-                logger.info("Lockdown finished");
-                taskRunnerLock.notifyAll();
-                taskRunnerLock.unlock();
+            logger.warn("Thread interrupted while the backend was unavailable, " + tasks + " queued again.", e);
+            for (Task task : tasks) {
+                taskQueuing.addTaskToQueue(task);
+            }
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queues a failed task again after a delay depending on the number of previous attempts.
+     * <p>
+     * Attempts are only counted for {@link DefaultTask}s, as other tasks can't store them.
+     * </p>
+     *
+     * @param task               task to execute again.
+     * @param backendUnavailable true if the task failed because the backend is unavailable, in which case the
+     *                           attempt isn't counted.
+     * @return true if the task will be executed again, false if it has been abandoned.
+     */
+    private boolean scheduleRetry(final Task task, boolean backendUnavailable) {
+        String attemptsProperty = task.getProperty(DefaultTask.ATTEMPTS);
+        int attempts = (attemptsProperty != null) ? Integer.parseInt(attemptsProperty) : 0;
+        if (!backendUnavailable) {
+            attempts++;
+            if (attempts >= maximumAttempts) {
+                logger.error("The task '" + task + "' failed " + attempts + " times, it won't be executed again.");
+                return false;
             }
+            if (task instanceof DefaultTask)
+                ((DefaultTask) task).setProperty(DefaultTask.ATTEMPTS, String.valueOf(attempts));
+        }
+
+        long delay = BASE_WAITING_TIME;
+        for (int i = 1; i < attempts && delay < maximumWaitingTime; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, maximumWaitingTime);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Try to execute '" + task + "' again in " + delay + "ms");
+        taskRetryScheduled(task, delay);
+        try {
+            getRetryScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retryTask(task);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.error("Couldn't schedule '" + task + "' to be executed again.", e);
+            if (taskMetrics != null)
+                taskMetrics.taskRetryEnded(task);
+            return false;
         }
     }
 
+    /**
+     * Notifies the {@link TaskOwnership} (if the {@link #taskQueuing} is one) that tasks won't be executed again.
+     *
+     * @param tasks        executed tasks.
+     * @param retriedTasks tasks which will be executed again, and aren't completed yet.
+     */
+    private void tasksCompleted(Collection<Task> tasks, Collection<Task> retriedTasks) {
+        if (!(taskQueuing instanceof TaskOwnership))
+            return;
+
+        for (Task task : tasks) {
+            if (!retriedTasks.contains(task))
+                ((TaskOwnership) taskQueuing).taskCompleted(task);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getRetryScheduler() {
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "search2-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return retryScheduler;
+    }
+
     /**
      * Clean the local thread by removing elements that could be stored in {@link ThreadLocal}.
      */
@@ -141,24 +289,109 @@ public abstract class AbstractTaskRunner implements TaskRunner {
     /**
      * Handles every exception captured by a {@link MultipleTasksException}.
      * <p>
-     * {@link TemporaryTaskException} will cause a lockdown and queues a new task. Anything else will simply be logged.
+     * {@link TemporaryTaskException} will schedule a new task. Anything else will simply be logged.
      * </p>
      *
-     * @param mte MultipleTasksException to unfold.
+     * @param mte           MultipleTasksException to unfold.
+     * @param originalTasks tasks which were executed, a task to execute again is replaced by the matching original
+     *                      task so its number of attempts is kept.
+     * @param failedTasks   collection in which the original tasks which failed are added.
+     * @param retriedTasks  collection in which the tasks which will be executed again are added.
      */
-    private void unfoldMultipleTasksException(MultipleTasksException mte) {
+    private void unfoldMultipleTasksException(MultipleTasksException mte, Collection<Task> originalTasks,
+                                                 Collection<Task> failedTasks, Collection<Task> retriedTasks) {
         for (TaskException te : mte.getThrownExceptions()) {
             if (te instanceof TemporaryTaskException) {
-                taskRunnerLock.tryLock();
                 TemporaryTaskException tte = (TemporaryTaskException) te;
-                logger.warn("A task couldn't be executed, will try '" + tte.getNewTask() + "' later.", te);
-                taskQueuing.addTaskToQueue(tte.getNewTask());
+                Task newTask = findOriginalTask(tte.getNewTask(), originalTasks);
+                failedTasks.add(newTask);
+                logger.warn("A task couldn't be executed, will try '" + newTask + "' later.", te);
+                if (scheduleRetry(newTask, tte instanceof BackendUnavailableException))
+                    retriedTasks.add(newTask);
             } else {
                 logger.error("An exception occurred during the task execution.", te);
             }
         }
     }
 
+    /**
+     * Notifies the {@link TaskMetrics} that a task has been queued.
+     *
+     * @param task queued task.
+     */
+    protected void taskQueued(Task task) {
+        if (taskMetrics != null)
+            taskMetrics.taskQueued(task);
+    }
+
+    /**
+     * Notifies the {@link TaskMetrics} that a task has been taken from the queue.
+     *
+     * @param task        task about to be executed.
+     * @param enqueueTime time (in ms) at which the task was queued.
+     */
+    protected void taskStarted(Task task, long enqueueTime) {
+        if (taskMetrics != null)
+            taskMetrics.taskStarted(task, System.currentTimeMillis() - enqueueTime);
+    }
+
+    /**
+     * Notifies the {@link TaskMetrics} that a failed task will be queued again.
+     * <p>
+     * Called by the thread which executed the task, before the retry is scheduled.
+     * </p>
+     *
+     * @param task  failed task.
+     * @param delay time (in ms) before the task is queued again.
+     */
+    protected void taskRetryScheduled(Task task, long delay) {
+        if (taskMetrics != null)
+            taskMetrics.taskRetryScheduled(task, delay);
+    }
+
+    /**
+     * Queues a failed task again, once its delay is over.
+     * <p>
+     * The {@link TaskMetrics} are notified once the task is queued, so it's always counted as pending.
+     * </p>
+     *
+     * @param task failed task.
+     */
+    protected void retryTask(Task task) {
+        try {
+            taskQueuing.addTaskToQueue(task);
+        } finally {
+            if (taskMetrics != null)
+                taskMetrics.taskRetryEnded(task);
+        }
+    }
+
+    /**
+     * Finds the original task corresponding to a task created by the {@link TaskHandler} after a failure.
+     * <p>
+     * Both tasks match if they have the same type, creation date, document and site.
+     * </p>
+     *
+     * @param newTask       task created after a failure.
+     * @param originalTasks tasks which were executed.
+     * @return the matching original task, or the new task if none matches.
+     */
+    private static Task findOriginalTask(Task newTask, Collection<Task> originalTasks) {
+        for (Task originalTask : originalTasks) {
+            if (equals(newTask.getType(), originalTask.getType())
+                    && equals(newTask.getCreationDate(), originalTask.getCreationDate())
+                    && equals(newTask.getProperty(DefaultTask.DOCUMENT_REFERENCE),
+                    originalTask.getProperty(DefaultTask.DOCUMENT_REFERENCE))
+                    && equals(newTask.getProperty(DefaultTask.SITE_ID), originalTask.getProperty(DefaultTask.SITE_ID)))
+                return originalTask;
+        }
+        return newTask;
+    }
+
+    private static boolean equals(Object o1, Object o2) {
+        return (o1 == null) ? o2 == null : o1.equals(o2);
+    }
+
     /**
      * Gives every right to the current user.
      */
@@ -194,4 +427,20 @@ public abstract class AbstractTaskRunner implements TaskRunner {
     public void setMaximumWaitingTime(int maximumWaitingTime) {
         this.maximumWaitingTime = maximumWaitingTime;
     }
+
+    public void setTaskMetrics(TaskMetrics taskMetrics) {
+        this.taskMetrics = taskMetrics;
+    }
+
+    public void setMaximumAttempts(int maximumAttempts) {
+        this.maximumAttempts = maximumAttempts;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public synchronized void setRetryScheduler(ScheduledExecutorService retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
 }
@@ -0,0 +1,265 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Circuit breaker stopping the execution of tasks while the search backend is unavailable.
+ * <p>
+ * The breaker is closed as long as the backend works. After {@link #failureThreshold} consecutive backend failures,
+ * the breaker opens and every thread asking for a permission waits.<br />
+ * Once the open duration has elapsed, a single trial is allowed (half open state). If the trial succeeds the breaker
+ * closes again, otherwise it opens for twice as long, up to the {@link #maximumOpenDuration}.
+ * </p>
+ * <p>
+ * Results are recorded by the client sending the requests to the backend (for example
+ * {@code CircuitBreakingSolrServer}), once per request. Every request goes through {@link #isRequestAllowed()},
+ * which fails fast while the breaker is open and lets a single request through as the trial once the opening is
+ * over.<br />
+ * Threads executing tasks wait in {@link #acquirePermission()} instead. When a {@link HealthProbe} is set, the trial
+ * is made with the probe, so no task is wasted on a backend which is still down. Otherwise a single task is released
+ * at a time, and its first request is the trial.
+ * </p>
+ * <p>
+ * Waiting threads are parked on a {@link Lock} rather than on the monitor of the breaker, so virtual threads (see
+ * {@link ThreadPerTaskExecutor}) waiting for the end of an opening don't pin their carrier thread.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+    private final Lock lock = new ReentrantLock();
+    /**
+     * Signalled when the breaker opens or closes, and when the result of a trial is known.
+     */
+    private final Condition stateChanged = lock.newCondition();
+    private volatile State state = State.CLOSED;
+    private volatile int consecutiveFailures;
+    private boolean trialInProgress;
+    /**
+     * Time before which no other task is released to make the trial, when there is no {@link #healthProbe}.
+     */
+    private long nextTaskTrial;
+    private long openUntil;
+    private long openDuration;
+    /**
+     * Number of consecutive backend failures opening the breaker.
+     */
+    private int failureThreshold = 3;
+    /**
+     * Duration (in ms) of the first opening.
+     */
+    private long baseOpenDuration = 5 * 1000;
+    /**
+     * Maximum duration (in ms) of an opening.
+     */
+    private long maximumOpenDuration = 5 * 60 * 1000;
+    private HealthProbe healthProbe;
+
+    /**
+     * Waits until the breaker allows the execution of a task.
+     * <p>
+     * The task doesn't record its result, its requests to the backend are recorded by the client sending them.
+     * </p>
+     *
+     * @throws InterruptedException if the thread has been interrupted while waiting.
+     */
+    public void acquirePermission() throws InterruptedException {
+        while (state != State.CLOSED) {
+            if (!awaitTrial())
+                return;
+
+            if (probeBackend())
+                recordSuccess();
+            else
+                recordFailure();
+        }
+    }
+
+    /**
+     * Waits until the breaker is closed or until the current thread is allowed to make the trial.
+     *
+     * @return true if the current thread must run the {@link #healthProbe}, false if it can execute its task.
+     * @throws InterruptedException if the thread has been interrupted while waiting.
+     */
+    private boolean awaitTrial() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                halfOpenIfExpired(now);
+                if (state == State.CLOSED)
+                    return false;
+
+                long waitingTime = 0;
+                if (state == State.OPEN) {
+                    waitingTime = openUntil - now;
+                } else if (!trialInProgress && healthProbe != null) {
+                    trialInProgress = true;
+                    return true;
+                } else if (!trialInProgress && now >= nextTaskTrial) {
+                    // The first request of this task will be the trial, if it never sends one another task is released
+                    nextTaskTrial = now + baseOpenDuration;
+                    return false;
+                } else if (!trialInProgress) {
+                    waitingTime = nextTaskTrial - now;
+                }
+                // Wait for the end of the opening, or for the result of the trial
+                if (waitingTime > 0)
+                    stateChanged.await(waitingTime, TimeUnit.MILLISECONDS);
+                else
+                    stateChanged.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to the half open state once the opening is over.
+     *
+     * @param now current time (in ms).
+     */
+    private void halfOpenIfExpired(long now) {
+        if (state == State.OPEN && now >= openUntil) {
+            logger.info("Circuit breaker half open, trying to reach the backend");
+            state = State.HALF_OPEN;
+            trialInProgress = false;
+            nextTaskTrial = 0;
+        }
+    }
+
+    private boolean probeBackend() {
+        try {
+            return healthProbe.isBackendAvailable();
+        } catch (RuntimeException e) {
+            logger.warn("The health probe failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Records a request which reached the backend, closing the breaker if it was half open.
+     */
+    public void recordSuccess() {
+        if (state == State.CLOSED && consecutiveFailures == 0)
+            return;
+
+        lock.lock();
+        try {
+            // Requests sent before the opening don't prove that the backend is available again
+            if (state == State.OPEN)
+                return;
+            consecutiveFailures = 0;
+            trialInProgress = false;
+            if (state == State.HALF_OPEN) {
+                logger.info("The backend is available again, circuit breaker closed");
+                state = State.CLOSED;
+                openDuration = 0;
+                stateChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a request which failed because the backend is unavailable.
+     */
+    public void recordFailure() {
+        lock.lock();
+        try {
+            consecutiveFailures++;
+            trialInProgress = false;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                openDuration = (openDuration == 0)
+                        ? baseOpenDuration : Math.min(openDuration * 2, maximumOpenDuration);
+                openUntil = System.currentTimeMillis() + openDuration;
+                state = State.OPEN;
+                logger.warn("The backend is unavailable, circuit breaker open for " + openDuration + "ms");
+                stateChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a request which failed for a reason unrelated to the availability of the backend.
+     * <p>
+     * The state of the breaker doesn't change, but if the request was the trial another request can make it.
+     * </p>
+     */
+    public void recordInconclusive() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN && trialInProgress) {
+                trialInProgress = false;
+                stateChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * Checks without waiting whether a request can be sent to the backend.
+     * <p>
+     * Requests are refused while the breaker is open. Once the opening is over, the breaker becomes half open and
+     * a single request is allowed as the trial, the others are refused until its result is known.<br />
+     * Every allowed request must be followed by a call to {@link #recordSuccess()}, {@link #recordFailure()} or
+     * {@link #recordInconclusive()}.
+     * </p>
+     *
+     * @return true if the request can be sent, false if it should fail immediately.
+     */
+    public boolean isRequestAllowed() {
+        if (state == State.CLOSED)
+            return true;
+        lock.lock();
+        try {
+            halfOpenIfExpired(System.currentTimeMillis());
+            if (state == State.CLOSED)
+                return true;
+            if (state == State.HALF_OPEN && !trialInProgress) {
+                trialInProgress = true;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setBaseOpenDuration(long baseOpenDuration) {
+        this.baseOpenDuration = baseOpenDuration;
+    }
+
+    public void setMaximumOpenDuration(long maximumOpenDuration) {
+        this.maximumOpenDuration = maximumOpenDuration;
+    }
+
+    public void setHealthProbe(HealthProbe healthProbe) {
+        this.healthProbe = healthProbe;
+    }
+
+    private static enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+}
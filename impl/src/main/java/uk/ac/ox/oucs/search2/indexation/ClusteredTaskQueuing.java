@@ -0,0 +1,641 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.metrics.CoalescingMetricsProvider;
+import uk.ac.ox.oucs.search2.indexation.metrics.QueueDepthProvider;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queuing system sharing the tasks generated from events between the nodes of a Sakai cluster, so each of these
+ * tasks is executed by a single node.
+ * <p>
+ * Every node receives the same events, and would otherwise queue the same tasks. Instead, each task is identified by
+ * a key (its document, its site or its type) and the keys are spread over the live nodes with a consistent hash
+ * ring. The event manager hands every task generated from an event to {@link #acceptTask(Task)}, and only queues
+ * the tasks owned by the current node.<br />
+ * Tasks added directly with {@link #addTaskToQueue(Task)} (by a service, an administrator or a retry) only exist on
+ * the current node, so they're always queued in the underlying {@link #taskQueuing}.
+ * </p>
+ * <p>
+ * Live nodes are tracked in the {@code SEARCH2_NODE} table, each node updating its heartbeat every
+ * {@link #heartbeatInterval}. A node without heartbeat for {@link #nodeTimeout} is considered dead and its keys are
+ * taken over by the other nodes. A node shutting down properly leaves the table immediately.<br />
+ * Each node is placed {@link #virtualNodeCount} times on the ring, so the keys are evenly distributed and only the
+ * keys of a leaving node change owner.
+ * </p>
+ * <p>
+ * A task executed twice is better than a lost task.<br />
+ * Until the list of live nodes is known, if the last heartbeat failed, or if no heartbeat succeeded for
+ * {@link #nodeTimeout}, every task is owned locally.<br />
+ * Each node notices a change of the live nodes on its own heartbeat, so for {@link #rebalancePeriod} after a change
+ * a node also keeps the tasks it owned with the previous ring.
+ * </p>
+ * <p>
+ * Tasks owned by other nodes aren't dropped, each node keeps them on standby with their owner.<br />
+ * The owner tracks the tasks it accepted until the task runner reports them as completed, and publishes with its
+ * heartbeat a date before which every task it accepted has been completed. Standby tasks created before that date
+ * are forgotten.<br />
+ * When a node dies or leaves, each remaining node queues the standby tasks of that node that it owns with the new
+ * ring, and keeps the other ones on standby for their new owner. Tasks queued, running or waiting for a retry on the
+ * dead node are executed again, tasks completed since its last heartbeat may be executed twice.<br />
+ * Events reach the nodes with some delay, so the published date is never more recent than {@link #eventDelay}
+ * before the heartbeat. At most {@link #maximumStandbyTasks} are kept on standby, the oldest ones are dropped.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ClusteredTaskQueuing implements TaskQueuing, TaskOwnership, QueueDepthProvider, CoalescingMetricsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(ClusteredTaskQueuing.class);
+    private static final String NODE_TABLE = "SEARCH2_NODE";
+    private static final String CREATE_TABLE = "CREATE TABLE " + NODE_TABLE
+            + " (NODE_ID VARCHAR(255) NOT NULL PRIMARY KEY, LAST_HEARTBEAT BIGINT NOT NULL,"
+            + " COMPLETED_BEFORE BIGINT NOT NULL)";
+    private static final String UPDATE_HEARTBEAT = "UPDATE " + NODE_TABLE
+            + " SET LAST_HEARTBEAT = ?, COMPLETED_BEFORE = ? WHERE NODE_ID = ?";
+    private static final String INSERT_NODE = "INSERT INTO " + NODE_TABLE
+            + " (NODE_ID, LAST_HEARTBEAT, COMPLETED_BEFORE) VALUES (?, ?, ?)";
+    private static final String DELETE_NODE = "DELETE FROM " + NODE_TABLE + " WHERE NODE_ID = ?";
+    private static final String DELETE_DEAD_NODES = "DELETE FROM " + NODE_TABLE + " WHERE LAST_HEARTBEAT < ?";
+    private static final String SELECT_LIVE_NODES = "SELECT NODE_ID, COMPLETED_BEFORE FROM " + NODE_TABLE
+            + " WHERE LAST_HEARTBEAT >= ?";
+    private static final Ring EMPTY_RING = new Ring(new TreeSet<String>(), new TreeMap<Long, String>(), null, 0);
+    private TaskQueuing taskQueuing;
+    private SqlService sqlService;
+    private ServerConfigurationService serverConfigurationService;
+    private ScheduledExecutorService heartbeatScheduler;
+    private String nodeId;
+    private boolean tableCreated;
+    /**
+     * Consistent hash ring, replaced every time the live nodes change.
+     */
+    private volatile Ring ring = EMPTY_RING;
+    private volatile long lastSuccessfulHeartbeat;
+    /**
+     * Creation dates of the accepted tasks not completed yet, mapped by task key.
+     */
+    private final Map<String, SortedSet<Long>> acceptedTasks = new HashMap<String, SortedSet<Long>>();
+    /**
+     * Tasks owned by other nodes, from the oldest to the most recent.
+     */
+    private final LinkedList<StandbyTask> standbyTasks = new LinkedList<StandbyTask>();
+    private final AtomicLong droppedStandbyTasks = new AtomicLong();
+    /**
+     * Interval (in ms) between two heartbeats.
+     */
+    private long heartbeatInterval = 10 * 1000;
+    /**
+     * Time (in ms) without heartbeat after which a node is considered dead.
+     * <p>
+     * It must be a few times longer than the {@link #heartbeatInterval}, and longer than the clock difference between
+     * nodes.
+     * </p>
+     */
+    private long nodeTimeout = 60 * 1000;
+    /**
+     * Time (in ms) after a change of the live nodes during which the previous owners keep their tasks.
+     * <p>
+     * It must be longer than the {@link #heartbeatInterval}, so every node has noticed the change.
+     * </p>
+     */
+    private long rebalancePeriod = 20 * 1000;
+    /**
+     * Number of positions of each node on the hash ring.
+     */
+    private int virtualNodeCount = 100;
+    /**
+     * Maximum time (in ms) between the creation of an event and the moment every node has received it.
+     */
+    private long eventDelay = 60 * 1000;
+    /**
+     * Maximum number of tasks owned by other nodes kept on standby.
+     */
+    private int maximumStandbyTasks = 100000;
+
+    public void init() {
+        if (nodeId == null)
+            nodeId = serverConfigurationService.getServerIdInstance();
+        logger.info("Join the indexation cluster as '" + nodeId + "'");
+
+        heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search2-cluster-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        heartbeatScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, 0, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() {
+        heartbeatScheduler.shutdownNow();
+        try {
+            executeUpdate(DELETE_NODE, nodeId);
+            logger.info("Left the indexation cluster");
+        } catch (SQLException e) {
+            logger.warn("Couldn't leave the indexation cluster, the other nodes will wait for the timeout", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The task doesn't come from an event, so it's always queued by the current node.
+     * </p>
+     *
+     * @param task task to add to the queue.
+     */
+    @Override
+    public void addTaskToQueue(Task task) {
+        taskQueuing.addTaskToQueue(task);
+    }
+
+    @Override
+    public boolean isOwnedLocally(Task task) {
+        return getRemoteOwner(task, hash(getTaskKey(task))) == null;
+    }
+
+    @Override
+    public boolean acceptTask(Task task) {
+        String taskKey = getTaskKey(task);
+        long taskHash = hash(taskKey);
+        String owner = getRemoteOwner(task, taskHash);
+        if (owner == null) {
+            trackTask(taskKey, task);
+            return true;
+        }
+
+        synchronized (standbyTasks) {
+            if (standbyTasks.size() >= maximumStandbyTasks) {
+                standbyTasks.removeFirst();
+                long dropped = droppedStandbyTasks.incrementAndGet();
+                if (dropped == 1 || dropped % 1000 == 0)
+                    logger.warn("Too many tasks on standby, the oldest one dropped (" + dropped + " dropped so far)");
+            }
+            standbyTasks.addLast(new StandbyTask(task, taskHash, owner));
+        }
+        return false;
+    }
+
+    @Override
+    public void taskCompleted(Task task) {
+        String taskKey = getTaskKey(task);
+        long creationTime = task.getCreationDate().getTime();
+        synchronized (acceptedTasks) {
+            SortedSet<Long> creationTimes = acceptedTasks.get(taskKey);
+            if (creationTimes == null)
+                return;
+            // Older tasks have been coalesced with this one
+            creationTimes.headSet(creationTime + 1).clear();
+            if (creationTimes.isEmpty())
+                acceptedTasks.remove(taskKey);
+        }
+    }
+
+    /**
+     * Gets the node executing a task if it isn't the current node.
+     *
+     * @param task     task generated from an event.
+     * @param taskHash hash of the task key.
+     * @return the identifier of the owner, or null if the task is owned locally.
+     */
+    private String getRemoteOwner(Task task, long taskHash) {
+        Ring currentRing = ring;
+        long now = System.currentTimeMillis();
+        // Without recent information on the cluster, the other nodes may be dead
+        if (currentRing.positions.isEmpty() || now - lastSuccessfulHeartbeat > nodeTimeout)
+            return null;
+
+        String owner = getOwner(currentRing.positions, taskHash);
+        if (nodeId.equals(owner))
+            return null;
+        // Other nodes may still use the previous ring, where the current node owned the task
+        if (currentRing.previousPositions != null && now - currentRing.changeTime < rebalancePeriod
+                && nodeId.equals(getOwner(currentRing.previousPositions, taskHash)))
+            return null;
+
+        if (logger.isDebugEnabled())
+            logger.debug("'" + task + "' kept on standby, it will be executed by '" + owner + "'");
+        return owner;
+    }
+
+    private void trackTask(String taskKey, Task task) {
+        synchronized (acceptedTasks) {
+            SortedSet<Long> creationTimes = acceptedTasks.get(taskKey);
+            if (creationTimes == null) {
+                creationTimes = new TreeSet<Long>();
+                acceptedTasks.put(taskKey, creationTimes);
+            }
+            creationTimes.add(task.getCreationDate().getTime());
+        }
+    }
+
+    /**
+     * Gets the date before which every task accepted by the current node has been completed.
+     *
+     * @param now current time.
+     * @return the creation time of the oldest accepted task not completed yet, at most {@link #eventDelay} before now.
+     */
+    private long getCompletedBefore(long now) {
+        long completedBefore = now - eventDelay;
+        synchronized (acceptedTasks) {
+            for (SortedSet<Long> creationTimes : acceptedTasks.values()) {
+                completedBefore = Math.min(completedBefore, creationTimes.first());
+            }
+        }
+        return completedBefore;
+    }
+
+    /**
+     * Forgets the standby tasks completed by their owner, and takes over the tasks of the nodes which left.
+     *
+     * @param liveNodes   date before which each live node completed its tasks, mapped by node.
+     * @param currentRing ring of the live nodes.
+     */
+    private void takeOverStandbyTasks(Map<String, Long> liveNodes, Ring currentRing) {
+        List<Task> takenOverTasks = new ArrayList<Task>();
+        synchronized (standbyTasks) {
+            for (Iterator<StandbyTask> iterator = standbyTasks.iterator(); iterator.hasNext(); ) {
+                StandbyTask standbyTask = iterator.next();
+                Long completedBefore = liveNodes.get(standbyTask.owner);
+                if (completedBefore != null) {
+                    if (standbyTask.task.getCreationDate().getTime() < completedBefore)
+                        iterator.remove();
+                    continue;
+                }
+
+                String newOwner = getOwner(currentRing.positions, standbyTask.taskHash);
+                if (nodeId.equals(newOwner)) {
+                    iterator.remove();
+                    takenOverTasks.add(standbyTask.task);
+                } else {
+                    standbyTask.owner = newOwner;
+                }
+            }
+        }
+
+        if (takenOverTasks.isEmpty())
+            return;
+        logger.info("Take over " + takenOverTasks.size() + " tasks of the nodes which left the cluster");
+        for (Task task : takenOverTasks) {
+            trackTask(getTaskKey(task), task);
+            taskQueuing.addTaskToQueue(task);
+        }
+    }
+
+    /**
+     * Gets the node placed right after a hash on the ring.
+     *
+     * @param positions positions of the nodes on the ring.
+     * @param taskHash  hash of the task key.
+     * @return the identifier of the owner, or null if the ring is empty.
+     */
+    private static String getOwner(SortedMap<Long, String> positions, long taskHash) {
+        if (positions.isEmpty())
+            return null;
+
+        SortedMap<Long, String> tailMap = positions.tailMap(taskHash);
+        return tailMap.isEmpty() ? positions.get(positions.firstKey()) : tailMap.get(tailMap.firstKey());
+    }
+
+    /**
+     * Gets the key used to assign a task to a node.
+     * <p>
+     * Tasks related to the same document or site have the same key, so they're executed in order by the same node.
+     * Other tasks are identified by their type.
+     * </p>
+     *
+     * @param task task to identify.
+     * @return the key of the task.
+     */
+    private static String getTaskKey(Task task) {
+        String documentReference = task.getProperty(DefaultTask.DOCUMENT_REFERENCE);
+        if (documentReference != null)
+            return "document:" + documentReference;
+        String siteId = task.getProperty(DefaultTask.SITE_ID);
+        if (siteId != null)
+            return "site:" + siteId;
+        return "type:" + task.getType();
+    }
+
+    /**
+     * Updates the heartbeat of the current node, removes the dead nodes and rebuilds the ring if the live nodes
+     * changed.
+     * <p>
+     * The standby tasks are then forgotten or taken over depending on the progress of their owner.
+     * </p>
+     * <p>
+     * If the database can't be reached, the ring is emptied so every task is owned locally until the next
+     * successful heartbeat.
+     * </p>
+     */
+    synchronized void heartbeat() {
+        long now = System.currentTimeMillis();
+        try {
+            if (!tableCreated) {
+                createTableIfMissing();
+                tableCreated = true;
+            }
+            long completedBefore = getCompletedBefore(now);
+            if (executeUpdate(UPDATE_HEARTBEAT, now, completedBefore, nodeId) == 0)
+                executeUpdate(INSERT_NODE, nodeId, now, completedBefore);
+            executeUpdate(DELETE_DEAD_NODES, now - nodeTimeout);
+
+            Map<String, Long> liveNodes = selectLiveNodes(now - nodeTimeout);
+            // The current node is alive even if the database clock disagrees
+            liveNodes.put(nodeId, completedBefore);
+            SortedSet<String> currentNodes = new TreeSet<String>(liveNodes.keySet());
+            Ring currentRing = ring;
+            if (!currentNodes.equals(currentRing.nodes)) {
+                logger.info("Indexation cluster changed, live nodes: " + currentNodes);
+                currentRing = new Ring(currentNodes, buildRing(currentNodes), currentRing.positions, now);
+                ring = currentRing;
+            }
+            lastSuccessfulHeartbeat = now;
+
+            takeOverStandbyTasks(liveNodes, currentRing);
+        } catch (Exception e) {
+            if (ring != EMPTY_RING)
+                logger.error("Couldn't update the heartbeat of '" + nodeId + "', every task will be executed locally",
+                        e);
+            else
+                logger.error("Couldn't update the heartbeat of '" + nodeId + "'", e);
+            ring = EMPTY_RING;
+        }
+    }
+
+    private SortedMap<Long, String> buildRing(SortedSet<String> nodes) {
+        SortedMap<Long, String> newRing = new TreeMap<Long, String>();
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodeCount; i++) {
+                newRing.put(hash(node + '#' + i), node);
+            }
+        }
+        return newRing;
+    }
+
+    /**
+     * Hashes a key with MD5, the first 8 bytes being used as a position on the ring.
+     *
+     * @param key key to hash.
+     * @return the position of the key on the ring.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 isn't available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 isn't available", e);
+        }
+    }
+
+    private void createTableIfMissing() throws SQLException {
+        Connection connection = sqlService.borrowConnection();
+        try {
+            DatabaseMetaData metaData = connection.getMetaData();
+            if (tableExists(metaData))
+                return;
+
+            logger.info("Create the table " + NODE_TABLE);
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(CREATE_TABLE);
+                commit(connection);
+            } catch (SQLException e) {
+                // Another node may have created the table at the same time
+                if (!connection.getAutoCommit())
+                    connection.rollback();
+                if (!tableExists(metaData))
+                    throw e;
+            } finally {
+                statement.close();
+            }
+        } finally {
+            sqlService.returnConnection(connection);
+        }
+    }
+
+    private static boolean tableExists(DatabaseMetaData metaData) throws SQLException {
+        // Some databases store unquoted names in lower case
+        return tableExists(metaData, NODE_TABLE) || tableExists(metaData, NODE_TABLE.toLowerCase());
+    }
+
+    private static boolean tableExists(DatabaseMetaData metaData, String tableName) throws SQLException {
+        ResultSet tables = metaData.getTables(null, null, tableName, null);
+        try {
+            return tables.next();
+        } finally {
+            tables.close();
+        }
+    }
+
+    private int executeUpdate(String sql, Object... parameters) throws SQLException {
+        Connection connection = sqlService.borrowConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+                int updatedRows = statement.executeUpdate();
+                commit(connection);
+                return updatedRows;
+            } finally {
+                statement.close();
+            }
+        } finally {
+            sqlService.returnConnection(connection);
+        }
+    }
+
+    private Map<String, Long> selectLiveNodes(long minimumHeartbeat) throws SQLException {
+        Connection connection = sqlService.borrowConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement(SELECT_LIVE_NODES);
+            try {
+                statement.setLong(1, minimumHeartbeat);
+                ResultSet resultSet = statement.executeQuery();
+                Map<String, Long> nodes = new HashMap<String, Long>();
+                while (resultSet.next()) {
+                    nodes.put(resultSet.getString(1), resultSet.getLong(2));
+                }
+                resultSet.close();
+                return nodes;
+            } finally {
+                statement.close();
+            }
+        } finally {
+            sqlService.returnConnection(connection);
+        }
+    }
+
+    private static void commit(Connection connection) throws SQLException {
+        if (!connection.getAutoCommit())
+            connection.commit();
+    }
+
+    /**
+     * Gets the nodes currently sharing the tasks.
+     *
+     * @return the identifiers of the live nodes.
+     */
+    public SortedSet<String> getLiveNodes() {
+        return Collections.unmodifiableSortedSet(ring.nodes);
+    }
+
+    /**
+     * Gets the number of tasks owned by other nodes and kept on standby.
+     *
+     * @return the number of standby tasks.
+     */
+    public int getStandbyTaskCount() {
+        synchronized (standbyTasks) {
+            return standbyTasks.size();
+        }
+    }
+
+    /**
+     * Gets the number of standby tasks dropped because too many tasks were on standby.
+     *
+     * @return the number of dropped standby tasks.
+     */
+    public long getDroppedStandbyTaskCount() {
+        return droppedStandbyTasks.get();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        if (taskQueuing instanceof QueueDepthProvider)
+            return ((QueueDepthProvider) taskQueuing).getQueueDepths();
+        else
+            return Collections.emptyMap();
+    }
+
+    @Override
+    public long getCollapsedTaskCount() {
+        if (taskQueuing instanceof CoalescingMetricsProvider)
+            return ((CoalescingMetricsProvider) taskQueuing).getCollapsedTaskCount();
+        else
+            return -1;
+    }
+
+    @Override
+    public int getPendingCoalescedTaskCount() {
+        if (taskQueuing instanceof CoalescingMetricsProvider)
+            return ((CoalescingMetricsProvider) taskQueuing).getPendingCoalescedTaskCount();
+        else
+            return -1;
+    }
+
+    public void setTaskQueuing(TaskQueuing taskQueuing) {
+        this.taskQueuing = taskQueuing;
+    }
+
+    public void setSqlService(SqlService sqlService) {
+        this.sqlService = sqlService;
+    }
+
+    public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+        this.serverConfigurationService = serverConfigurationService;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public void setNodeTimeout(long nodeTimeout) {
+        this.nodeTimeout = nodeTimeout;
+    }
+
+    public void setVirtualNodeCount(int virtualNodeCount) {
+        this.virtualNodeCount = virtualNodeCount;
+    }
+
+    public void setRebalancePeriod(long rebalancePeriod) {
+        this.rebalancePeriod = rebalancePeriod;
+    }
+
+    public void setEventDelay(long eventDelay) {
+        this.eventDelay = eventDelay;
+    }
+
+    public void setMaximumStandbyTasks(int maximumStandbyTasks) {
+        this.maximumStandbyTasks = maximumStandbyTasks;
+    }
+
+    /**
+     * Task owned by another node, with the node expected to execute it.
+     */
+    private static final class StandbyTask {
+        private final Task task;
+        private final long taskHash;
+        private String owner;
+
+        private StandbyTask(Task task, long taskHash, String owner) {
+            this.task = task;
+            this.taskHash = taskHash;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Live nodes and their positions on the hash ring, with the positions used before the last change.
+     */
+    private static final class Ring {
+        private final SortedSet<String> nodes;
+        private final SortedMap<Long, String> positions;
+        private final SortedMap<Long, String> previousPositions;
+        private final long changeTime;
+
+        private Ring(SortedSet<String> nodes, SortedMap<Long, String> positions,
+                     SortedMap<Long, String> previousPositions, long changeTime) {
+            this.nodes = nodes;
+            this.positions = positions;
+            this.previousPositions = previousPositions;
+            this.changeTime = changeTime;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package uk.ac.ox.oucs.search2.indexation;
 
 import org.joda.time.DateTime;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -34,6 +35,10 @@ public class DefaultTask implements Task {
      * Property name for the unique identifier of a site.
      */
     public static final String SITE_ID = DefaultTask.class.getCanonicalName() + ".siteId";
+    /**
+     * Property name for the number of failed attempts to execute the task.
+     */
+    public static final String ATTEMPTS = DefaultTask.class.getCanonicalName() + ".attempts";
     private final String type;
     private final DateTime creationDate;
     private final Map<String, String> properties = new HashMap<String, String>();
@@ -91,6 +96,15 @@ public class DefaultTask implements Task {
         return properties.get(propertyName);
     }
 
+    /**
+     * Gets every property of the task.
+     *
+     * @return an unmodifiable view of the properties.
+     */
+    public Map<String, String> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+
     /**
      * Sets a property.
      *
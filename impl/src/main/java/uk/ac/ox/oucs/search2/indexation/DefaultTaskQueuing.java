@@ -1,8 +1,26 @@
 package uk.ac.ox.oucs.search2.indexation;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.metrics.CoalescingMetricsProvider;
+import uk.ac.ox.oucs.search2.indexation.metrics.QueueDepthProvider;
+
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Default queuing system, based on {@link ExecutorService}.
@@ -19,10 +37,50 @@ import java.util.concurrent.ExecutorService;
  * For this reason, the {@link #simpleTasksExecutor} must have a bigger queue and work faster than
  * {@link #heavyTasksExecutor}
  * </p>
+ * <p>
+ * Tasks related to the same document (or the same site) are coalesced while they're waiting in the queue.<br />
+ * Only one task per document is queued at a time, a task at least as recent replaces the pending one and an older
+ * task is dropped, whatever their types.<br />
+ * The task actually executed is the one pending when the executor gets to it. Only this task is reported as queued
+ * to the metrics, replaced and dropped tasks are counted in {@link #getCollapsedTaskCount()}.
+ * </p>
+ * <p>
+ * If the {@link #batchSize} is greater than 1, simple tasks aren't given to the {@link #simpleTasksExecutor} but
+ * executed in groups by batch workers.<br />
+ * Each worker has its own bounded queue, and takes up to {@link #batchSize} tasks from it, waiting at most
+ * {@link #batchWaitingTime} for the group to be complete, and runs them at once with {@link #runTasks(Collection)}.
+ * <br />
+ * As with the {@link StripedExecutor}, tasks related to the same document always go to the same worker, so they're
+ * executed in order even though groups run concurrently.
+ * </p>
  *
  * @author Colin Hebert
  */
-public class DefaultTaskQueuing extends AbstractTaskRunner implements TaskQueuing {
+public class DefaultTaskQueuing extends AbstractTaskRunner
+        implements TaskQueuing, QueueDepthProvider, CoalescingMetricsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(DefaultTaskQueuing.class);
+    private static final String INDEX_DOCUMENT = DefaultTask.Type.INDEX_DOCUMENT.getTypeName();
+    private static final String UNINDEX_DOCUMENT = DefaultTask.Type.UNINDEX_DOCUMENT.getTypeName();
+    private static final String INDEX_SITE = DefaultTask.Type.INDEX_SITE.getTypeName();
+    private static final String UNINDEX_SITE = DefaultTask.Type.UNINDEX_SITE.getTypeName();
+    /**
+     * Tasks waiting to be executed, identified by the document or the site they're related to.
+     */
+    private final ConcurrentMap<String, Task> pendingTasks = new ConcurrentHashMap<String, Task>();
+    /**
+     * Number of tasks which were replaced or dropped because a task for the same document was already pending.
+     */
+    private final AtomicLong collapsedTaskCount = new AtomicLong();
+    /**
+     * Simple tasks waiting to be executed in a group, one queue per batch worker.
+     */
+    private final List<BlockingQueue<QueuedTask>> batchQueues = new ArrayList<BlockingQueue<QueuedTask>>();
+    private final AtomicInteger nextBatchQueue = new AtomicInteger();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    /**
+     * Whether tasks related to the same document or site are coalesced.
+     */
+    private boolean coalescingEnabled = true;
     private Collection<String> simpleTaskTypes = Collections.emptyList();
     /**
      * Executor with a large backlog handling very simple tasks (index document/remove document).
@@ -35,8 +93,54 @@ public class DefaultTaskQueuing extends AbstractTaskRunner implements TaskQueuin
      * Executor used for heavy tasks that will probably be split in sub-tasks.
      */
     private ExecutorService heavyTasksExecutor;
+    /**
+     * Maximum number of simple tasks executed at once, 1 to execute them one by one.
+     */
+    private int batchSize = 1;
+    /**
+     * Maximum time (in ms) spent waiting for more tasks once a group of tasks has been started.
+     */
+    private long batchWaitingTime = 100;
+    /**
+     * Number of threads executing groups of simple tasks.
+     */
+    private int batchWorkers = 2;
+    /**
+     * Maximum number of simple tasks waiting in the queue of each batch worker.
+     */
+    private int batchQueueCapacity = 10000;
+
+    public void init() {
+        if (batchSize <= 1)
+            return;
+
+        for (int i = 0; i < batchWorkers; i++) {
+            final BlockingQueue<QueuedTask> batchQueue = new LinkedBlockingQueue<QueuedTask>(batchQueueCapacity);
+            batchQueues.add(batchQueue);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            Collection<Task> tasks = takeTasks(batchQueue);
+                            if (!tasks.isEmpty())
+                                runTasks(tasks);
+                        }
+                    } catch (InterruptedException e) {
+                        logger.info("Batch worker stopped");
+                    }
+                }
+            }, "search2-batch-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
 
     public void destroy() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
         simpleTasksExecutor.shutdownNow();
         heavyTasksExecutor.shutdownNow();
     }
@@ -51,11 +155,192 @@ public class DefaultTaskQueuing extends AbstractTaskRunner implements TaskQueuin
      */
     @Override
     public void addTaskToQueue(Task task) {
-        RunnableTask rt = new RunnableTask(task);
-        if (simpleTaskTypes.contains(task.getType()))
-            simpleTasksExecutor.execute(rt);
+        String coalescingKey = coalescingEnabled ? getCoalescingKey(task) : null;
+        if (coalescingKey == null) {
+            taskQueued(task);
+            execute(task, new RunnableTask(task));
+            return;
+        }
+
+        while (true) {
+            Task pendingTask = pendingTasks.putIfAbsent(coalescingKey, task);
+            if (pendingTask == null) {
+                taskQueued(task);
+                try {
+                    execute(task, new CoalescedRunnableTask(coalescingKey));
+                } catch (RuntimeException e) {
+                    // Don't block the future tasks of this document if the executor rejected the task
+                    pendingTasks.remove(coalescingKey, task);
+                    throw e;
+                }
+                return;
+            } else if (!supersedes(task, pendingTask)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("'" + task + "' dropped, '" + pendingTask + "' is already pending");
+                collapsedTaskCount.incrementAndGet();
+                return;
+            } else if (pendingTasks.replace(coalescingKey, pendingTask, task)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("'" + pendingTask + "' replaced by '" + task + "'");
+                collapsedTaskCount.incrementAndGet();
+                return;
+            }
+            // The pending task has been taken by the executor in the meantime, try again
+        }
+    }
+
+    private void execute(Task task, QueuedTask queuedTask) {
+        if (simpleTaskTypes.contains(task.getType())) {
+            if (batchSize > 1)
+                addToBatchQueue(queuedTask);
+            else
+                simpleTasksExecutor.execute(queuedTask);
+        } else {
+            heavyTasksExecutor.execute(queuedTask);
+        }
+    }
+
+    /**
+     * Adds a simple task to the queue of a batch worker.
+     * <p>
+     * The worker is selected with the key of the task, so tasks related to the same document are never executed by
+     * two workers at the same time. Tasks without key are spread over every worker.
+     * </p>
+     *
+     * @param queuedTask task to execute in a group.
+     * @throws RejectedExecutionException if the queue of the worker is full.
+     */
+    private void addToBatchQueue(QueuedTask queuedTask) {
+        Object key = queuedTask.getStripeKey();
+        int index;
+        if (key != null)
+            index = StripedExecutor.stripeIndex(key, batchQueues.size());
         else
-            heavyTasksExecutor.execute(rt);
+            index = (nextBatchQueue.getAndIncrement() & Integer.MAX_VALUE) % batchQueues.size();
+
+        if (!batchQueues.get(index).offer(queuedTask))
+            throw new RejectedExecutionException("Too many tasks waiting to be executed in a group, '" + queuedTask
+                    + "' rejected");
+    }
+
+    /**
+     * Waits for simple tasks and takes up to {@link #batchSize} of them.
+     * <p>
+     * Once a first task is available, the worker waits at most {@link #batchWaitingTime} for the other tasks.
+     * </p>
+     *
+     * @param batchQueue queue of the worker.
+     * @return tasks to execute, possibly none if every task taken was coalesced in the meantime.
+     * @throws InterruptedException if the worker has been interrupted while waiting.
+     */
+    private Collection<Task> takeTasks(BlockingQueue<QueuedTask> batchQueue) throws InterruptedException {
+        List<QueuedTask> queuedTasks = new ArrayList<QueuedTask>(batchSize);
+        queuedTasks.add(batchQueue.take());
+        long deadline = System.currentTimeMillis() + batchWaitingTime;
+        while (queuedTasks.size() < batchSize) {
+            batchQueue.drainTo(queuedTasks, batchSize - queuedTasks.size());
+            long remainingTime = deadline - System.currentTimeMillis();
+            if (queuedTasks.size() >= batchSize || remainingTime <= 0)
+                break;
+            QueuedTask queuedTask = batchQueue.poll(remainingTime, TimeUnit.MILLISECONDS);
+            if (queuedTask == null)
+                break;
+            queuedTasks.add(queuedTask);
+        }
+
+        List<Task> tasks = new ArrayList<Task>(queuedTasks.size());
+        for (QueuedTask queuedTask : queuedTasks) {
+            Task task = queuedTask.takeTask();
+            if (task != null) {
+                taskStarted(task, queuedTask.enqueueTime);
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Striped executors and batch workers give the depth of each stripe or worker queue ({@code simple[0]},
+     * {@code batch[0]}...), so a document flooding a single stripe is visible.
+     * </p>
+     */
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> queueDepths = new LinkedHashMap<String, Integer>();
+        putQueueDepths(queueDepths, "simple", simpleTasksExecutor);
+        putQueueDepths(queueDepths, "heavy", heavyTasksExecutor);
+        for (int i = 0; i < batchQueues.size(); i++) {
+            queueDepths.put("batch[" + i + "]", batchQueues.get(i).size());
+        }
+        return queueDepths;
+    }
+
+    /**
+     * Adds the number of Runnables waiting in an executor, or in each of its stripes.
+     *
+     * @param queueDepths depths of the queues, by name of queue.
+     * @param name        name of the executor.
+     * @param executor    executor to check.
+     */
+    private static void putQueueDepths(Map<String, Integer> queueDepths, String name, ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            queueDepths.put(name, ((ThreadPoolExecutor) executor).getQueue().size());
+        } else if (executor instanceof StripedExecutor) {
+            int[] stripeDepths = ((StripedExecutor) executor).getQueueDepths();
+            for (int i = 0; i < stripeDepths.length; i++) {
+                queueDepths.put(name + "[" + i + "]", stripeDepths[i]);
+            }
+        } else if (executor instanceof ThreadPerTaskExecutor) {
+            queueDepths.put(name, ((ThreadPerTaskExecutor) executor).getBacklogSize());
+        } else {
+            queueDepths.put(name, -1);
+        }
+    }
+
+    /**
+     * Gets the key identifying tasks which can be coalesced.
+     *
+     * @param task task to identify.
+     * @return the key of the task, or null if the task can't be coalesced.
+     */
+    private static String getCoalescingKey(Task task) {
+        String type = task.getType();
+        if (INDEX_DOCUMENT.equals(type) || UNINDEX_DOCUMENT.equals(type)) {
+            String reference = task.getProperty(DefaultTask.DOCUMENT_REFERENCE);
+            return (reference != null) ? "document:" + reference : null;
+        } else if (INDEX_SITE.equals(type) || UNINDEX_SITE.equals(type)) {
+            String siteId = task.getProperty(DefaultTask.SITE_ID);
+            return (siteId != null) ? "site:" + siteId : null;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a new task should replace a pending task with the same key.
+     * <p>
+     * The most recent task is kept, so an indexation created after a removal isn't lost, and a removal created
+     * after an indexation isn't either.
+     * </p>
+     *
+     * @param task        new task.
+     * @param pendingTask task currently waiting to be executed.
+     * @return true if the new task should replace the pending one.
+     */
+    private static boolean supersedes(Task task, Task pendingTask) {
+        return !task.getCreationDate().before(pendingTask.getCreationDate());
+    }
+
+    @Override
+    public long getCollapsedTaskCount() {
+        return collapsedTaskCount.get();
+    }
+
+    @Override
+    public int getPendingCoalescedTaskCount() {
+        return pendingTasks.size();
     }
 
     public void setSimpleTasksExecutor(ExecutorService simpleTasksExecutor) {
@@ -70,10 +355,56 @@ public class DefaultTaskQueuing extends AbstractTaskRunner implements TaskQueuin
         this.simpleTaskTypes = simpleTaskTypes;
     }
 
+    public void setCoalescingEnabled(boolean coalescingEnabled) {
+        this.coalescingEnabled = coalescingEnabled;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchWaitingTime(long batchWaitingTime) {
+        this.batchWaitingTime = batchWaitingTime;
+    }
+
+    public void setBatchWorkers(int batchWorkers) {
+        this.batchWorkers = batchWorkers;
+    }
+
+    public void setBatchQueueCapacity(int batchQueueCapacity) {
+        this.batchQueueCapacity = batchQueueCapacity;
+    }
+
     /**
-     * Runnable class generated for each task and queued in the {@link ExecutorService}.
+     * Runnable queued in an {@link ExecutorService}, or in the {@link #batchQueues}.
+     * <p>
+     * Tasks related to a document or a site are keyed, so a {@link StripedExecutor} executes them in order.
+     * </p>
      */
-    private final class RunnableTask implements Runnable {
+    private abstract class QueuedTask implements Runnable, StripedExecutor.Striped {
+        private final long enqueueTime = System.currentTimeMillis();
+
+        /**
+         * Gets the task to execute, once it has been dequeued.
+         *
+         * @return the task to execute, or null if there is nothing left to execute.
+         */
+        protected abstract Task takeTask();
+
+        @Override
+        public void run() {
+            Task task = takeTask();
+            if (task != null) {
+                taskStarted(task, enqueueTime);
+                runTask(task);
+            }
+        }
+    }
+
+    /**
+     * Runnable class generated for each task.
+     */
+    private final class RunnableTask extends QueuedTask {
         private final Task task;
 
         private RunnableTask(Task task) {
@@ -81,8 +412,34 @@ public class DefaultTaskQueuing extends AbstractTaskRunner implements TaskQueuin
         }
 
         @Override
-        public void run() {
-            runTask(task);
+        public Object getStripeKey() {
+            return getCoalescingKey(task);
+        }
+
+        @Override
+        protected Task takeTask() {
+            return task;
+        }
+    }
+
+    /**
+     * Runnable queued for coalesced tasks, the task executed is obtained only when the Runnable is run.
+     */
+    private final class CoalescedRunnableTask extends QueuedTask {
+        private final String coalescingKey;
+
+        private CoalescedRunnableTask(String coalescingKey) {
+            this.coalescingKey = coalescingKey;
+        }
+
+        @Override
+        public Object getStripeKey() {
+            return coalescingKey;
+        }
+
+        @Override
+        protected Task takeTask() {
+            return pendingTasks.remove(coalescingKey);
         }
     }
 }
@@ -0,0 +1,22 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+/**
+ * Cheap check of the availability of the search backend.
+ * <p>
+ * Used by the {@link CircuitBreaker} in half open state, to find out whether the backend is back without running an
+ * actual task.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface HealthProbe {
+    /**
+     * Checks whether the backend is available.
+     * <p>
+     * The check must be fast and must not wait for longer than a few seconds.
+     * </p>
+     *
+     * @return true if the backend answered correctly, false otherwise.
+     */
+    boolean isBackendAvailable();
+}
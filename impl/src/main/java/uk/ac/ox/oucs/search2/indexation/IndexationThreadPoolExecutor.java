@@ -0,0 +1,81 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadPoolExecutor running units of work of a {@link Task} with the same environment as a {@link TaskRunner}.
+ * <p>
+ * Some tasks are split by the {@link TaskHandler} and executed on other threads than the one provided by the
+ * {@link TaskRunner}. Those threads need the same unlocked permissions and the same cleanup.<br />
+ * Every unit of work is executed with an advisor allowing the access to everything, and the thread local content is
+ * cleared once the unit of work is done.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class IndexationThreadPoolExecutor extends ThreadPoolExecutor {
+    private SecurityService securityService;
+    private ThreadLocalManager threadLocalManager;
+
+    /**
+     * Creates an executor with a fixed number of threads.
+     *
+     * @param poolSize number of threads.
+     */
+    public IndexationThreadPoolExecutor(int poolSize) {
+        this(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    public IndexationThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                        BlockingQueue<Runnable> workQueue) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, new IndexationThreadFactory());
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        securityService.pushAdvisor(AbstractTaskRunner.GRANT_ALL_SECURITY_ADVISOR);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        try {
+            threadLocalManager.clear();
+            securityService.popAdvisor(AbstractTaskRunner.GRANT_ALL_SECURITY_ADVISOR);
+        } finally {
+            super.afterExecute(r, t);
+        }
+    }
+
+    public void setSecurityService(SecurityService securityService) {
+        this.securityService = securityService;
+    }
+
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
+    /**
+     * Creates named daemon threads, so the executor doesn't prevent the server from shutting down.
+     */
+    private static class IndexationThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        private final String namePrefix = "search2-indexation-" + POOL_NUMBER.incrementAndGet() + "-";
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
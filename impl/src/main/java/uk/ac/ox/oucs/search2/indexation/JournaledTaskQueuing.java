@@ -0,0 +1,623 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.metrics.QueueDepthProvider;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queuing system storing every {@link Task} in a journal on disk before its execution.
+ * <p>
+ * The journal is a sequence of memory mapped segments in which tasks are appended as binary records.<br />
+ * Each record is made of the length of the task, a status and the task itself. {@link DefaultTask}s are written in
+ * a compact format, other tasks are serialised.<br />
+ * Once a task has been executed, its record is acknowledged in place. A segment is deleted as soon as every
+ * record it contains has been acknowledged.
+ * </p>
+ * <p>
+ * Tasks which haven't been acknowledged (because the server stopped before or during their execution) are executed
+ * again when the server starts.<br />
+ * When a task fails and is retried later, its record is only acknowledged once the retry has been queued (and
+ * written in the journal), so a retry waiting in memory isn't lost if the server stops.
+ * </p>
+ * <p>
+ * A dispatcher thread reads the journal and hands the tasks to the {@link #executor}. At most
+ * {@link #maximumInMemoryTasks} are read from the journal and waiting for their execution at the same time, so a
+ * large backlog doesn't fill the heap.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class JournaledTaskQueuing extends AbstractTaskRunner implements TaskQueuing, QueueDepthProvider {
+    private static final Logger logger = LoggerFactory.getLogger(JournaledTaskQueuing.class);
+    private static final int MAGIC_NUMBER = 0x53324a4c;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int SEGMENT_HEADER_SIZE = 4;
+    /**
+     * Length of the task (int) and status of the record (byte).
+     */
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final byte PENDING = 0;
+    private static final byte ACKNOWLEDGED = 1;
+    private static final byte COMPACT_FORMAT = 0;
+    private static final byte SERIALISED_FORMAT = 1;
+    /**
+     * Lock protecting the segments, the read and the write positions.
+     */
+    private final Object journalLock = new Object();
+    /**
+     * Segments not yet deleted, from the oldest to the newest.
+     */
+    private final List<Segment> segments = new LinkedList<Segment>();
+    /**
+     * Record being executed by the current thread.
+     */
+    private final ThreadLocal<Record> executedRecord = new ThreadLocal<Record>();
+    /**
+     * Records waiting for the retry of a task before being acknowledged, mapped by retried task.
+     */
+    private final Map<Task, Record> retriedRecords = Collections.synchronizedMap(new IdentityHashMap<Task, Record>());
+    private Segment writeSegment;
+    private Segment readSegment;
+    private int readPosition;
+    private int pendingTaskCount;
+    /**
+     * Number of records being executed, their tasks aren't waiting in the journal anymore.
+     */
+    private final AtomicInteger executingTaskCount = new AtomicInteger();
+    private Semaphore inMemoryTasks;
+    private Thread dispatcherThread;
+    /**
+     * Set when the queuing system stops, tasks interrupted by the shutdown are not acknowledged.
+     */
+    private volatile boolean stopping;
+    /**
+     * Directory containing the segments of the journal.
+     */
+    private File journalDirectory;
+    /**
+     * Size (in bytes) of each segment.
+     */
+    private int segmentSize = 16 * 1024 * 1024;
+    /**
+     * Maximum number of tasks read from the journal and not executed yet.
+     */
+    private int maximumInMemoryTasks = 10000;
+    /**
+     * Executor running the tasks.
+     */
+    private ExecutorService executor;
+
+    public void init() {
+        try {
+            if (!journalDirectory.exists() && !journalDirectory.mkdirs())
+                throw new IOException("Couldn't create the directory '" + journalDirectory + "'");
+            replayJournal();
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't open the journal '" + journalDirectory + "'", e);
+        }
+
+        inMemoryTasks = new Semaphore(maximumInMemoryTasks);
+        dispatcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchTasks();
+            }
+        }, "search2-journal-dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    public void destroy() {
+        stopping = true;
+        dispatcherThread.interrupt();
+        // Tasks not executed yet will be replayed on the next startup
+        executor.shutdownNow();
+        synchronized (journalLock) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The task is written in the journal and will be executed once the dispatcher reaches it.
+     * </p>
+     *
+     * @param task task to add to the queue.
+     */
+    @Override
+    public void addTaskToQueue(Task task) {
+        taskQueued(task);
+        byte[] data;
+        try {
+            data = encode(task);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Couldn't write '" + task + "' in the journal", e);
+        }
+
+        synchronized (journalLock) {
+            try {
+                if (writeSegment.writePosition + RECORD_HEADER_SIZE + data.length > writeSegment.buffer.capacity())
+                    rollSegment(RECORD_HEADER_SIZE + data.length);
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't create a new segment in the journal", e);
+            }
+
+            // The length is written last, a record without a length is ignored
+            MappedByteBuffer buffer = writeSegment.buffer;
+            int position = writeSegment.writePosition;
+            ByteBuffer dataBuffer = buffer.duplicate();
+            dataBuffer.position(position + RECORD_HEADER_SIZE);
+            dataBuffer.put(data);
+            buffer.put(position + 4, PENDING);
+            buffer.putInt(position, data.length);
+
+            writeSegment.writePosition += RECORD_HEADER_SIZE + data.length;
+            writeSegment.pendingRecords++;
+            pendingTaskCount++;
+            journalLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the number of tasks in the journal which haven't been executed yet.
+     *
+     * @return the number of pending tasks.
+     */
+    public int getPendingTaskCount() {
+        synchronized (journalLock) {
+            return pendingTaskCount;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Tasks being executed are still pending in the journal, but not waiting anymore.
+     * </p>
+     */
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return Collections.singletonMap("journal", Math.max(getPendingTaskCount() - executingTaskCount.get(), 0));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The record being executed waits for the retry to be queued before being acknowledged.
+     * </p>
+     */
+    @Override
+    protected void taskRetryScheduled(Task task, long delay) {
+        super.taskRetryScheduled(task, delay);
+        Record record = executedRecord.get();
+        if (record != null) {
+            record.retryScheduled();
+            retriedRecords.put(task, record);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Once the retry is queued, the record of the failed execution can be acknowledged.
+     * </p>
+     */
+    @Override
+    protected void retryTask(Task task) {
+        super.retryTask(task);
+        Record record = retriedRecords.remove(task);
+        if (record != null && record.retryQueued())
+            acknowledge(record.segment, record.position);
+    }
+
+    /**
+     * Reads the tasks from the journal and sends them to the executor.
+     */
+    private void dispatchTasks() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                inMemoryTasks.acquire();
+                Record record;
+                synchronized (journalLock) {
+                    while ((record = readNextRecord()) == null)
+                        journalLock.wait();
+                }
+
+                try {
+                    executor.execute(new JournaledRunnableTask(record));
+                } catch (RejectedExecutionException e) {
+                    // The executor is shutting down, the task will be replayed on the next startup
+                    logger.warn("Couldn't execute '" + record.task + "'", e);
+                    inMemoryTasks.release();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.info("Journal dispatcher stopped");
+        }
+    }
+
+    /**
+     * Reads the next pending record in the journal.
+     * <p>
+     * Must be called while holding {@link #journalLock}.
+     * </p>
+     *
+     * @return the next pending record or null if every record has been read.
+     */
+    private Record readNextRecord() {
+        while (true) {
+            if (readPosition < readSegment.writePosition) {
+                int recordPosition = readPosition;
+                int length = readSegment.buffer.getInt(recordPosition);
+                readPosition += RECORD_HEADER_SIZE + length;
+                if (readSegment.buffer.get(recordPosition + 4) == ACKNOWLEDGED)
+                    continue;
+
+                try {
+                    return new Record(readSegment, recordPosition, decode(readSegment.buffer, recordPosition, length));
+                } catch (Exception e) {
+                    logger.error("Couldn't read a task from the journal, the task is discarded", e);
+                    acknowledge(readSegment, recordPosition);
+                }
+            } else if (readSegment.next != null) {
+                readSegment = readSegment.next;
+                readPosition = SEGMENT_HEADER_SIZE;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Marks a record as acknowledged and deletes its segment if every record has been acknowledged.
+     *
+     * @param segment  segment containing the record.
+     * @param position position of the record in the segment.
+     */
+    private void acknowledge(Segment segment, int position) {
+        synchronized (journalLock) {
+            segment.buffer.put(position + 4, ACKNOWLEDGED);
+            segment.pendingRecords--;
+            pendingTaskCount--;
+            if (segment.next != null && segment.pendingRecords == 0)
+                deleteSegment(segment);
+        }
+    }
+
+    /**
+     * Creates a new segment which will receive the next records.
+     *
+     * @param minimumSize minimum size of the data to write in the new segment.
+     * @throws IOException if the segment couldn't be created.
+     */
+    private void rollSegment(int minimumSize) throws IOException {
+        Segment previousSegment = writeSegment;
+        long id = (previousSegment != null) ? previousSegment.id + 1 : 0;
+        writeSegment = createSegment(id, Math.max(segmentSize, SEGMENT_HEADER_SIZE + minimumSize));
+        segments.add(writeSegment);
+
+        if (previousSegment != null) {
+            previousSegment.next = writeSegment;
+            if (previousSegment.pendingRecords == 0)
+                deleteSegment(previousSegment);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        if (logger.isDebugEnabled())
+            logger.debug("Every record of '" + segment.file + "' has been acknowledged, delete the segment");
+        segments.remove(segment);
+        if (!segment.file.delete())
+            logger.warn("Couldn't delete '" + segment.file + "'");
+    }
+
+    /**
+     * Loads the existing segments and prepares the pending records to be executed again.
+     *
+     * @throws IOException if the journal couldn't be read.
+     */
+    private void replayJournal() throws IOException {
+        File[] files = journalDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null)
+            throw new IOException("Couldn't list the content of '" + journalDirectory + "'");
+        Arrays.sort(files);
+
+        synchronized (journalLock) {
+            List<Segment> replayedSegments = new ArrayList<Segment>(files.length);
+            for (File file : files) {
+                Segment segment = openSegment(file);
+                if (segment != null)
+                    replayedSegments.add(segment);
+            }
+
+            Segment previousSegment = null;
+            for (Segment segment : replayedSegments) {
+                if (previousSegment != null)
+                    previousSegment.next = segment;
+                segments.add(segment);
+                pendingTaskCount += segment.pendingRecords;
+                previousSegment = segment;
+            }
+            writeSegment = previousSegment;
+            // Never write after the replayed records, a new segment is always created
+            rollSegment(0);
+
+            // Replayed segments without pending records can be removed already
+            for (Segment segment : replayedSegments) {
+                if (segment.pendingRecords == 0 && segments.contains(segment))
+                    deleteSegment(segment);
+            }
+            readSegment = segments.get(0);
+            readPosition = SEGMENT_HEADER_SIZE;
+        }
+        logger.info("Journal '" + journalDirectory + "' opened with " + pendingTaskCount + " pending tasks");
+    }
+
+    /**
+     * Opens an existing segment and counts its pending records.
+     *
+     * @param file segment file.
+     * @return the segment or null if the file isn't a valid segment.
+     * @throws IOException if the segment couldn't be mapped.
+     */
+    private static Segment openSegment(File file) throws IOException {
+        String name = file.getName();
+        long id;
+        try {
+            id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            logger.warn("'" + file + "' isn't a segment of the journal, ignored");
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+        if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != MAGIC_NUMBER) {
+            logger.warn("'" + file + "' isn't a segment of the journal, ignored");
+            return null;
+        }
+
+        Segment segment = new Segment(id, file, buffer);
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity())
+                break;
+            if (buffer.get(position + 4) == PENDING)
+                segment.pendingRecords++;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+        return segment;
+    }
+
+    private Segment createSegment(long id, int size) throws IOException {
+        File file = new File(journalDirectory, SEGMENT_PREFIX + String.format("%020d", id) + SEGMENT_SUFFIX);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC_NUMBER);
+            Segment segment = new Segment(id, file, buffer);
+            segment.writePosition = SEGMENT_HEADER_SIZE;
+            return segment;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Converts a task into a binary record.
+     * <p>
+     * {@link DefaultTask}s are written in a compact format, other implementations of {@link Task} are serialised.
+     * </p>
+     *
+     * @param task task to convert.
+     * @return the binary representation of the task.
+     * @throws IOException if the task couldn't be serialised.
+     */
+    private static byte[] encode(Task task) throws IOException {
+        if (task.getClass() == DefaultTask.class) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+                DataOutputStream out = new DataOutputStream(bytes);
+                DefaultTask defaultTask = (DefaultTask) task;
+                out.writeByte(COMPACT_FORMAT);
+                out.writeUTF(defaultTask.getType());
+                out.writeLong(defaultTask.getCreationDate().getTime());
+                Map<String, String> properties = defaultTask.getProperties();
+                out.writeInt(properties.size());
+                for (Map.Entry<String, String> property : properties.entrySet()) {
+                    out.writeUTF(property.getKey());
+                    out.writeBoolean(property.getValue() != null);
+                    if (property.getValue() != null)
+                        out.writeUTF(property.getValue());
+                }
+                out.close();
+                return bytes.toByteArray();
+            } catch (UTFDataFormatException e) {
+                // A property is too long for the compact format
+                logger.debug("Couldn't write the task in the compact format", e);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        bytes.write(SERIALISED_FORMAT);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(task);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a task from a record.
+     *
+     * @param buffer   segment containing the record.
+     * @param position position of the record.
+     * @param length   length of the task.
+     * @return the task.
+     * @throws IOException            if the record is corrupted.
+     * @throws ClassNotFoundException if the task class isn't available anymore.
+     */
+    private static Task decode(ByteBuffer buffer, int position, int length)
+            throws IOException, ClassNotFoundException {
+        byte[] data = new byte[length];
+        ByteBuffer dataBuffer = buffer.duplicate();
+        dataBuffer.position(position + RECORD_HEADER_SIZE);
+        dataBuffer.get(data);
+
+        if (data[0] == COMPACT_FORMAT) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 1, length - 1));
+            String type = in.readUTF();
+            DefaultTask task = new DefaultTask(type, new DateTime(in.readLong()));
+            int propertiesCount = in.readInt();
+            for (int i = 0; i < propertiesCount; i++) {
+                String propertyName = in.readUTF();
+                task.setProperty(propertyName, in.readBoolean() ? in.readUTF() : null);
+            }
+            return task;
+        } else {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, 1, length - 1));
+            return (Task) in.readObject();
+        }
+    }
+
+    public void setJournalDirectory(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public void setMaximumInMemoryTasks(int maximumInMemoryTasks) {
+        this.maximumInMemoryTasks = maximumInMemoryTasks;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Memory mapped file containing a part of the journal.
+     */
+    private static final class Segment {
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int pendingRecords;
+        /**
+         * Following segment, null while this segment is the one receiving new records.
+         */
+        private Segment next;
+
+        private Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Task read from the journal, with its location.
+     * <p>
+     * The record can be acknowledged once the task has been executed and every retry it caused has been queued.
+     * </p>
+     */
+    private static final class Record {
+        private final Segment segment;
+        private final int position;
+        private final Task task;
+        private boolean executed;
+        private int pendingRetries;
+
+        private Record(Segment segment, int position, Task task) {
+            this.segment = segment;
+            this.position = position;
+            this.task = task;
+        }
+
+        private synchronized void retryScheduled() {
+            pendingRetries++;
+        }
+
+        /**
+         * @return true if the record can be acknowledged.
+         */
+        private synchronized boolean retryQueued() {
+            pendingRetries--;
+            return executed && pendingRetries == 0;
+        }
+
+        /**
+         * @return true if the record can be acknowledged.
+         */
+        private synchronized boolean executed() {
+            executed = true;
+            return pendingRetries == 0;
+        }
+    }
+
+    /**
+     * Runnable executing a task and acknowledging its record.
+     */
+    private final class JournaledRunnableTask implements Runnable {
+        private final Record record;
+
+        private JournaledRunnableTask(Record record) {
+            this.record = record;
+        }
+
+        @Override
+        public void run() {
+            executedRecord.set(record);
+            executingTaskCount.incrementAndGet();
+            try {
+                // The enqueue time isn't kept in the journal, the creation date of the task is the closest
+                taskStarted(record.task, record.task.getCreationDate().getTime());
+                runTask(record.task);
+                // A task interrupted by the shutdown will be executed again on the next startup
+                if (!stopping && record.executed())
+                    acknowledge(record.segment, record.position);
+            } finally {
+                executingTaskCount.decrementAndGet();
+                executedRecord.remove();
+                inMemoryTasks.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.metrics.QueueDepthProvider;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queuing system executing tasks by priority, so fresh content is indexed quickly even during a rebuild.
+ * <p>
+ * Each task is placed in one of three lanes depending on its type:
+ * <ul>
+ * <li>{@link Lane#INTERACTIVE} for {@link #interactiveTaskTypes}, usually changes made by users on one document</li>
+ * <li>{@link Lane#ADMIN} for {@link #adminTaskTypes}, usually the indexation of a site requested by an admin</li>
+ * <li>{@link Lane#BULK} for every other task, usually the complete reindexation</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Each lane has its own workers, which execute the tasks of their lane first, so no lane starves, and help with the
+ * more urgent lanes when their own lane is empty. The workers of the interactive lane are always available for
+ * interactive tasks, while idle bulk workers can help with them.<br />
+ * A worker helping other lanes picks the task with the earliest enqueue time plus the aging delay of its lane.
+ * </p>
+ * <p>
+ * Each lane holds at most {@link #laneCapacity} tasks. A worker splitting its task in more urgent tasks (a site
+ * indexation creating document indexations) waits for room in the lane, as the workers of that lane keep emptying
+ * it. Any other thread, such as the one handling events, gets a {@link RejectedExecutionException} instead of
+ * waiting.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class PriorityTaskQueuing extends AbstractTaskRunner implements TaskQueuing, QueueDepthProvider {
+    private static final Logger logger = LoggerFactory.getLogger(PriorityTaskQueuing.class);
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition taskAvailable = queueLock.newCondition();
+    private final Condition spaceAvailable = queueLock.newCondition();
+    /**
+     * Lane of the worker running in the current thread, null if the thread isn't a worker.
+     */
+    private final ThreadLocal<Lane> currentWorkerLane = new ThreadLocal<Lane>();
+    private final Map<Lane, Queue<QueuedTask>> queues = new EnumMap<Lane, Queue<QueuedTask>>(Lane.class);
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private Collection<String> interactiveTaskTypes = Collections.emptyList();
+    private Collection<String> adminTaskTypes = Collections.emptyList();
+    private int interactiveWorkers = 4;
+    private int adminWorkers = 2;
+    private int bulkWorkers = 2;
+    /**
+     * Maximum number of tasks waiting in each lane.
+     */
+    private int laneCapacity = 50000;
+    /**
+     * Delay (in ms) added to the enqueue time of an admin task when tasks are prioritised.
+     */
+    private long adminAgingDelay = 60 * 1000;
+    /**
+     * Delay (in ms) added to the enqueue time of a bulk task when tasks are prioritised.
+     */
+    private long bulkAgingDelay = 10 * 60 * 1000;
+
+    public PriorityTaskQueuing() {
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new LinkedList<QueuedTask>());
+        }
+    }
+
+    public void init() {
+        startWorkers(Lane.INTERACTIVE, interactiveWorkers);
+        startWorkers(Lane.ADMIN, adminWorkers);
+        startWorkers(Lane.BULK, bulkWorkers);
+    }
+
+    public void destroy() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The Task is added to the lane corresponding to its type.
+     * </p>
+     *
+     * @param task task to add to the queue.
+     * @throws RejectedExecutionException if the lane is full and the current thread can't wait for room.
+     */
+    @Override
+    public void addTaskToQueue(Task task) {
+        Lane lane = getLane(task);
+        // Only wait if the lane will be emptied by other workers, waiting for its own lane could block every worker
+        Lane workerLane = currentWorkerLane.get();
+        boolean waitingAllowed = workerLane != null && lane.ordinal() < workerLane.ordinal();
+        queueLock.lock();
+        try {
+            Queue<QueuedTask> queue = queues.get(lane);
+            while (queue.size() >= laneCapacity) {
+                if (!waitingAllowed)
+                    throw new RejectedExecutionException("The lane " + lane + " is full, '" + task + "' rejected");
+                try {
+                    spaceAvailable.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for room in the lane " + lane
+                            + ", '" + task + "' rejected", e);
+                }
+            }
+            queue.offer(new QueuedTask(task, System.currentTimeMillis()));
+            taskAvailable.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+        taskQueued(task);
+    }
+
+    /**
+     * Gets the number of tasks waiting in a lane.
+     *
+     * @param lane lane to check.
+     * @return the number of tasks waiting in the lane.
+     */
+    public int getQueueSize(Lane lane) {
+        queueLock.lock();
+        try {
+            return queues.get(lane).size();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> queueDepths = new LinkedHashMap<String, Integer>();
+        for (Lane lane : Lane.values()) {
+            queueDepths.put(lane.name().toLowerCase(), getQueueSize(lane));
+        }
+        return queueDepths;
+    }
+
+    private Lane getLane(Task task) {
+        if (interactiveTaskTypes.contains(task.getType()))
+            return Lane.INTERACTIVE;
+        else if (adminTaskTypes.contains(task.getType()))
+            return Lane.ADMIN;
+        else
+            return Lane.BULK;
+    }
+
+    private void startWorkers(final Lane lane, int workerCount) {
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    currentWorkerLane.set(lane);
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            QueuedTask queuedTask = takeTask(lane);
+                            Task task = queuedTask.task;
+                            taskStarted(task, queuedTask.enqueueTime);
+                            try {
+                                runTask(task);
+                            } catch (RuntimeException e) {
+                                // Keep the worker alive
+                                logger.error("Couldn't run '" + task + "'", e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        logger.info("Worker of the lane " + lane + " stopped");
+                    }
+                }
+            }, "search2-" + lane.name().toLowerCase() + "-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Waits for a task which can be executed by a worker of the given lane.
+     * <p>
+     * Workers execute the tasks of their own lane first. When it's empty, they execute tasks of more urgent lanes,
+     * the task with the earliest enqueue time plus aging delay being picked first.
+     * </p>
+     *
+     * @param workerLane lane of the worker.
+     * @return the next task to execute.
+     * @throws InterruptedException if the worker has been interrupted while waiting.
+     */
+    private QueuedTask takeTask(Lane workerLane) throws InterruptedException {
+        queueLock.lockInterruptibly();
+        try {
+            while (true) {
+                Queue<QueuedTask> selectedQueue = null;
+                if (!queues.get(workerLane).isEmpty()) {
+                    selectedQueue = queues.get(workerLane);
+                } else {
+                    long selectedPriority = Long.MAX_VALUE;
+                    for (Lane lane : Lane.values()) {
+                        if (lane.ordinal() >= workerLane.ordinal())
+                            break;
+                        QueuedTask head = queues.get(lane).peek();
+                        if (head != null && head.enqueueTime + getAgingDelay(lane) < selectedPriority) {
+                            selectedQueue = queues.get(lane);
+                            selectedPriority = head.enqueueTime + getAgingDelay(lane);
+                        }
+                    }
+                }
+
+                if (selectedQueue != null) {
+                    QueuedTask queuedTask = selectedQueue.poll();
+                    spaceAvailable.signalAll();
+                    return queuedTask;
+                }
+                taskAvailable.await();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private long getAgingDelay(Lane lane) {
+        switch (lane) {
+            case ADMIN:
+                return adminAgingDelay;
+            case BULK:
+                return bulkAgingDelay;
+            default:
+                return 0;
+        }
+    }
+
+    public void setInteractiveTaskTypes(Collection<String> interactiveTaskTypes) {
+        this.interactiveTaskTypes = interactiveTaskTypes;
+    }
+
+    public void setAdminTaskTypes(Collection<String> adminTaskTypes) {
+        this.adminTaskTypes = adminTaskTypes;
+    }
+
+    public void setInteractiveWorkers(int interactiveWorkers) {
+        this.interactiveWorkers = interactiveWorkers;
+    }
+
+    public void setAdminWorkers(int adminWorkers) {
+        this.adminWorkers = adminWorkers;
+    }
+
+    public void setBulkWorkers(int bulkWorkers) {
+        this.bulkWorkers = bulkWorkers;
+    }
+
+    public void setLaneCapacity(int laneCapacity) {
+        this.laneCapacity = laneCapacity;
+    }
+
+    public void setAdminAgingDelay(long adminAgingDelay) {
+        this.adminAgingDelay = adminAgingDelay;
+    }
+
+    public void setBulkAgingDelay(long bulkAgingDelay) {
+        this.bulkAgingDelay = bulkAgingDelay;
+    }
+
+    /**
+     * Lanes of tasks, from the most urgent to the least urgent.
+     */
+    public static enum Lane {
+        INTERACTIVE,
+        ADMIN,
+        BULK
+    }
+
+    /**
+     * Task waiting in a lane.
+     */
+    private static final class QueuedTask {
+        private final Task task;
+        private final long enqueueTime;
+
+        private QueuedTask(Task task, long enqueueTime) {
+            this.task = task;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+}
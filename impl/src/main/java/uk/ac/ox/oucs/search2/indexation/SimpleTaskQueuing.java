@@ -1,5 +1,10 @@
 package uk.ac.ox.oucs.search2.indexation;
 
+import uk.ac.ox.oucs.search2.indexation.metrics.QueueDepthProvider;
+
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Simple implementation of {@link TaskQueuing} executing directly the {@link Task} in the current thread.
  * <p>
@@ -10,9 +15,22 @@ package uk.ac.ox.oucs.search2.indexation;
  *
  * @author Colin Hebert
  */
-public class SimpleTaskQueuing extends AbstractTaskRunner implements TaskQueuing {
+public class SimpleTaskQueuing extends AbstractTaskRunner implements TaskQueuing, QueueDepthProvider {
     @Override
     public void addTaskToQueue(Task task) {
+        taskQueued(task);
+        taskStarted(task, System.currentTimeMillis());
         runTask(task);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Tasks are never queued.
+     * </p>
+     */
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return Collections.emptyMap();
+    }
 }
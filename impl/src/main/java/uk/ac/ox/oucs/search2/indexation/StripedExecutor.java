@@ -0,0 +1,192 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor running the tasks related to the same key sequentially, and tasks related to different keys in parallel.
+ * <p>
+ * The executor is made of a fixed number of stripes, each stripe having a single thread.<br />
+ * A {@link Striped} Runnable is always executed by the stripe selected with the hash of its key, so two tasks
+ * related to the same document are executed in the order they were submitted.<br />
+ * Runnables without key are spread over every stripe.
+ * </p>
+ * <p>
+ * The number of Runnables waiting in each stripe is available with {@link #getQueueDepths()}, showing whether some
+ * keys are more active than others.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class StripedExecutor extends AbstractExecutorService {
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+    private final List<ThreadPoolExecutor> stripes;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    /**
+     * Creates an executor with unbounded stripes.
+     *
+     * @param stripeCount number of stripes.
+     */
+    public StripedExecutor(int stripeCount) {
+        this(stripeCount, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param stripeCount   number of stripes.
+     * @param queueCapacity maximum number of Runnables waiting in each stripe.
+     */
+    public StripedExecutor(int stripeCount, int queueCapacity) {
+        if (stripeCount <= 0)
+            throw new IllegalArgumentException("The number of stripes must be positive");
+
+        String namePrefix = "search2-stripe-" + POOL_NUMBER.incrementAndGet() + "-";
+        List<ThreadPoolExecutor> executors = new ArrayList<ThreadPoolExecutor>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            final String threadName = namePrefix + (i + 1);
+            executors.add(new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        }
+        stripes = Collections.unmodifiableList(executors);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        getStripe(command).execute(command);
+    }
+
+    /**
+     * Keeps the key of {@link Striped} Runnables when they're wrapped by {@link #submit(Runnable)}.
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        if (runnable instanceof Striped)
+            return new StripedFutureTask<T>(((Striped) runnable).getStripeKey(), runnable, value);
+        else
+            return super.newTaskFor(runnable, value);
+    }
+
+    /**
+     * Gets the number of Runnables waiting in each stripe.
+     *
+     * @return the depth of each stripe queue.
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[stripes.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = stripes.get(i).getQueue().size();
+        }
+        return depths;
+    }
+
+    private ThreadPoolExecutor getStripe(Runnable command) {
+        Object key = (command instanceof Striped) ? ((Striped) command).getStripeKey() : null;
+        int index;
+        if (key != null)
+            index = stripeIndex(key, stripes.size());
+        else
+            index = (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.size();
+        return stripes.get(index);
+    }
+
+    /**
+     * Selects the stripe of a key.
+     * <p>
+     * The bits of the hash code are spread as in a HashMap, so keys differing only in their high bits still go to
+     * different stripes.
+     * </p>
+     *
+     * @param key     key of a Runnable.
+     * @param stripes number of stripes.
+     * @return the index of the stripe, between 0 and {@code stripes - 1}.
+     */
+    static int stripeIndex(Object key, int stripes) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & Integer.MAX_VALUE) % stripes;
+    }
+
+    @Override
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pendingRunnables = new ArrayList<Runnable>();
+        for (ThreadPoolExecutor stripe : stripes) {
+            pendingRunnables.addAll(stripe.shutdownNow());
+        }
+        return pendingRunnables;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            if (!stripe.isShutdown())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            if (!stripe.isTerminated())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor stripe : stripes) {
+            long remaining = deadline - System.nanoTime();
+            if (!stripe.awaitTermination(Math.max(remaining, 0), TimeUnit.NANOSECONDS))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runnable related to a key, Runnables with equal keys are executed sequentially.
+     */
+    public interface Striped {
+        /**
+         * Gets the key used to select the stripe.
+         *
+         * @return the key of the Runnable, or null if it can be executed by any stripe.
+         */
+        Object getStripeKey();
+    }
+
+    private static final class StripedFutureTask<T> extends FutureTask<T> implements Striped {
+        private final Object stripeKey;
+
+        private StripedFutureTask(Object stripeKey, Runnable runnable, T value) {
+            super(runnable, value);
+            this.stripeKey = stripeKey;
+        }
+
+        @Override
+        public Object getStripeKey() {
+            return stripeKey;
+        }
+    }
+}
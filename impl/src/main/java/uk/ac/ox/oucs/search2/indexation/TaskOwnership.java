@@ -0,0 +1,49 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+/**
+ * Decides which node of a cluster executes the tasks generated from events.
+ * <p>
+ * Every node receives the same Sakai events, so without coordination each node would queue the same tasks.<br />
+ * Only tasks generated from events can be filtered. Tasks created on a single node (by a service, an administrator
+ * or a retry) must always be queued on that node, no other node will ever see them.
+ * </p>
+ * <p>
+ * A node can die with tasks it owns still waiting. Tasks generated from events are therefore handed to
+ * {@link #acceptTask(Task)} on every node, so the nodes which don't execute a task can still take it over, and the
+ * owner reports with {@link #taskCompleted(Task)} that a task doesn't need to be taken over anymore.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface TaskOwnership {
+    /**
+     * Checks whether the current node must execute a task generated from an event.
+     *
+     * @param task task generated from an event.
+     * @return true if the task must be queued by the current node, false if another node will execute it.
+     */
+    boolean isOwnedLocally(Task task);
+
+    /**
+     * Receives a task generated from an event, and checks whether the current node must execute it.
+     * <p>
+     * A task owned by another node is kept aside, to be queued by the current node if its owner dies before
+     * executing it.
+     * </p>
+     *
+     * @param task task generated from an event.
+     * @return true if the task must be queued by the current node, false if another node will execute it.
+     */
+    boolean acceptTask(Task task);
+
+    /**
+     * Notifies that a task has been executed for good, either successfully or after its last attempt.
+     * <p>
+     * Tasks related to the same document or site are coalesced, so every accepted task related to the same document
+     * or site and created before the executed one is considered as completed too.
+     * </p>
+     *
+     * @param task executed task.
+     */
+    void taskCompleted(Task task);
+}
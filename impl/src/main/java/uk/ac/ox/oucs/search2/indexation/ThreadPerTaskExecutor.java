@@ -0,0 +1,242 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor starting a new lightweight thread for each task, instead of keeping a small pool of threads.
+ * <p>
+ * Indexation tasks spend most of their time waiting for the database, the content hosting or Solr. With a pool of a
+ * few threads the server stays idle, while a thread per task keeps every backend busy.<br />
+ * On a JVM supporting virtual threads (Java 21 and later) tasks are run in virtual threads, otherwise in daemon
+ * threads.
+ * </p>
+ * <p>
+ * The concurrency isn't limited by the executor but by each backend (see the permits of the task handler). The
+ * maximum number of threads is only a safeguard, once reached the tasks wait in a backlog.<br />
+ * A task is run from start to end by a single thread, so the security advisors pushed by the
+ * {@link AbstractTaskRunner} and the cleanup of the ThreadLocalManager work as with a pool.
+ * </p>
+ * <p>
+ * A virtual thread blocking inside a {@code synchronized} block, or in {@link Object#wait()}, pins its carrier
+ * thread. Code waiting for long periods in the tasks (such as the {@link CircuitBreaker}) relies on
+ * {@link java.util.concurrent.locks.Lock}s instead.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ThreadPerTaskExecutor extends AbstractExecutorService {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadPerTaskExecutor.class);
+    private static final AtomicInteger EXECUTOR_NUMBER = new AtomicInteger();
+    private final ThreadFactory threadFactory;
+    private final Semaphore threadPermits;
+    private final BlockingQueue<Runnable> backlog;
+    private final Set<Thread> runningThreads = Collections.newSetFromMap(
+            new ConcurrentHashMap<Thread, Boolean>());
+    private final Object terminationLock = new Object();
+    private volatile boolean shutdown;
+
+    /**
+     * Creates an executor.
+     *
+     * @param maximumThreads  maximum number of threads running at the same time.
+     * @param backlogCapacity maximum number of tasks waiting for a thread.
+     */
+    public ThreadPerTaskExecutor(int maximumThreads, int backlogCapacity) {
+        if (maximumThreads <= 0)
+            throw new IllegalArgumentException("The maximum number of threads must be positive");
+
+        this.threadPermits = new Semaphore(maximumThreads);
+        this.backlog = new LinkedBlockingQueue<Runnable>(backlogCapacity);
+        this.threadFactory = createThreadFactory("search2-task-" + EXECUTOR_NUMBER.incrementAndGet() + "-");
+    }
+
+    /**
+     * Creates a factory of virtual threads if the JVM supports them, of daemon threads otherwise.
+     * <p>
+     * Virtual threads are obtained through reflection, so the code still runs on older JVMs.
+     * </p>
+     *
+     * @param namePrefix prefix of the name of each thread.
+     * @return a thread factory.
+     */
+    private static ThreadFactory createThreadFactory(final String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            Method factoryMethod = builderClass.getMethod("factory");
+            ThreadFactory virtualThreadFactory = (ThreadFactory) factoryMethod.invoke(builder);
+            logger.info("Tasks will be executed in virtual threads");
+            return virtualThreadFactory;
+        } catch (Exception e) {
+            if (logger.isDebugEnabled())
+                logger.debug("Virtual threads unavailable, tasks will be executed in platform threads", e);
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        if (shutdown)
+            throw new RejectedExecutionException("The executor has been shut down");
+
+        if (threadPermits.tryAcquire()) {
+            startThread(command);
+        } else if (backlog.offer(command)) {
+            // A thread may have finished between the first check and the insertion in the backlog
+            if (!backlog.isEmpty() && threadPermits.tryAcquire())
+                startThread(null);
+        } else {
+            throw new RejectedExecutionException("Too many tasks waiting, '" + command + "' rejected");
+        }
+    }
+
+    private void startThread(Runnable firstTask) {
+        try {
+            threadFactory.newThread(new Worker(firstTask)).start();
+        } catch (RuntimeException e) {
+            threadPermits.release();
+            throw e;
+        } catch (Error e) {
+            threadPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of tasks waiting for a thread.
+     *
+     * @return the size of the backlog.
+     */
+    public int getBacklogSize() {
+        return backlog.size();
+    }
+
+    /**
+     * Gets the number of threads currently running a task.
+     *
+     * @return the number of running threads.
+     */
+    public int getRunningThreadCount() {
+        return runningThreads.size();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        signalTermination();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pendingTasks = new ArrayList<Runnable>();
+        backlog.drainTo(pendingTasks);
+        for (Thread thread : runningThreads) {
+            thread.interrupt();
+        }
+        signalTermination();
+        return pendingTasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && runningThreads.isEmpty() && backlog.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (terminationLock) {
+            while (!isTerminated()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                terminationLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private void signalTermination() {
+        synchronized (terminationLock) {
+            terminationLock.notifyAll();
+        }
+    }
+
+    /**
+     * Runs a task, then the tasks waiting in the backlog if there are any.
+     */
+    private final class Worker implements Runnable {
+        private Runnable task;
+
+        private Worker(Runnable firstTask) {
+            this.task = firstTask;
+        }
+
+        @Override
+        public void run() {
+            Thread currentThread = Thread.currentThread();
+            runningThreads.add(currentThread);
+            boolean permitHeld = true;
+            try {
+                while (true) {
+                    if (task == null)
+                        task = backlog.poll();
+                    while (task != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            logger.error("Couldn't run '" + task + "'", e);
+                        }
+                        task = backlog.poll();
+                    }
+                    threadPermits.release();
+                    permitHeld = false;
+                    // Tasks added to the backlog while the permit was held would be left behind
+                    if (backlog.isEmpty() || !threadPermits.tryAcquire())
+                        break;
+                    permitHeld = true;
+                }
+            } finally {
+                if (permitHeld)
+                    threadPermits.release();
+                runningThreads.remove(currentThread);
+                if (shutdown)
+                    signalTermination();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package uk.ac.ox.oucs.search2.indexation.metrics;
+
+/**
+ * Queuing system coalescing the tasks related to the same document or site, able to tell how many tasks have been
+ * coalesced.
+ *
+ * @author Colin Hebert
+ */
+public interface CoalescingMetricsProvider {
+    /**
+     * Gets the number of tasks which haven't been executed because a task related to the same document or site was
+     * already pending.
+     *
+     * @return the number of collapsed tasks since the startup.
+     */
+    long getCollapsedTaskCount();
+
+    /**
+     * Gets the number of tasks currently waiting to be executed and subject to coalescing.
+     *
+     * @return the number of pending coalesced tasks.
+     */
+    int getPendingCoalescedTaskCount();
+}
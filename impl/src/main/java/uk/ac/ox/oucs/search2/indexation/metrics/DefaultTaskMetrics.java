@@ -0,0 +1,346 @@
+package uk.ac.ox.oucs.search2.indexation.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.Task;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Default metrics registry, keeping counters and histograms in memory and exposing them through JMX.
+ * <p>
+ * Counters are kept for each type of task. Three histograms track the time spent by tasks in the queue, the
+ * execution time and the delay before a failed task is executed again. Events dropped before any task could be
+ * generated from them are counted too.<br />
+ * The depth of the queues is obtained from the {@link #queueDepthProvider}, usually the task queuing itself. Tasks
+ * taken from the queues but not executed yet and failed tasks waiting to be queued again are counted separately, so
+ * they're still pending.<br />
+ * If the provider coalesces tasks ({@link CoalescingMetricsProvider}), its coalescing counters are exposed too.
+ * </p>
+ * <p>
+ * The registry is registered as an MBean under the {@link #objectName} on {@link #init()}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class DefaultTaskMetrics implements TaskMetrics, DefaultTaskMetricsMBean {
+    private static final Logger logger = LoggerFactory.getLogger(DefaultTaskMetrics.class);
+    private final ConcurrentMap<String, TypeCounters> typeCounters = new ConcurrentHashMap<String, TypeCounters>();
+    /**
+     * Number of tasks started and not executed yet.
+     */
+    private final AtomicInteger runningTasks = new AtomicInteger();
+    /**
+     * Number of failed tasks waiting for their delay before being queued again.
+     */
+    private final AtomicInteger scheduledRetries = new AtomicInteger();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile ThroughputMeter queuingThroughput = new ThroughputMeter();
+    private volatile ThroughputMeter executionThroughput = new ThroughputMeter();
+    private volatile Log2Histogram queueTimes = new Log2Histogram();
+    private volatile Log2Histogram executionTimes = new Log2Histogram();
+    private volatile Log2Histogram retryDelays = new Log2Histogram();
+    private QueueDepthProvider queueDepthProvider;
+    private String objectName = "uk.ac.ox.oucs.search2:type=TaskMetrics";
+
+    public void init() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+            mBeanServer.registerMBean(this, name);
+        } catch (Exception e) {
+            logger.warn("Couldn't register the task metrics in JMX as '" + objectName + "'", e);
+        }
+    }
+
+    public void destroy() {
+        try {
+            ObjectName name = new ObjectName(objectName);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+        } catch (Exception e) {
+            logger.warn("Couldn't unregister the task metrics from JMX", e);
+        }
+    }
+
+    @Override
+    public void taskQueued(Task task) {
+        getTypeCounters(task).queued.incrementAndGet();
+        queuingThroughput.mark();
+    }
+
+    @Override
+    public void taskStarted(Task task, long queueTime) {
+        runningTasks.incrementAndGet();
+        queueTimes.record(queueTime);
+    }
+
+    @Override
+    public void taskExecuted(Task task, long executionTime, boolean successful) {
+        runningTasks.decrementAndGet();
+        TypeCounters counters = getTypeCounters(task);
+        if (successful)
+            counters.succeeded.incrementAndGet();
+        else
+            counters.failed.incrementAndGet();
+        executionTimes.record(executionTime);
+        executionThroughput.mark();
+    }
+
+    @Override
+    public void taskRetryScheduled(Task task, long delay) {
+        scheduledRetries.incrementAndGet();
+        getTypeCounters(task).retried.incrementAndGet();
+        retryDelays.record(delay);
+    }
+
+    @Override
+    public void taskRetryEnded(Task task) {
+        scheduledRetries.decrementAndGet();
+    }
+
+    @Override
+    public void eventDropped() {
+        droppedEvents.incrementAndGet();
+    }
+
+    private TypeCounters getTypeCounters(Task task) {
+        TypeCounters counters = typeCounters.get(task.getType());
+        if (counters == null) {
+            TypeCounters newCounters = new TypeCounters();
+            counters = typeCounters.putIfAbsent(task.getType(), newCounters);
+            if (counters == null)
+                counters = newCounters;
+        }
+        return counters;
+    }
+
+    @Override
+    public long getQueuedTaskCount() {
+        long count = 0;
+        for (TypeCounters counters : typeCounters.values()) {
+            count += counters.queued.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getSucceededTaskCount() {
+        long count = 0;
+        for (TypeCounters counters : typeCounters.values()) {
+            count += counters.succeeded.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getFailedTaskCount() {
+        long count = 0;
+        for (TypeCounters counters : typeCounters.values()) {
+            count += counters.failed.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getRetriedTaskCount() {
+        long count = 0;
+        for (TypeCounters counters : typeCounters.values()) {
+            count += counters.retried.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
+    @Override
+    public String[] getTaskTypeStatistics() {
+        List<String> statistics = new ArrayList<String>();
+        for (Map.Entry<String, TypeCounters> entry : new TreeMap<String, TypeCounters>(typeCounters).entrySet()) {
+            TypeCounters counters = entry.getValue();
+            statistics.add(entry.getKey() + ": queued=" + counters.queued + ", succeeded=" + counters.succeeded
+                    + ", failed=" + counters.failed + ", retried=" + counters.retried);
+        }
+        return statistics.toArray(new String[statistics.size()]);
+    }
+
+    @Override
+    public int getPendingTaskCount() {
+        if (queueDepthProvider == null)
+            return -1;
+
+        int pendingTaskCount = Math.max(runningTasks.get(), 0) + Math.max(scheduledRetries.get(), 0);
+        for (int depth : queueDepthProvider.getQueueDepths().values()) {
+            if (depth > 0)
+                pendingTaskCount += depth;
+        }
+        return pendingTaskCount;
+    }
+
+    @Override
+    public int getScheduledRetryCount() {
+        return Math.max(scheduledRetries.get(), 0);
+    }
+
+    @Override
+    public String[] getQueueDepths() {
+        if (queueDepthProvider == null)
+            return new String[0];
+
+        List<String> depths = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : queueDepthProvider.getQueueDepths().entrySet()) {
+            depths.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return depths.toArray(new String[depths.size()]);
+    }
+
+    @Override
+    public long getCollapsedTaskCount() {
+        if (queueDepthProvider instanceof CoalescingMetricsProvider)
+            return ((CoalescingMetricsProvider) queueDepthProvider).getCollapsedTaskCount();
+        else
+            return -1;
+    }
+
+    @Override
+    public int getPendingCoalescedTaskCount() {
+        if (queueDepthProvider instanceof CoalescingMetricsProvider)
+            return ((CoalescingMetricsProvider) queueDepthProvider).getPendingCoalescedTaskCount();
+        else
+            return -1;
+    }
+
+    @Override
+    public long[] getQueueTimeHistogram() {
+        return queueTimes.getBuckets();
+    }
+
+    @Override
+    public long[] getExecutionTimeHistogram() {
+        return executionTimes.getBuckets();
+    }
+
+    @Override
+    public long[] getRetryDelayHistogram() {
+        return retryDelays.getBuckets();
+    }
+
+    @Override
+    public double getMeanQueueTime() {
+        return queueTimes.getMean();
+    }
+
+    @Override
+    public double getMeanExecutionTime() {
+        return executionTimes.getMean();
+    }
+
+    @Override
+    public double getMeanRetryDelay() {
+        return retryDelays.getMean();
+    }
+
+    @Override
+    public long getQueueTime99thPercentile() {
+        return queueTimes.getPercentile(99);
+    }
+
+    @Override
+    public long getExecutionTime99thPercentile() {
+        return executionTimes.getPercentile(99);
+    }
+
+    @Override
+    public double getQueuingThroughput() {
+        return queuingThroughput.getRate();
+    }
+
+    @Override
+    public double getExecutionThroughput() {
+        return executionThroughput.getRate();
+    }
+
+    @Override
+    public void reset() {
+        typeCounters.clear();
+        droppedEvents.set(0);
+        queueTimes = new Log2Histogram();
+        executionTimes = new Log2Histogram();
+        retryDelays = new Log2Histogram();
+        queuingThroughput = new ThroughputMeter();
+        executionThroughput = new ThroughputMeter();
+    }
+
+    public void setQueueDepthProvider(QueueDepthProvider queueDepthProvider) {
+        this.queueDepthProvider = queueDepthProvider;
+    }
+
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * Counters of one type of task.
+     */
+    private static final class TypeCounters {
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong retried = new AtomicLong();
+    }
+
+    /**
+     * Number of events per second over the last minute.
+     * <p>
+     * Events are counted in one slot per second, a slot being reused when its second is more than a minute old.<br />
+     * Each slot holds the second (high 32 bits) and the count (low 32 bits) in a single long, so a slot is reused and
+     * incremented atomically without losing concurrent events.
+     * </p>
+     */
+    private static final class ThroughputMeter {
+        private static final int SLOT_COUNT = 60;
+        private static final long COUNT_MASK = 0xFFFFFFFFL;
+        private final AtomicLongArray slots = new AtomicLongArray(SLOT_COUNT);
+
+        private void mark() {
+            long second = System.currentTimeMillis() / 1000;
+            int slot = (int) (second % SLOT_COUNT);
+            while (true) {
+                long value = slots.get(slot);
+                long newValue = (value >>> 32 == second) ? value + 1 : (second << 32) | 1;
+                if (slots.compareAndSet(slot, value, newValue))
+                    return;
+            }
+        }
+
+        private double getRate() {
+            long currentSecond = System.currentTimeMillis() / 1000;
+            long total = 0;
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                // Only count the complete seconds of the last minute
+                long value = slots.get(i);
+                long slotSecond = value >>> 32;
+                if (slotSecond < currentSecond && currentSecond - slotSecond <= SLOT_COUNT)
+                    total += value & COUNT_MASK;
+            }
+            return (double) total / SLOT_COUNT;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package uk.ac.ox.oucs.search2.indexation.metrics;
+
+/**
+ * JMX view of the {@link DefaultTaskMetrics}.
+ * <p>
+ * Durations are in milliseconds, histograms are given as counts of {@link Log2Histogram} buckets and throughputs
+ * in tasks per second over the last minute.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface DefaultTaskMetricsMBean {
+    long getQueuedTaskCount();
+
+    long getSucceededTaskCount();
+
+    long getFailedTaskCount();
+
+    long getRetriedTaskCount();
+
+    /**
+     * Gets the number of events dropped because too many events were waiting to be dispatched.
+     *
+     * @return the number of dropped events.
+     */
+    long getDroppedEventCount();
+
+    /**
+     * Gets the counters of each type of task.
+     *
+     * @return one line per type of task, with the number of queued, succeeded, failed and retried tasks.
+     */
+    String[] getTaskTypeStatistics();
+
+    /**
+     * Gets the number of tasks waiting to be executed in every queue, plus the tasks being executed and the failed
+     * tasks waiting to be queued again.
+     *
+     * @return the number of pending tasks, or -1 if the queuing system doesn't provide it.
+     */
+    int getPendingTaskCount();
+
+    /**
+     * Gets the number of failed tasks waiting for their delay before being queued again.
+     *
+     * @return the number of scheduled retries.
+     */
+    int getScheduledRetryCount();
+
+    /**
+     * Gets the number of tasks waiting in each queue.
+     *
+     * @return one line per queue, with its depth.
+     */
+    String[] getQueueDepths();
+
+    /**
+     * Gets the number of tasks dropped or replaced because a task related to the same document or site was pending.
+     *
+     * @return the number of collapsed tasks since the startup, or -1 if the queuing system doesn't coalesce tasks.
+     */
+    long getCollapsedTaskCount();
+
+    /**
+     * Gets the number of pending tasks subject to coalescing.
+     *
+     * @return the number of pending coalesced tasks, or -1 if the queuing system doesn't coalesce tasks.
+     */
+    int getPendingCoalescedTaskCount();
+
+    long[] getQueueTimeHistogram();
+
+    long[] getExecutionTimeHistogram();
+
+    long[] getRetryDelayHistogram();
+
+    double getMeanQueueTime();
+
+    double getMeanExecutionTime();
+
+    double getMeanRetryDelay();
+
+    long getQueueTime99thPercentile();
+
+    long getExecutionTime99thPercentile();
+
+    double getQueuingThroughput();
+
+    double getExecutionThroughput();
+
+    /**
+     * Resets every counter and histogram.
+     */
+    void reset();
+}
@@ -0,0 +1,101 @@
+package uk.ac.ox.oucs.search2.indexation.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations, with buckets growing as powers of two.
+ * <p>
+ * The bucket {@code i} counts the values between {@code 2^(i-1)} (excluded) and {@code 2^i} (included), the bucket
+ * 0 counts the values equal to 0 and the bucket 1 the values 1 and 2.<br />
+ * The precision is coarse, but recording a value is only a couple of atomic increments.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class Log2Histogram {
+    private static final int BUCKET_COUNT = 64;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Records a value, negative values are ignored.
+     *
+     * @param value value to record.
+     */
+    public void record(long value) {
+        if (value < 0)
+            return;
+        buckets.incrementAndGet(getBucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    private static int getBucket(long value) {
+        return (value <= 1) ? (int) value : BUCKET_COUNT - Long.numberOfLeadingZeros(value - 1);
+    }
+
+    private static long getUpperBound(int bucket) {
+        if (bucket == 0)
+            return 0;
+        else if (bucket == BUCKET_COUNT - 1)
+            return Long.MAX_VALUE;
+        else
+            return 1L << bucket;
+    }
+
+    /**
+     * Gets the number of values recorded in each bucket.
+     *
+     * @return the count of each bucket, up to the last non empty bucket.
+     */
+    public long[] getBuckets() {
+        int lastBucket = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            if (counts[i] != 0)
+                lastBucket = i;
+        }
+        long[] result = new long[lastBucket + 1];
+        System.arraycopy(counts, 0, result, 0, result.length);
+        return result;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return the mean, or 0 if nothing has been recorded.
+     */
+    public double getMean() {
+        long currentCount = count.get();
+        return (currentCount == 0) ? 0 : (double) sum.get() / currentCount;
+    }
+
+    /**
+     * Gets an upper bound of a percentile of the recorded values.
+     *
+     * @param percentile percentile to compute, between 0 and 100.
+     * @return the upper bound of the bucket containing the percentile, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBuckets();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long accumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            accumulated += counts[i];
+            if (accumulated >= threshold && accumulated > 0)
+                return getUpperBound(i);
+        }
+        return 0;
+    }
+}
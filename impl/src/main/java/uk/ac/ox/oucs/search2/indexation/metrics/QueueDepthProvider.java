@@ -0,0 +1,20 @@
+package uk.ac.ox.oucs.search2.indexation.metrics;
+
+import java.util.Map;
+
+/**
+ * Queuing system able to tell how many tasks are waiting to be executed.
+ *
+ * @author Colin Hebert
+ */
+public interface QueueDepthProvider {
+    /**
+     * Gets the number of tasks waiting in each queue.
+     * <p>
+     * Queuing systems with multiple queues (one per executor or per lane) give the depth of each queue.
+     * </p>
+     *
+     * @return the number of waiting tasks, by name of queue.
+     */
+    Map<String, Integer> getQueueDepths();
+}
@@ -0,0 +1,68 @@
+package uk.ac.ox.oucs.search2.indexation.metrics;
+
+import uk.ac.ox.oucs.search2.indexation.Task;
+
+/**
+ * Registry notified of the life cycle of each {@link Task}.
+ * <p>
+ * Task runners notify the registry when a task is queued, when it starts, when it has been executed and when it's
+ * scheduled to be executed again, and when an event is dropped before its tasks are even generated.<br />
+ * The registry can be asked in return how many tasks are still to be executed.<br />
+ * Implementations must be thread safe and fast, as they're called by every thread executing tasks.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface TaskMetrics {
+    /**
+     * Notifies that a task has been added to the queue.
+     *
+     * @param task queued task.
+     */
+    void taskQueued(Task task);
+
+    /**
+     * Notifies that a task has been taken from the queue and is about to be executed.
+     *
+     * @param task      started task.
+     * @param queueTime time (in ms) spent by the task in the queue, or a negative value if it's unknown.
+     */
+    void taskStarted(Task task, long queueTime);
+
+    /**
+     * Notifies that a task has been executed.
+     *
+     * @param task          executed task.
+     * @param executionTime time (in ms) spent executing the task.
+     * @param successful    whether the execution succeeded.
+     */
+    void taskExecuted(Task task, long executionTime, boolean successful);
+
+    /**
+     * Notifies that a failed task will be executed again.
+     *
+     * @param task  task to execute again.
+     * @param delay time (in ms) before the task is queued again.
+     */
+    void taskRetryScheduled(Task task, long delay);
+
+    /**
+     * Notifies that a task scheduled to be executed again has left the retry scheduler, either queued again or
+     * abandoned.
+     *
+     * @param task task which was waiting to be executed again.
+     */
+    void taskRetryEnded(Task task);
+
+    /**
+     * Notifies that an event has been dropped before any task could be generated from it.
+     */
+    void eventDropped();
+
+    /**
+     * Gets the number of tasks waiting to be executed or being executed, including the tasks waiting to be retried.
+     *
+     * @return the number of pending tasks, or -1 if it's unknown.
+     */
+    int getPendingTaskCount();
+}
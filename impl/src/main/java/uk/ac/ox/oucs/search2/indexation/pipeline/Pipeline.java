@@ -0,0 +1,300 @@
+package uk.ac.ox.oucs.search2.indexation.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.exception.MultipleTasksException;
+import uk.ac.ox.oucs.search2.indexation.exception.TaskException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chain of {@link Stage}s processing elements concurrently.
+ * <p>
+ * Elements are enumerated by the calling thread and go through each stage in order.
+ * Every stage is run by its own number of workers, and stages are joined by bounded queues.<br />
+ * When a stage is slower than the previous one, its queue fills up and the previous stage waits, so a slow stage
+ * applies a backpressure up to the enumeration instead of accumulating elements in memory.
+ * </p>
+ * <p>
+ * Workers are run by the provided executor, which must be able to run every worker of the pipeline at the same time.
+ * <br />
+ * {@link TaskException}s thrown by the stages are collected and thrown once every element went through the pipeline.
+ * <br />
+ * Any other failure of a stage is collected the same way. If a worker can't go on (interrupted, or failing between two
+ * elements), the processing is aborted and the remaining workers are cancelled instead of waiting forever.
+ * </p>
+ *
+ * @param <T> type of element processed.
+ * @author Colin Hebert
+ */
+public class Pipeline<T> {
+    private static final Logger logger = LoggerFactory.getLogger(Pipeline.class);
+    /**
+     * Marker sent to the workers when there are no more elements to process.
+     */
+    private static final Object END_OF_STREAM = new Object();
+    /**
+     * Time (in ms) between two checks of an aborted execution while waiting for some space in a queue.
+     */
+    private static final long ABORT_CHECK_INTERVAL = 100;
+    private final ExecutorService executor;
+    private final int queueCapacity;
+    private final List<StageDefinition<T>> stages = new ArrayList<StageDefinition<T>>();
+
+    /**
+     * Creates an empty pipeline.
+     *
+     * @param executor      executor running the workers of every stage.
+     * @param queueCapacity maximum number of elements waiting in front of each stage.
+     */
+    public Pipeline(ExecutorService executor, int queueCapacity) {
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Adds a stage at the end of the pipeline.
+     *
+     * @param name         name of the stage.
+     * @param stageFactory factory creating the stage of each worker.
+     * @param parallelism  number of workers for this stage.
+     * @return the current pipeline.
+     */
+    public Pipeline<T> addStage(String name, Stage.Factory<T> stageFactory, int parallelism) {
+        stages.add(new StageDefinition<T>(name, stageFactory, Math.max(parallelism, 1)));
+        return this;
+    }
+
+    /**
+     * Processes every element through the pipeline.
+     * <p>
+     * The current thread enumerates the elements and waits until every element has been processed.
+     * </p>
+     *
+     * @param elements elements to process.
+     * @throws MultipleTasksException if some elements couldn't be processed.
+     */
+    public void process(Iterator<T> elements) {
+        Execution execution = new Execution();
+        List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>(stages.size());
+        for (int i = 0; i < stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<Object>(queueCapacity));
+        }
+
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < stages.size(); i++) {
+                StageDefinition<T> stage = stages.get(i);
+                AtomicInteger activeWorkers = new AtomicInteger(stage.parallelism);
+                for (int j = 0; j < stage.parallelism; j++) {
+                    workers.add(executor.submit(new Worker(i, queues, activeWorkers, execution)));
+                }
+            }
+
+            BlockingQueue<Object> firstQueue = queues.get(0);
+            boolean accepted = true;
+            while (accepted && elements.hasNext()) {
+                try {
+                    accepted = execution.put(firstQueue, elements.next());
+                } catch (TaskException e) {
+                    execution.failures.add(e);
+                }
+            }
+            for (int i = 0; accepted && i < stages.get(0).parallelism; i++) {
+                accepted = execution.put(firstQueue, END_OF_STREAM);
+            }
+
+            execution.done.await();
+            if (execution.aborted) {
+                // Workers may still be waiting for elements which will never come
+                cancel(workers);
+            }
+        } catch (InterruptedException e) {
+            cancel(workers);
+            Thread.currentThread().interrupt();
+            throw new TaskException("Interrupted while processing the pipeline", e);
+        } catch (RuntimeException e) {
+            // Don't leave workers waiting forever
+            cancel(workers);
+            throw e;
+        }
+
+        if (!execution.failures.isEmpty()) {
+            MultipleTasksException mte = new MultipleTasksException("Some elements couldn't go through the pipeline");
+            for (TaskException failure : execution.failures) {
+                mte.addTaskException(failure);
+            }
+            throw mte;
+        }
+    }
+
+    private static void cancel(List<Future<?>> workers) {
+        for (Future<?> worker : workers) {
+            worker.cancel(true);
+        }
+    }
+
+    private static final class StageDefinition<T> {
+        private final String name;
+        private final Stage.Factory<T> stageFactory;
+        private final int parallelism;
+
+        private StageDefinition(String name, Stage.Factory<T> stageFactory, int parallelism) {
+            this.name = name;
+            this.stageFactory = stageFactory;
+            this.parallelism = parallelism;
+        }
+    }
+
+    /**
+     * State of a single call to {@link #process(Iterator)}, shared by its workers.
+     * <p>
+     * A worker which can't go on (interrupted, or failing outside of the processing of an element) aborts the
+     * execution, so the caller stops waiting and cancels the other workers.
+     * </p>
+     */
+    private static final class Execution {
+        private final Queue<TaskException> failures = new ConcurrentLinkedQueue<TaskException>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean aborted;
+
+        private void abort(TaskException cause) {
+            failures.add(cause);
+            aborted = true;
+            done.countDown();
+        }
+
+        /**
+         * Hands an element over to a stage, waiting for some space in its queue unless the execution is aborted.
+         *
+         * @param queue   queue of the stage.
+         * @param element element to add.
+         * @return true if the element has been added, false if the execution has been aborted.
+         * @throws InterruptedException if the thread has been interrupted while waiting.
+         */
+        private boolean put(BlockingQueue<Object> queue, Object element) throws InterruptedException {
+            while (!queue.offer(element, ABORT_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (aborted)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Worker taking elements from the queue of its stage and handing them over to the next stage.
+     * <p>
+     * The last worker of a stage to finish notifies the workers of the next stage, whatever happened to it.
+     * </p>
+     */
+    private final class Worker implements Runnable {
+        private final int stageIndex;
+        private final List<BlockingQueue<Object>> queues;
+        private final AtomicInteger activeWorkers;
+        private final Execution execution;
+
+        private Worker(int stageIndex, List<BlockingQueue<Object>> queues, AtomicInteger activeWorkers,
+                       Execution execution) {
+            this.stageIndex = stageIndex;
+            this.queues = queues;
+            this.activeWorkers = activeWorkers;
+            this.execution = execution;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            StageDefinition<T> definition = stages.get(stageIndex);
+            BlockingQueue<Object> input = queues.get(stageIndex);
+            BlockingQueue<Object> output = (stageIndex + 1 < queues.size()) ? queues.get(stageIndex + 1) : null;
+            try {
+                Stage<T> stage = null;
+                try {
+                    stage = definition.stageFactory.createStage();
+                } catch (Throwable t) {
+                    // Keep on consuming elements so the pipeline doesn't get stuck
+                    execution.failures.add(new TaskException("Couldn't create the stage '" + definition.name + "'",
+                            t));
+                }
+
+                Object element;
+                while ((element = input.take()) != END_OF_STREAM) {
+                    if (stage == null)
+                        continue;
+
+                    T result = null;
+                    try {
+                        result = stage.process((T) element);
+                    } catch (TaskException e) {
+                        execution.failures.add(e);
+                    } catch (Throwable t) {
+                        execution.failures.add(new TaskException("An exception occurred in the stage '"
+                                + definition.name + "'", t));
+                    }
+                    if (result != null && output != null && !execution.put(output, result))
+                        return;
+                }
+
+                try {
+                    if (stage != null)
+                        stage.finish();
+                } catch (TaskException e) {
+                    execution.failures.add(e);
+                } catch (Throwable t) {
+                    execution.failures.add(new TaskException("An exception occurred while finishing the stage '"
+                            + definition.name + "'", t));
+                }
+            } catch (InterruptedException e) {
+                logger.warn("A worker of the stage '" + definition.name + "' has been interrupted", e);
+                execution.abort(new TaskException("A worker of the stage '" + definition.name
+                        + "' has been interrupted", e));
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                logger.error("A worker of the stage '" + definition.name + "' failed", t);
+                execution.abort(new TaskException("A worker of the stage '" + definition.name + "' failed", t));
+            } finally {
+                endWorker(definition, output);
+            }
+        }
+
+        /**
+         * Notifies the next stage (or the caller) once the last worker of the stage is done.
+         *
+         * @param definition stage of the worker.
+         * @param output     queue of the next stage, null if this is the last stage.
+         */
+        private void endWorker(StageDefinition<T> definition, BlockingQueue<Object> output) {
+            if (activeWorkers.decrementAndGet() != 0 || execution.aborted)
+                return;
+
+            if (logger.isDebugEnabled())
+                logger.debug("The stage '" + definition.name + "' is done");
+            if (output == null) {
+                execution.done.countDown();
+                return;
+            }
+
+            try {
+                for (int i = 0; i < stages.get(stageIndex + 1).parallelism; i++) {
+                    if (!execution.put(output, END_OF_STREAM))
+                        return;
+                }
+            } catch (InterruptedException e) {
+                execution.abort(new TaskException("A worker of the stage '" + definition.name
+                        + "' has been interrupted", e));
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package uk.ac.ox.oucs.search2.indexation.pipeline;
+
+/**
+ * Step of a {@link Pipeline} processing elements one by one.
+ * <p>
+ * A Stage is used by a single worker thread, so it can keep a state (such as a batch of elements) without
+ * synchronisation.<br />
+ * Failures are expected to be reported as {@link uk.ac.ox.oucs.search2.indexation.exception.TaskException}, they don't
+ * stop the pipeline.
+ * </p>
+ *
+ * @param <T> type of element processed.
+ * @author Colin Hebert
+ */
+public interface Stage<T> {
+    /**
+     * Processes an element.
+     *
+     * @param element element to process.
+     * @return the element to hand over to the next stage, or null if the element shouldn't go further.
+     */
+    T process(T element);
+
+    /**
+     * Notifies the stage that no more elements will be processed by this worker.
+     * <p>
+     * Elements kept in the stage should be processed at this point.
+     * </p>
+     */
+    void finish();
+
+    /**
+     * Creates a new {@link Stage} for each worker thread.
+     *
+     * @param <T> type of element processed.
+     */
+    interface Factory<T> {
+        Stage<T> createStage();
+    }
+}
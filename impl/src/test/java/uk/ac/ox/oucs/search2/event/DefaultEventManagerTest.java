@@ -0,0 +1,196 @@
+package uk.ac.ox.oucs.search2.event;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.NotificationEdit;
+import org.sakaiproject.event.api.NotificationService;
+import uk.ac.ox.oucs.search2.indexation.DefaultTask;
+import uk.ac.ox.oucs.search2.indexation.Task;
+import uk.ac.ox.oucs.search2.indexation.TaskQueuing;
+import uk.ac.ox.oucs.search2.indexation.metrics.DefaultTaskMetrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link DefaultEventManager} queues the tasks of the handlers matching each event, and counts the
+ * events dropped when too many of them are waiting.
+ *
+ * @author Colin Hebert
+ */
+public class DefaultEventManagerTest {
+    private static final String REVISE_EVENT = "content.revise";
+    private final List<Task> queuedTasks = Collections.synchronizedList(new ArrayList<Task>());
+    private final CountDownLatch dispatchStarted = new CountDownLatch(1);
+    private final CountDownLatch dispatchReleased = new CountDownLatch(1);
+    private DefaultTaskMetrics taskMetrics;
+    private DefaultEventManager eventManager;
+
+    @Before
+    public void setUp() {
+        taskMetrics = new DefaultTaskMetrics();
+        eventManager = new DefaultEventManager();
+        eventManager.setNotificationService(createNotificationService());
+        eventManager.setTaskMetrics(taskMetrics);
+        eventManager.setTaskQueuing(new TaskQueuing() {
+            @Override
+            public void addTaskToQueue(Task task) {
+                queuedTasks.add(task);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        dispatchReleased.countDown();
+        eventManager.destroy();
+    }
+
+    @Test
+    public void testEventsDispatched() throws Exception {
+        eventManager.init();
+        eventManager.addEventHandler(new TestEventHandler("/content/"));
+        eventManager.addEventHandler(new TestEventHandler("/content/group/"));
+
+        eventManager.notify(createEvent("site.upd", "/content/group/site/ignored"));
+        eventManager.notify(createEvent(REVISE_EVENT, "/content/user/document"));
+        eventManager.notify(createEvent(REVISE_EVENT, "/content/group/site/document"));
+
+        // Only the handlers matching each event generate a task
+        waitForQueuedTasks(3);
+        assertEquals(Arrays.asList("/content/user/document", "/content/group/site/document",
+                "/content/group/site/document"), getQueuedReferences());
+        assertEquals(0, taskMetrics.getDroppedEventCount());
+    }
+
+    @Test
+    public void testEventDroppedWhenFull() throws Exception {
+        eventManager.setEventQueueCapacity(2);
+        eventManager.init();
+        TestEventHandler eventHandler = new TestEventHandler("/content/");
+        eventHandler.blocking = true;
+        eventManager.addEventHandler(eventHandler);
+
+        // The dispatcher is stuck on the first event, the next two fill the buffer
+        eventManager.notify(createEvent(REVISE_EVENT, "/content/document0"));
+        assertTrue(dispatchStarted.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 3; i++) {
+            eventManager.notify(createEvent(REVISE_EVENT, "/content/document" + i));
+        }
+        assertEquals(1, eventManager.getDroppedEventCount());
+        assertEquals(1, taskMetrics.getDroppedEventCount());
+
+        dispatchReleased.countDown();
+        waitForQueuedTasks(3);
+        assertEquals(Arrays.asList("/content/document0", "/content/document1", "/content/document2"),
+                getQueuedReferences());
+    }
+
+    private void waitForQueuedTasks(int taskCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queuedTasks.size() < taskCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give a chance to unexpected tasks to be queued too
+        Thread.sleep(50);
+    }
+
+    private List<String> getQueuedReferences() {
+        List<String> references = new ArrayList<String>();
+        synchronized (queuedTasks) {
+            for (Task task : queuedTasks) {
+                references.add(task.getProperty(DefaultTask.DOCUMENT_REFERENCE));
+            }
+        }
+        return references;
+    }
+
+    private static NotificationService createNotificationService() {
+        final NotificationEdit notification = (NotificationEdit) Proxy.newProxyInstance(
+                NotificationEdit.class.getClassLoader(), new Class<?>[]{NotificationEdit.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        // Registrations are ignored
+                        return null;
+                    }
+                });
+        return new NotificationService() {
+            @Override
+            public NotificationEdit addTransientNotification() {
+                return notification;
+            }
+        };
+    }
+
+    private static Event createEvent(final String eventType, final String resource) {
+        return (Event) Proxy.newProxyInstance(Event.class.getClassLoader(), new Class<?>[]{Event.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getEvent".equals(method.getName()))
+                            return eventType;
+                        else if ("getResource".equals(method.getName()))
+                            return resource;
+                        else if ("getEventTime".equals(method.getName()))
+                            return new Date();
+                        else if ("toString".equals(method.getName()))
+                            return eventType + '@' + resource;
+                        else
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Handler of the {@link #REVISE_EVENT} events whose resource starts with a prefix.
+     * <p>
+     * A blocking handler waits for the test to release it before generating its first task.
+     * </p>
+     */
+    private final class TestEventHandler implements EventHandler {
+        private final String prefix;
+        private volatile boolean blocking;
+
+        private TestEventHandler(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Collection<String> getSupportedEventTypes() {
+            return Collections.singleton(REVISE_EVENT);
+        }
+
+        @Override
+        public Task getTask(Event event) {
+            if (blocking) {
+                dispatchStarted.countDown();
+                try {
+                    dispatchReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new DefaultTask(DefaultTask.Type.INDEX_DOCUMENT)
+                    .setProperty(DefaultTask.DOCUMENT_REFERENCE, event.getResource());
+        }
+
+        @Override
+        public boolean isHandled(Event event) {
+            return event.getResource().startsWith(prefix);
+        }
+    }
+}
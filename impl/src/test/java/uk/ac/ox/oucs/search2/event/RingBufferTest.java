@@ -0,0 +1,107 @@
+package uk.ac.ox.oucs.search2.event;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link RingBuffer} refuses elements once full, and that concurrent producers and consumers neither
+ * lose nor duplicate elements.
+ *
+ * @author Colin Hebert
+ */
+public class RingBufferTest {
+    private static final int THREAD_COUNT = 4;
+    private static final int ELEMENTS_PER_PRODUCER = 100000;
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(5);
+        assertEquals(8, ringBuffer.capacity());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        assertFalse(ringBuffer.offer(8));
+        assertEquals(8, ringBuffer.size());
+
+        // A slot freed by a consumer can be used again
+        assertEquals(Integer.valueOf(0), ringBuffer.poll());
+        assertTrue(ringBuffer.offer(8));
+        assertFalse(ringBuffer.offer(9));
+        for (int i = 1; i <= 8; i++) {
+            assertEquals(Integer.valueOf(i), ringBuffer.poll());
+        }
+        assertNull(ringBuffer.poll());
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(64);
+        final int elementCount = THREAD_COUNT * ELEMENTS_PER_PRODUCER;
+        final AtomicIntegerArray receptions = new AtomicIntegerArray(elementCount);
+        final AtomicInteger consumedElements = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int firstElement = i * ELEMENTS_PER_PRODUCER;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int element = firstElement; element < firstElement + ELEMENTS_PER_PRODUCER; element++) {
+                        while (!ringBuffer.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    while (consumedElements.get() < elementCount) {
+                        Integer element = ringBuffer.poll();
+                        if (element == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        receptions.incrementAndGet(element);
+                        consumedElements.incrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertFalse("The threads should be done", thread.isAlive());
+        }
+
+        assertEquals(elementCount, consumedElements.get());
+        for (int i = 0; i < elementCount; i++) {
+            assertEquals("The element " + i + " should have been received once", 1, receptions.get(i));
+        }
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package uk.ac.ox.oucs.search2.event;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ox.oucs.search2.indexation.DefaultTask;
+import uk.ac.ox.oucs.search2.indexation.Task;
+import uk.ac.ox.oucs.search2.indexation.TaskQueuing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link TaskDebouncer} only queues the last task of a document, and never queues a held task after
+ * a deletion.
+ *
+ * @author Colin Hebert
+ */
+public class TaskDebouncerTest {
+    private static final String REFERENCE = "/content/group/site/document";
+    private final List<Task> queuedTasks = Collections.synchronizedList(new ArrayList<Task>());
+    private TaskDebouncer taskDebouncer;
+
+    @Before
+    public void setUp() {
+        taskDebouncer = new TaskDebouncer();
+        taskDebouncer.setTaskQueuing(new TaskQueuing() {
+            @Override
+            public void addTaskToQueue(Task task) {
+                queuedTasks.add(task);
+            }
+        });
+        taskDebouncer.setTaskTypeQuietPeriods(
+                Collections.singletonMap(DefaultTask.Type.UNINDEX_DOCUMENT.getTypeName(), 0L));
+    }
+
+    @After
+    public void tearDown() {
+        taskDebouncer.destroy();
+    }
+
+    @Test
+    public void testLastTaskQueuedAfterQuietPeriod() throws Exception {
+        taskDebouncer.setQuietPeriod(50);
+        taskDebouncer.init();
+
+        Task lastTask = null;
+        for (int i = 0; i < 10; i++) {
+            lastTask = createTask(DefaultTask.Type.INDEX_DOCUMENT);
+            taskDebouncer.addTask("content.revise", lastTask);
+        }
+        assertEquals(1, taskDebouncer.getHeldTaskCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queuedTasks.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList(lastTask), queuedTasks);
+        assertEquals(0, taskDebouncer.getHeldTaskCount());
+    }
+
+    @Test
+    public void testDeletionReplacesHeldTask() {
+        taskDebouncer.setQuietPeriod(60 * 1000);
+        taskDebouncer.init();
+
+        taskDebouncer.addTask("content.revise", createTask(DefaultTask.Type.INDEX_DOCUMENT));
+        Task deletion = createTask(DefaultTask.Type.UNINDEX_DOCUMENT);
+        taskDebouncer.addTask("content.delete", deletion);
+
+        assertEquals(Collections.singletonList(deletion), queuedTasks);
+        assertEquals(0, taskDebouncer.getHeldTaskCount());
+    }
+
+    private static Task createTask(DefaultTask.Type type) {
+        return new DefaultTask(type).setProperty(DefaultTask.DOCUMENT_REFERENCE, REFERENCE);
+    }
+}
@@ -0,0 +1,134 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import uk.ac.ox.oucs.search2.indexation.exception.TemporaryTaskException;
+import uk.ac.ox.oucs.search2.indexation.metrics.DefaultTaskMetrics;
+import uk.ac.ox.oucs.search2.indexation.metrics.QueueDepthProvider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the tasks of the {@link AbstractTaskRunner} stay pending in the metrics while they're waiting to be
+ * retried, and stop being counted as running when their execution is interrupted.
+ *
+ * @author Colin Hebert
+ */
+public class AbstractTaskRunnerTest {
+    private final List<Task> queuedTasks = Collections.synchronizedList(new ArrayList<Task>());
+    private final List<Task> executedTasks = Collections.synchronizedList(new ArrayList<Task>());
+    private ScheduledExecutorService retryScheduler;
+    private CircuitBreaker circuitBreaker;
+    private DefaultTaskMetrics taskMetrics;
+    private AbstractTaskRunner taskRunner;
+
+    @Before
+    public void setUp() {
+        retryScheduler = new ScheduledThreadPoolExecutor(1);
+        circuitBreaker = new CircuitBreaker();
+        taskMetrics = new DefaultTaskMetrics();
+        taskMetrics.setQueueDepthProvider(new QueueDepthProvider() {
+            @Override
+            public Map<String, Integer> getQueueDepths() {
+                return Collections.singletonMap("queue", queuedTasks.size());
+            }
+        });
+
+        taskRunner = new AbstractTaskRunner() {
+        };
+        taskRunner.setCircuitBreaker(circuitBreaker);
+        taskRunner.setRetryScheduler(retryScheduler);
+        taskRunner.setTaskMetrics(taskMetrics);
+        taskRunner.setMaximumWaitingTime(50);
+        taskRunner.setSecurityService(createProxy(SecurityService.class));
+        taskRunner.setThreadLocalManager(createProxy(ThreadLocalManager.class));
+        taskRunner.setTaskQueuing(new TaskQueuing() {
+            @Override
+            public void addTaskToQueue(Task task) {
+                queuedTasks.add(task);
+            }
+        });
+        taskRunner.setTaskHandler(new TaskHandler() {
+            @Override
+            public void executeTask(Task task) {
+                executedTasks.add(task);
+                throw new TemporaryTaskException("Temporary failure", task);
+            }
+
+            @Override
+            public void executeTasks(Collection<Task> tasks) {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        retryScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testScheduledRetryIsPending() throws Exception {
+        Task task = new DefaultTask(DefaultTask.Type.INDEX_DOCUMENT);
+        taskRunner.taskStarted(task, System.currentTimeMillis());
+        taskRunner.runTask(task);
+
+        assertEquals(Collections.singletonList(task), executedTasks);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queuedTasks.isEmpty() && System.currentTimeMillis() < deadline) {
+            // The task never stops being pending, it can be counted twice while it's queued again
+            assertTrue(taskMetrics.getPendingTaskCount() >= 1);
+            Thread.sleep(5);
+        }
+
+        assertEquals(Collections.singletonList(task), queuedTasks);
+        assertEquals(0, taskMetrics.getScheduledRetryCount());
+        assertEquals(1, taskMetrics.getPendingTaskCount());
+    }
+
+    @Test
+    public void testInterruptedTaskNotRunning() {
+        circuitBreaker.setFailureThreshold(1);
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.isOpen());
+
+        Task task = new DefaultTask(DefaultTask.Type.INDEX_DOCUMENT);
+        taskRunner.taskStarted(task, System.currentTimeMillis());
+        Thread.currentThread().interrupt();
+        try {
+            taskRunner.runTask(task);
+        } finally {
+            assertTrue("The interruption should be kept", Thread.interrupted());
+        }
+
+        assertTrue(executedTasks.isEmpty());
+        assertEquals(Collections.singletonList(task), queuedTasks);
+        // Only the task queued again is pending
+        assertEquals(1, taskMetrics.getPendingTaskCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T createProxy(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                // Permissions and thread locals are irrelevant
+                return null;
+            }
+        });
+    }
+}
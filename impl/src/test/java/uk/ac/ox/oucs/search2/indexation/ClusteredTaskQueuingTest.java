@@ -0,0 +1,265 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.db.api.SqlService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the sharing of tasks between nodes, with an embedded H2 database standing for the Sakai database.
+ * <p>
+ * Heartbeats are triggered by the tests, so the state of each node is known.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ClusteredTaskQueuingTest {
+    private static final int DOCUMENT_COUNT = 1000;
+    private final List<ClusteredTaskQueuing> nodes = new ArrayList<ClusteredTaskQueuing>();
+    private String databaseUrl;
+    /**
+     * Connection keeping the in-memory database open during the test.
+     */
+    private Connection databaseConnection;
+    private volatile boolean databaseAvailable = true;
+    private SqlService sqlService;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        databaseUrl = "jdbc:h2:mem:search2-" + System.nanoTime();
+        databaseConnection = DriverManager.getConnection(databaseUrl);
+        sqlService = createSqlService();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        databaseAvailable = true;
+        for (ClusteredTaskQueuing node : nodes) {
+            node.destroy();
+        }
+        databaseConnection.close();
+    }
+
+    @Test
+    public void testEventTasksOwnedByExactlyOneNode() {
+        ClusteredTaskQueuing node1 = createNode("node1");
+        ClusteredTaskQueuing node2 = createNode("node2");
+        ClusteredTaskQueuing node3 = createNode("node3");
+        heartbeatAll();
+
+        int[] ownedTasks = new int[nodes.size()];
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Task task = createDocumentTask(i);
+            int owners = 0;
+            for (int j = 0; j < nodes.size(); j++) {
+                if (nodes.get(j).isOwnedLocally(task)) {
+                    owners++;
+                    ownedTasks[j]++;
+                }
+            }
+            assertEquals("Owners of " + task, 1, owners);
+        }
+
+        for (int owned : ownedTasks) {
+            assertTrue("Tasks unevenly distributed " + owned, owned > DOCUMENT_COUNT / 5);
+        }
+        assertEquals(3, node1.getLiveNodes().size());
+        assertEquals(node1.getLiveNodes(), node2.getLiveNodes());
+        assertEquals(node1.getLiveNodes(), node3.getLiveNodes());
+    }
+
+    @Test
+    public void testDirectTasksAlwaysQueuedLocally() {
+        RecordingTaskQueuing localQueuing1 = new RecordingTaskQueuing();
+        RecordingTaskQueuing localQueuing2 = new RecordingTaskQueuing();
+        ClusteredTaskQueuing node1 = createNode("node1", localQueuing1);
+        ClusteredTaskQueuing node2 = createNode("node2", localQueuing2);
+        heartbeatAll();
+
+        Task indexAll = new DefaultTask(DefaultTask.Type.INDEX_ALL);
+        Task indexSite = new DefaultTask(DefaultTask.Type.INDEX_SITE).setProperty(DefaultTask.SITE_ID, "site");
+        node1.addTaskToQueue(indexAll);
+        node1.addTaskToQueue(indexSite);
+        node2.addTaskToQueue(indexAll);
+        node2.addTaskToQueue(indexSite);
+
+        assertEquals(2, localQueuing1.tasks.size());
+        assertEquals(2, localQueuing2.tasks.size());
+        // As events, these tasks only have one owner
+        assertTrue(node1.isOwnedLocally(indexAll) ^ node2.isOwnedLocally(indexAll));
+        assertTrue(node1.isOwnedLocally(indexSite) ^ node2.isOwnedLocally(indexSite));
+    }
+
+    @Test
+    public void testLeavingNodeTasksTakenOver() {
+        ClusteredTaskQueuing node1 = createNode("node1");
+        ClusteredTaskQueuing node2 = createNode("node2");
+        heartbeatAll();
+
+        nodes.remove(node2);
+        node2.destroy();
+        node1.heartbeat();
+
+        assertEquals(1, node1.getLiveNodes().size());
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            assertTrue(node1.isOwnedLocally(createDocumentTask(i)));
+        }
+    }
+
+    @Test
+    public void testDeadNodePendingTasksTakenOver() throws Exception {
+        RecordingTaskQueuing localQueuing1 = new RecordingTaskQueuing();
+        RecordingTaskQueuing localQueuing2 = new RecordingTaskQueuing();
+        ClusteredTaskQueuing node1 = createNode("node1", localQueuing1);
+        ClusteredTaskQueuing node2 = createNode("node2", localQueuing2);
+        heartbeatAll();
+
+        // Every node receives the events, and queues the tasks it owns as the event manager would
+        DateTime firstCreationDate = new DateTime().minusMinutes(2);
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Task task = createDocumentTask(i, firstCreationDate.plusMillis(i));
+            for (ClusteredTaskQueuing node : nodes) {
+                if (node.acceptTask(task))
+                    node.addTaskToQueue(task);
+            }
+        }
+        List<Task> node2Tasks = localQueuing2.tasks;
+        assertEquals(DOCUMENT_COUNT, localQueuing1.tasks.size() + node2Tasks.size());
+        assertEquals(node2Tasks.size(), node1.getStandbyTaskCount());
+
+        // The second node completes every task but the most recent one, then dies
+        Task pendingTask = node2Tasks.get(node2Tasks.size() - 1);
+        for (Task task : node2Tasks.subList(0, node2Tasks.size() - 1)) {
+            node2.taskCompleted(task);
+        }
+        node2.heartbeat();
+        node1.heartbeat();
+        assertEquals(1, node1.getStandbyTaskCount());
+
+        int node1TaskCount = localQueuing1.tasks.size();
+        node1.setNodeTimeout(1);
+        Thread.sleep(10);
+        node1.heartbeat();
+
+        assertEquals(Collections.singleton("node1"), node1.getLiveNodes());
+        assertEquals(node1TaskCount + 1, localQueuing1.tasks.size());
+        assertSame(pendingTask, localQueuing1.tasks.get(node1TaskCount));
+        assertEquals(0, node1.getStandbyTaskCount());
+    }
+
+    @Test
+    public void testPreviousOwnersKeepTasksDuringRebalance() {
+        ClusteredTaskQueuing node1 = createNode("node1");
+        node1.setRebalancePeriod(TimeUnit.HOURS.toMillis(1));
+        node1.heartbeat();
+
+        // The second node joins, the first one notices it immediately but other nodes might not have
+        ClusteredTaskQueuing node2 = createNode("node2");
+        node2.heartbeat();
+        node1.heartbeat();
+
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            assertTrue(node1.isOwnedLocally(createDocumentTask(i)));
+        }
+    }
+
+    @Test
+    public void testDatabaseFailureMakesEveryTaskLocal() {
+        ClusteredTaskQueuing node1 = createNode("node1");
+        createNode("node2");
+        heartbeatAll();
+
+        databaseAvailable = false;
+        node1.heartbeat();
+
+        assertTrue(node1.getLiveNodes().isEmpty());
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            assertTrue(node1.isOwnedLocally(createDocumentTask(i)));
+        }
+    }
+
+    private ClusteredTaskQueuing createNode(String nodeId) {
+        return createNode(nodeId, new RecordingTaskQueuing());
+    }
+
+    private ClusteredTaskQueuing createNode(String nodeId, TaskQueuing localQueuing) {
+        ClusteredTaskQueuing node = new ClusteredTaskQueuing();
+        node.setNodeId(nodeId);
+        node.setSqlService(sqlService);
+        node.setTaskQueuing(localQueuing);
+        // Only the first heartbeat is automatic
+        node.setHeartbeatInterval(TimeUnit.HOURS.toMillis(1));
+        node.setRebalancePeriod(0);
+        node.init();
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Runs two rounds of heartbeats, so every node knows every other node.
+     */
+    private void heartbeatAll() {
+        for (int i = 0; i < 2; i++) {
+            for (ClusteredTaskQueuing node : nodes) {
+                node.heartbeat();
+            }
+        }
+    }
+
+    private static Task createDocumentTask(int documentNumber) {
+        return createDocumentTask(documentNumber, new DateTime());
+    }
+
+    private static Task createDocumentTask(int documentNumber, DateTime creationDate) {
+        return new DefaultTask(DefaultTask.Type.INDEX_DOCUMENT, creationDate)
+                .setProperty(DefaultTask.DOCUMENT_REFERENCE, "/content/group/site/document" + documentNumber);
+    }
+
+    /**
+     * Creates a SqlService lending connections to the H2 database.
+     *
+     * @return a SqlService supporting only the borrowing of connections.
+     */
+    private SqlService createSqlService() {
+        return (SqlService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{SqlService.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("borrowConnection".equals(method.getName())) {
+                            if (!databaseAvailable)
+                                throw new SQLException("The database is unavailable");
+                            return DriverManager.getConnection(databaseUrl);
+                        } else if ("returnConnection".equals(method.getName())) {
+                            ((Connection) args[0]).close();
+                            return null;
+                        } else {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    private static final class RecordingTaskQueuing implements TaskQueuing {
+        private final List<Task> tasks = new ArrayList<Task>();
+
+        @Override
+        public void addTaskToQueue(Task task) {
+            tasks.add(task);
+        }
+    }
+}
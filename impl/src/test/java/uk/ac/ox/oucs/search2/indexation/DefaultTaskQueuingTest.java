@@ -0,0 +1,143 @@
+package uk.ac.ox.oucs.search2.indexation;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ox.oucs.search2.indexation.metrics.DefaultTaskMetrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the coalescing and the queues of the tasks waiting in the {@link DefaultTaskQueuing}, as reported by the
+ * metrics.
+ * <p>
+ * The executors are kept busy, so the queued tasks stay pending.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class DefaultTaskQueuingTest {
+    private final CountDownLatch executorsReleased = new CountDownLatch(1);
+    private ExecutorService simpleTasksExecutor;
+    private ExecutorService heavyTasksExecutor;
+    private DefaultTaskQueuing taskQueuing;
+    private DefaultTaskMetrics taskMetrics;
+
+    @Before
+    public void setUp() {
+        simpleTasksExecutor = createBusyExecutor();
+        heavyTasksExecutor = createBusyExecutor();
+
+        taskQueuing = new DefaultTaskQueuing();
+        taskQueuing.setSimpleTasksExecutor(simpleTasksExecutor);
+        taskQueuing.setHeavyTasksExecutor(heavyTasksExecutor);
+        taskQueuing.setSimpleTaskTypes(Arrays.asList(DefaultTask.Type.INDEX_DOCUMENT.getTypeName(),
+                DefaultTask.Type.UNINDEX_DOCUMENT.getTypeName()));
+        taskQueuing.init();
+
+        taskMetrics = new DefaultTaskMetrics();
+        taskMetrics.setQueueDepthProvider(taskQueuing);
+        taskQueuing.setTaskMetrics(taskMetrics);
+    }
+
+    @After
+    public void tearDown() {
+        simpleTasksExecutor.shutdownNow();
+        heavyTasksExecutor.shutdownNow();
+        executorsReleased.countDown();
+    }
+
+    @Test
+    public void testPendingTasksCoalesced() {
+        DateTime creationDate = new DateTime();
+        for (int i = 0; i < 3; i++) {
+            // The first document is updated three times, then removed with an older task which is dropped
+            taskQueuing.addTaskToQueue(createDocumentTask(DefaultTask.Type.INDEX_DOCUMENT, "/document1",
+                    creationDate.plusMillis(i)));
+        }
+        taskQueuing.addTaskToQueue(createDocumentTask(DefaultTask.Type.UNINDEX_DOCUMENT, "/document1", creationDate));
+        taskQueuing.addTaskToQueue(createDocumentTask(DefaultTask.Type.INDEX_DOCUMENT, "/document2", creationDate));
+
+        assertEquals(3, taskMetrics.getCollapsedTaskCount());
+        assertEquals(2, taskMetrics.getPendingCoalescedTaskCount());
+        assertEquals(2, taskMetrics.getQueuedTaskCount());
+        assertEquals(Arrays.asList("simple: 2", "heavy: 0"), Arrays.asList(taskMetrics.getQueueDepths()));
+    }
+
+    @Test
+    public void testCoalescingDisabled() {
+        taskQueuing.setCoalescingEnabled(false);
+        for (int i = 0; i < 3; i++) {
+            taskQueuing.addTaskToQueue(createDocumentTask(DefaultTask.Type.INDEX_DOCUMENT, "/document1",
+                    new DateTime()));
+        }
+
+        assertEquals(0, taskMetrics.getCollapsedTaskCount());
+        assertEquals(0, taskMetrics.getPendingCoalescedTaskCount());
+        assertEquals(Collections.singletonList("simple: 3"), Arrays.asList(taskMetrics.getQueueDepths()).subList(0, 1));
+    }
+
+    @Test
+    public void testStripeDepths() {
+        StripedExecutor stripedExecutor = new StripedExecutor(2);
+        // Runnables without key go to each stripe in turn
+        for (int i = 0; i < 2; i++) {
+            stripedExecutor.execute(createBlocker());
+        }
+        simpleTasksExecutor.shutdownNow();
+        simpleTasksExecutor = stripedExecutor;
+        taskQueuing.setSimpleTasksExecutor(stripedExecutor);
+
+        for (int i = 0; i < 10; i++) {
+            taskQueuing.addTaskToQueue(createDocumentTask(DefaultTask.Type.INDEX_DOCUMENT, "/document" + i,
+                    new DateTime()));
+        }
+
+        int[] expectedDepths = new int[2];
+        for (int i = 0; i < 10; i++) {
+            expectedDepths[StripedExecutor.stripeIndex("document:/document" + i, 2)]++;
+        }
+        assertEquals(Arrays.asList("simple[0]: " + expectedDepths[0], "simple[1]: " + expectedDepths[1], "heavy: 0"),
+                Arrays.asList(taskMetrics.getQueueDepths()));
+        assertEquals(10, taskMetrics.getPendingTaskCount());
+    }
+
+    private static Task createDocumentTask(DefaultTask.Type type, String reference, DateTime creationDate) {
+        return new DefaultTask(type, creationDate).setProperty(DefaultTask.DOCUMENT_REFERENCE, reference);
+    }
+
+    /**
+     * Creates an executor whose only thread waits until the end of the test.
+     *
+     * @return an executor queuing every task.
+     */
+    private ExecutorService createBusyExecutor() {
+        // The first Runnable is given to the new thread without being queued
+        ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.execute(createBlocker());
+        return executor;
+    }
+
+    private Runnable createBlocker() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executorsReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
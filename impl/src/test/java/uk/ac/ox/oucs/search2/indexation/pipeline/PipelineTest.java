@@ -0,0 +1,155 @@
+package uk.ac.ox.oucs.search2.indexation.pipeline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ox.oucs.search2.indexation.exception.MultipleTasksException;
+import uk.ac.ox.oucs.search2.indexation.exception.TaskException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a {@link Pipeline} always returns, whatever happens to its stages.
+ *
+ * @author Colin Hebert
+ */
+public class PipelineTest {
+    private static final int ELEMENT_COUNT = 1000;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testEveryElementProcessed() {
+        List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        new Pipeline<Integer>(executor, 10)
+                .addStage("identity", new TestStageFactory(null, null), 4)
+                .addStage("collect", new TestStageFactory(results, null), 2)
+                .process(createElements(ELEMENT_COUNT));
+
+        assertEquals(ELEMENT_COUNT, results.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testErrorsCollectedWithoutStoppingThePipeline() {
+        List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            new Pipeline<Integer>(executor, 10)
+                    .addStage("failing", new TestStageFactory(null, new AssertionError("Failing stage")), 2)
+                    .addStage("collect", new TestStageFactory(results, null), 2)
+                    .process(createElements(ELEMENT_COUNT));
+            fail("The failures should have been thrown");
+        } catch (MultipleTasksException e) {
+            // Every tenth element fails
+            assertEquals(ELEMENT_COUNT / 10, e.getThrownExceptions().size());
+        }
+        assertEquals(ELEMENT_COUNT - ELEMENT_COUNT / 10, results.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptedWorkerAbortsThePipeline() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Stage.Factory<Integer> blockingStageFactory = new Stage.Factory<Integer>() {
+            @Override
+            public Stage<Integer> createStage() {
+                return new Stage<Integer>() {
+                    @Override
+                    public Integer process(Integer element) {
+                        blocked.countDown();
+                        try {
+                            Thread.sleep(TimeUnit.HOURS.toMillis(1));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return element;
+                    }
+
+                    @Override
+                    public void finish() {
+                    }
+                };
+            }
+        };
+
+        Thread interrupter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Interrupts every worker, upstream stages are blocked on full queues
+                executor.shutdownNow();
+            }
+        });
+        interrupter.start();
+
+        try {
+            new Pipeline<Integer>(executor, 1)
+                    .addStage("identity", new TestStageFactory(null, null), 1)
+                    .addStage("blocking", blockingStageFactory, 1)
+                    .process(createElements(ELEMENT_COUNT));
+            fail("The interruption should have been reported");
+        } catch (TaskException e) {
+            // Expected
+        }
+        interrupter.join();
+    }
+
+    private static Iterator<Integer> createElements(int count) {
+        List<Integer> elements = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(i);
+        }
+        return elements.iterator();
+    }
+
+    /**
+     * Creates stages collecting the elements, and failing on every tenth element if a failure is set.
+     */
+    private static final class TestStageFactory implements Stage.Factory<Integer> {
+        private final List<Integer> results;
+        private final Error failure;
+
+        private TestStageFactory(List<Integer> results, Error failure) {
+            this.results = results;
+            this.failure = failure;
+        }
+
+        @Override
+        public Stage<Integer> createStage() {
+            return new Stage<Integer>() {
+                @Override
+                public Integer process(Integer element) {
+                    if (failure != null && element % 10 == 0)
+                        throw failure;
+                    if (results != null)
+                        results.add(element);
+                    return element;
+                }
+
+                @Override
+                public void finish() {
+                }
+            };
+        }
+    }
+}
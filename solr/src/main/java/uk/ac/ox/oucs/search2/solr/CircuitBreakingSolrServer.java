@@ -0,0 +1,120 @@
+package uk.ac.ox.oucs.search2.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.CircuitBreaker;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * SolrServer protected by a {@link CircuitBreaker}.
+ * <p>
+ * Every request is sent to the underlying server and its result is reported to the circuit breaker. Only a request
+ * which couldn't reach Solr (connection refused, unknown or unreachable host, timeout, 503 status) is a failure, any
+ * other answer proves that Solr is available. Other failures (for example a content which couldn't be read while the
+ * request was sent) don't tell anything about Solr and are {@link CircuitBreaker#recordInconclusive() inconclusive}.
+ * <br />
+ * While the breaker is open, requests fail immediately with a {@link SolrException}
+ * {@link SolrException.ErrorCode#SERVICE_UNAVAILABLE}, instead of waiting for a socket timeout. Once the opening is
+ * over, the first request is the trial deciding whether the breaker closes.
+ * </p>
+ * <p>
+ * The same circuit breaker is shared with the task runner, which stops running tasks while Solr is down. This is the
+ * only place where the results are recorded, the task runner doesn't record the results of its tasks.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class CircuitBreakingSolrServer extends SolrServer {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreakingSolrServer.class);
+    private final SolrServer solrServer;
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Creates a SolrServer protected by a circuit breaker.
+     *
+     * @param solrServer     server actually sending the requests.
+     * @param circuitBreaker circuit breaker tracking the availability of Solr.
+     */
+    public CircuitBreakingSolrServer(SolrServer solrServer, CircuitBreaker circuitBreaker) {
+        this.solrServer = solrServer;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+        if (!circuitBreaker.isRequestAllowed()) {
+            if (logger.isDebugEnabled())
+                logger.debug("Request to '" + request.getPath() + "' refused, the circuit breaker is open");
+            throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE,
+                    "Solr is unavailable, the circuit breaker is open");
+        }
+
+        // The result of a trial is always recorded, whatever happens
+        Throwable failure = null;
+        try {
+            return solrServer.request(request);
+        } catch (SolrServerException e) {
+            failure = e;
+            throw e;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (failure == null || (failure instanceof SolrException && !isSolrUnavailable(failure)))
+                circuitBreaker.recordSuccess();
+            else if (isSolrUnavailable(failure))
+                circuitBreaker.recordFailure();
+            else
+                circuitBreaker.recordInconclusive();
+        }
+    }
+
+    /**
+     * Checks whether an exception thrown while sending a request means that Solr couldn't be reached.
+     * <p>
+     * Only transport failures (connection refused, unknown or unreachable host, timeout) and 503 answers are
+     * considered, anywhere in the chain of causes. Other exceptions are due to the request itself.
+     * </p>
+     *
+     * @param exception exception thrown while sending a request.
+     * @return true if Solr is unavailable, false otherwise.
+     */
+    public static boolean isSolrUnavailable(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException || cause instanceof SocketTimeoutException)
+                return true;
+            if (cause instanceof SolrException
+                    && ((SolrException) cause).code() == SolrException.ErrorCode.SERVICE_UNAVAILABLE.code)
+                return true;
+            if (cause.getCause() == cause)
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the server actually sending the requests, without the circuit breaker.
+     *
+     * @return the underlying server.
+     */
+    public SolrServer getSolrServer() {
+        return solrServer;
+    }
+}
@@ -0,0 +1,39 @@
+package uk.ac.ox.oucs.search2.solr;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.SolrPingResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.indexation.HealthProbe;
+
+/**
+ * Health probe sending a ping request to Solr.
+ * <p>
+ * The ping must be sent directly to Solr and not through a {@link CircuitBreakingSolrServer}, otherwise it would be
+ * refused while the breaker is open.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SolrPingHealthProbe implements HealthProbe {
+    private static final Logger logger = LoggerFactory.getLogger(SolrPingHealthProbe.class);
+    private SolrServer solrServer;
+
+    @Override
+    public boolean isBackendAvailable() {
+        try {
+            SolrPingResponse response = solrServer.ping();
+            if (logger.isDebugEnabled())
+                logger.debug("Solr answered the ping in " + response.getElapsedTime() + "ms");
+            return response.getStatus() == 0;
+        } catch (Exception e) {
+            if (logger.isDebugEnabled())
+                logger.debug("Solr didn't answer the ping", e);
+            return false;
+        }
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+}
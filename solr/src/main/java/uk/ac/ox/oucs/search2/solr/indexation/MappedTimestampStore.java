@@ -0,0 +1,402 @@
+package uk.ac.ox.oucs.search2.solr.indexation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent store associating the reference of a document to the creation date of the last task which indexed it.
+ * <p>
+ * The store is an open addressing hash table kept in a memory mapped file, so its size doesn't impact the heap.<br />
+ * Each entry is 16 bytes long, a 64 bits fingerprint of the reference and the timestamp (in ms).
+ * References themselves aren't stored, two references with the same fingerprint are considered as identical.
+ * With 64 bits fingerprints, collisions are highly unlikely even with millions of references.
+ * </p>
+ * <p>
+ * The table grows automatically when it's three quarter full, up to {@link #maximumCapacity} entries. Once the
+ * table is full, new references aren't stored anymore.
+ * </p>
+ * <p>
+ * As references aren't stored, documents removed in bulk without knowing their references can't be found in the
+ * table. Such removals invalidate every entry older than the removal instead, see {@link #invalidateBefore(long)}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class MappedTimestampStore {
+    private static final Logger logger = LoggerFactory.getLogger(MappedTimestampStore.class);
+    /**
+     * Value returned when a reference isn't in the store.
+     */
+    public static final long UNKNOWN = -1;
+    private static final int MAGIC_NUMBER = 0x53325454;
+    /**
+     * Magic number (int), capacity (int), size (int), unused (int) and invalidation date (long).
+     */
+    private static final int HEADER_SIZE = 24;
+    private static final int INVALIDATION_DATE_OFFSET = 16;
+    private static final int ENTRY_SIZE = 16;
+    /**
+     * Biggest table (power of two) which can be mapped in a single buffer, addressed with int offsets.
+     */
+    static final int MAXIMUM_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - HEADER_SIZE) / ENTRY_SIZE);
+    private static final long EMPTY = 0;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * File in which the table is stored.
+     */
+    private File storeFile;
+    /**
+     * Capacity of the table when the store is created.
+     */
+    private int initialCapacity = 1 << 20;
+    /**
+     * Capacity after which the table doesn't grow anymore, at most {@link #MAXIMUM_CAPACITY}.
+     */
+    private int maximumCapacity = MAXIMUM_CAPACITY;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    /**
+     * Entries older than this timestamp are ignored.
+     */
+    private long invalidationDate;
+
+    public void init() {
+        try {
+            File parent = storeFile.getAbsoluteFile().getParentFile();
+            if (!parent.exists() && !parent.mkdirs())
+                throw new IOException("Couldn't create the directory '" + parent + "'");
+
+            if (storeFile.exists() && storeFile.length() >= HEADER_SIZE) {
+                open();
+            } else {
+                buffer = map(storeFile, toPowerOfTwo(Math.min(initialCapacity, maximumCapacity)));
+                capacity = buffer.getInt(4);
+                size = 0;
+                invalidationDate = 0;
+            }
+            logger.info("Timestamp store '" + storeFile + "' opened with " + size + " entries");
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't open the timestamp store '" + storeFile + "'", e);
+        }
+    }
+
+    public void destroy() {
+        lock.writeLock().lock();
+        try {
+            buffer.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the timestamp of the last indexation of a document.
+     *
+     * @param reference reference of the document.
+     * @return the timestamp of the last indexation, or {@link #UNKNOWN} if the document isn't in the store or if its
+     *         entry has been invalidated.
+     */
+    public long get(String reference) {
+        long key = fingerprint(reference);
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(key);
+            if (buffer.getLong(offset(slot)) != key)
+                return UNKNOWN;
+            long timestamp = buffer.getLong(offset(slot) + 8);
+            return (timestamp >= invalidationDate) ? timestamp : UNKNOWN;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Saves the timestamp of the last indexation of a document.
+     * <p>
+     * An older timestamp never replaces a newer one, and a timestamp older than the last invalidation is ignored.
+     * </p>
+     *
+     * @param reference reference of the document.
+     * @param timestamp timestamp of the indexation.
+     */
+    public void put(String reference, long timestamp) {
+        long key = fingerprint(reference);
+        lock.writeLock().lock();
+        try {
+            if (timestamp < invalidationDate)
+                return;
+
+            int slot = findSlot(key);
+            if (buffer.getLong(offset(slot)) == key) {
+                if (buffer.getLong(offset(slot) + 8) < timestamp)
+                    buffer.putLong(offset(slot) + 8, timestamp);
+                return;
+            }
+
+            if ((size + 1) > capacity / 4 * 3) {
+                if (!grow()) {
+                    logger.warn("The timestamp store is full, '" + reference + "' won't be stored");
+                    return;
+                }
+                slot = findSlot(key);
+            }
+            buffer.putLong(offset(slot), key);
+            buffer.putLong(offset(slot) + 8, timestamp);
+            buffer.putInt(8, ++size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a document from the store.
+     *
+     * @param reference reference of the document.
+     */
+    public void remove(String reference) {
+        long key = fingerprint(reference);
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(key);
+            if (buffer.getLong(offset(slot)) != key)
+                return;
+
+            // Backward shift deletion, entries placed after the removed one are moved back if necessary
+            int next = slot;
+            while (true) {
+                next = (next + 1) & (capacity - 1);
+                long nextKey = buffer.getLong(offset(next));
+                if (nextKey == EMPTY)
+                    break;
+                int ideal = index(nextKey);
+                // Move the entry only if its ideal slot isn't between the hole and its current position
+                if (((next - ideal) & (capacity - 1)) >= ((next - slot) & (capacity - 1))) {
+                    buffer.putLong(offset(slot), nextKey);
+                    buffer.putLong(offset(slot) + 8, buffer.getLong(offset(next) + 8));
+                    slot = next;
+                }
+            }
+            buffer.putLong(offset(slot), EMPTY);
+            buffer.putLong(offset(slot) + 8, 0);
+            buffer.putInt(8, --size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Invalidates every entry older than a timestamp.
+     * <p>
+     * Used when documents are removed without knowing their references, for example every document indexed before a
+     * given date.
+     * </p>
+     *
+     * @param timestamp entries with an older timestamp are ignored from now on.
+     */
+    public void invalidateBefore(long timestamp) {
+        lock.writeLock().lock();
+        try {
+            if (timestamp <= invalidationDate)
+                return;
+            invalidationDate = timestamp;
+            buffer.putLong(INVALIDATION_DATE_OFFSET, invalidationDate);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every entry from the store.
+     * <p>
+     * The invalidation date is kept, changes recorded before the removal could still be added afterwards.
+     * </p>
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < capacity; i++) {
+                buffer.putLong(offset(i), EMPTY);
+                buffer.putLong(offset(i) + 8, 0);
+            }
+            size = 0;
+            buffer.putInt(8, size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the slot containing a key, or the empty slot where the key should be inserted.
+     *
+     * @param key key to look for.
+     * @return the slot of the key or an empty slot.
+     */
+    private int findSlot(long key) {
+        int slot = index(key);
+        while (true) {
+            long slotKey = buffer.getLong(offset(slot));
+            if (slotKey == key || slotKey == EMPTY)
+                return slot;
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private int index(long key) {
+        return (int) (key ^ (key >>> 32)) & (capacity - 1);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    /**
+     * Doubles the capacity of the table.
+     * <p>
+     * The new table is written in a temporary file, which then replaces the current one.
+     * </p>
+     *
+     * @return true if the table has grown, false if it reached its maximum capacity.
+     */
+    private boolean grow() {
+        if (capacity >= maximumCapacity)
+            return false;
+
+        try {
+            File newFile = new File(storeFile.getPath() + ".tmp");
+            if (newFile.exists() && !newFile.delete())
+                throw new IOException("Couldn't delete '" + newFile + "'");
+
+            MappedByteBuffer oldBuffer = buffer;
+            int oldCapacity = capacity;
+            buffer = map(newFile, capacity * 2);
+            capacity = capacity * 2;
+            for (int i = 0; i < oldCapacity; i++) {
+                long key = oldBuffer.getLong(offset(i));
+                if (key != EMPTY) {
+                    int slot = findSlot(key);
+                    buffer.putLong(offset(slot), key);
+                    buffer.putLong(offset(slot) + 8, oldBuffer.getLong(offset(i) + 8));
+                }
+            }
+            buffer.putInt(8, size);
+            buffer.putLong(INVALIDATION_DATE_OFFSET, invalidationDate);
+            buffer.force();
+
+            if (!storeFile.delete() || !newFile.renameTo(storeFile))
+                throw new IOException("Couldn't replace '" + storeFile + "' with '" + newFile + "'");
+            logger.info("The timestamp store has grown to " + capacity + " entries");
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't grow the timestamp store '" + storeFile + "'", e);
+        }
+    }
+
+    /**
+     * Opens an existing store.
+     *
+     * @throws IOException if the file isn't a valid store.
+     */
+    private void open() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(storeFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        } finally {
+            file.close();
+        }
+
+        if (buffer.getInt(0) != MAGIC_NUMBER)
+            throw new IOException("'" + storeFile + "' isn't a timestamp store");
+        capacity = buffer.getInt(4);
+        size = buffer.getInt(8);
+        invalidationDate = buffer.getLong(INVALIDATION_DATE_OFFSET);
+        if (buffer.capacity() != HEADER_SIZE + (long) capacity * ENTRY_SIZE)
+            throw new IOException("'" + storeFile + "' is corrupted");
+    }
+
+    /**
+     * Creates and maps an empty store.
+     *
+     * @param file     file in which the store is created.
+     * @param capacity capacity of the table.
+     * @return the mapped file.
+     * @throws IOException if the file couldn't be created.
+     */
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long length = HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+            // Truncated first, so the content of a previous store doesn't remain
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(length);
+            MappedByteBuffer mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            mappedBuffer.putInt(0, MAGIC_NUMBER);
+            mappedBuffer.putInt(4, capacity);
+            mappedBuffer.putInt(8, 0);
+            mappedBuffer.putLong(INVALIDATION_DATE_OFFSET, 0);
+            return mappedBuffer;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static int toPowerOfTwo(int value) {
+        int powerOfTwo = 16;
+        while (powerOfTwo < value && powerOfTwo < MAXIMUM_CAPACITY)
+            powerOfTwo <<= 1;
+        return powerOfTwo;
+    }
+
+    /**
+     * Generates a 64 bits fingerprint (FNV-1a) of a reference.
+     *
+     * @param reference reference of a document.
+     * @return a non zero fingerprint.
+     */
+    private static long fingerprint(String reference) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < reference.length(); i++) {
+            char c = reference.charAt(i);
+            hash ^= c & 0xff;
+            hash *= 0x100000001b3L;
+            hash ^= c >>> 8;
+            hash *= 0x100000001b3L;
+        }
+        return (hash == EMPTY) ? 1 : hash;
+    }
+
+    public void setStoreFile(File storeFile) {
+        this.storeFile = storeFile;
+    }
+
+    public void setInitialCapacity(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+    }
+
+    /**
+     * Sets the capacity after which the table doesn't grow anymore.
+     *
+     * @param maximumCapacity maximum number of slots, bounded by {@link #MAXIMUM_CAPACITY}.
+     */
+    public void setMaximumCapacity(int maximumCapacity) {
+        this.maximumCapacity = Math.min(maximumCapacity, MAXIMUM_CAPACITY);
+    }
+}
@@ -0,0 +1,233 @@
+package uk.ac.ox.oucs.search2.solr.indexation;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.client.solrj.response.LukeResponse;
+import org.joda.time.LocalTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the optimisation of the Solr index in the background, when it's the most appropriate.
+ * <p>
+ * An optimisation merges the segments of the index, which can take a long time on a big index.
+ * Instead of optimising the index as soon as it's necessary, optimisations are requested and the scheduler
+ * periodically checks whether the index should be optimised.<br />
+ * A requested optimisation is run during the quiet window (if one is configured). An optimisation is run
+ * regardless of the quiet window when the index is too fragmented, either because it contains too many segments or
+ * too many deleted documents.
+ * </p>
+ * <p>
+ * Optimisations are run on a dedicated thread, so documents can still be indexed while the index is optimised.<br />
+ * Partial optimisations are supported through {@link #maxSegments}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class OptimisationScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(OptimisationScheduler.class);
+    /**
+     * Whether an optimisation has been requested and not yet done.
+     */
+    private final AtomicBoolean optimisationRequested = new AtomicBoolean();
+    private final Runnable checkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkOptimisation();
+        }
+    };
+    private ScheduledExecutorService optimisationScheduler;
+    private SolrServer solrServer;
+    /**
+     * Interval (in ms) between two checks of the index.
+     */
+    private long checkInterval = 600000;
+    /**
+     * Beginning of the quiet window, if null requested optimisations are run on the next check.
+     */
+    private LocalTime quietWindowStart;
+    /**
+     * End of the quiet window, the window can span over midnight.
+     */
+    private LocalTime quietWindowEnd;
+    /**
+     * Number of segments above which the index is optimised, a negative value disables this threshold.
+     * <p>
+     * The number of segments is only reported by recent versions of Solr.
+     * </p>
+     */
+    private int maximumSegmentCount = -1;
+    /**
+     * Whether the missing number of segments has already been reported.
+     */
+    private volatile boolean segmentCountUnavailableLogged;
+    /**
+     * Ratio of deleted documents above which the index is optimised, a negative value disables this threshold.
+     */
+    private double maximumDeletedDocumentsRatio = -1;
+    /**
+     * Number of segments left after an optimisation.
+     */
+    private int maxSegments = 1;
+
+    public void init() {
+        optimisationScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search2-optimisation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        optimisationScheduler.scheduleWithFixedDelay(checkRunnable, checkInterval, checkInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() {
+        optimisationScheduler.shutdownNow();
+    }
+
+    /**
+     * Requests an optimisation of the index, which will be done during the next quiet window.
+     */
+    public void requestOptimisation() {
+        if (optimisationRequested.compareAndSet(false, true))
+            logger.info("Optimisation of the index requested");
+    }
+
+    /**
+     * Checks whether the index should be optimised and optimises it.
+     */
+    private void checkOptimisation() {
+        try {
+            if (optimisationRequested.get() && isInQuietWindow()) {
+                logger.info("Run the requested optimisation of the index");
+                optimise();
+            } else if (isIndexFragmented()) {
+                optimise();
+            }
+        } catch (Exception e) {
+            logger.warn("Couldn't optimise the index, will try again later", e);
+        }
+    }
+
+    /**
+     * Checks whether the current time is in the quiet window.
+     *
+     * @return true if there is no quiet window, or if the current time is within the quiet window.
+     */
+    private boolean isInQuietWindow() {
+        if (quietWindowStart == null || quietWindowEnd == null)
+            return true;
+
+        LocalTime now = LocalTime.now();
+        if (quietWindowStart.isBefore(quietWindowEnd))
+            return !now.isBefore(quietWindowStart) && now.isBefore(quietWindowEnd);
+        else
+            // The quiet window spans over midnight
+            return !now.isBefore(quietWindowStart) || now.isBefore(quietWindowEnd);
+    }
+
+    /**
+     * Checks the state of the index with a {@link LukeRequest}.
+     *
+     * @return true if one of the thresholds has been crossed.
+     * @throws Exception if the state of the index couldn't be obtained.
+     */
+    private boolean isIndexFragmented() throws Exception {
+        if (maximumSegmentCount < 0 && maximumDeletedDocumentsRatio < 0)
+            return false;
+
+        LukeRequest lukeRequest = new LukeRequest();
+        lukeRequest.setNumTerms(0);
+        LukeResponse lukeResponse = lukeRequest.process(solrServer);
+
+        Object segmentCount = lukeResponse.getIndexInfo().get("segmentCount");
+        if (maximumSegmentCount >= 0 && segmentCount == null && !segmentCountUnavailableLogged) {
+            segmentCountUnavailableLogged = true;
+            logger.warn("Solr doesn't report the number of segments, the maximum segment count is ignored");
+        }
+        if (maximumSegmentCount >= 0 && segmentCount instanceof Number
+                && ((Number) segmentCount).intValue() > maximumSegmentCount) {
+            logger.info("The index contains " + segmentCount + " segments and will be optimised");
+            return true;
+        }
+
+        Integer numDocs = lukeResponse.getNumDocs();
+        Integer maxDoc = lukeResponse.getMaxDoc();
+        if (maximumDeletedDocumentsRatio >= 0 && numDocs != null && maxDoc != null && maxDoc > 0) {
+            double deletedDocumentsRatio = (double) (maxDoc - numDocs) / maxDoc;
+            if (deletedDocumentsRatio > maximumDeletedDocumentsRatio) {
+                logger.info("The index contains " + (maxDoc - numDocs) + " deleted documents out of " + maxDoc
+                        + " and will be optimised");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Optimises the index down to {@link #maxSegments} segments.
+     * <p>
+     * The searchers aren't waited for, the new index will be available to the searchers once they're ready.
+     * </p>
+     *
+     * @throws Exception if the optimisation failed.
+     */
+    private void optimise() throws Exception {
+        // A request received during the optimisation will be handled by the next check
+        optimisationRequested.set(false);
+        try {
+            long start = System.currentTimeMillis();
+            solrServer.optimize(true, false, maxSegments);
+            logger.info("Index optimised in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            optimisationRequested.set(true);
+            throw e;
+        }
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Sets the beginning of the quiet window.
+     *
+     * @param quietWindowStart time formatted as HH:mm.
+     */
+    public void setQuietWindowStart(String quietWindowStart) {
+        this.quietWindowStart = LocalTime.parse(quietWindowStart);
+    }
+
+    /**
+     * Sets the end of the quiet window.
+     *
+     * @param quietWindowEnd time formatted as HH:mm.
+     */
+    public void setQuietWindowEnd(String quietWindowEnd) {
+        this.quietWindowEnd = LocalTime.parse(quietWindowEnd);
+    }
+
+    public void setMaximumSegmentCount(int maximumSegmentCount) {
+        this.maximumSegmentCount = maximumSegmentCount;
+    }
+
+    public void setMaximumDeletedDocumentsRatio(double maximumDeletedDocumentsRatio) {
+        this.maximumDeletedDocumentsRatio = maximumDeletedDocumentsRatio;
+    }
+
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+}
@@ -0,0 +1,162 @@
+package uk.ac.ox.oucs.search2.solr.indexation;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.document.Document;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Documents waiting to be sent to Solr within a single update request.
+ * <p>
+ * A batch is bounded both by a number of documents and by the estimated size of its payload.<br />
+ * Contents provided as a {@link Reader} can't be measured without being consumed, those only count towards the
+ * number of documents.
+ * </p>
+ * <p>
+ * The original {@link Document} is kept alongside each {@link SolrInputDocument} so every document can be sent
+ * again on its own if the batch fails.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+class SolrDocumentBatch {
+    private static final Logger logger = LoggerFactory.getLogger(SolrDocumentBatch.class);
+    /**
+     * Maximum number of documents in the batch.
+     */
+    private final int maximumSize;
+    /**
+     * Maximum estimated size (in bytes) of the batch.
+     */
+    private final long maximumPayloadSize;
+    private final List<Entry> entries;
+    private long payloadSize;
+
+    SolrDocumentBatch(int maximumSize, long maximumPayloadSize) {
+        this.maximumSize = maximumSize;
+        this.maximumPayloadSize = maximumPayloadSize;
+        this.entries = new ArrayList<Entry>(maximumSize);
+    }
+
+    /**
+     * Adds a document to the batch.
+     *
+     * @param document         original document.
+     * @param taskCreationDate creation date of the task in charge of the document.
+     * @param solrDocument     document ready to be sent to Solr.
+     */
+    public void add(Document document, DateTime taskCreationDate, SolrInputDocument solrDocument) {
+        entries.add(new Entry(document, taskCreationDate, solrDocument));
+        payloadSize += estimatePayloadSize(solrDocument);
+    }
+
+    /**
+     * Checks whether the batch reached one of its limits and should be sent.
+     *
+     * @return true if no more documents should be added to the batch.
+     */
+    public boolean isFull() {
+        return entries.size() >= maximumSize || payloadSize >= maximumPayloadSize;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public List<SolrInputDocument> getSolrDocuments() {
+        List<SolrInputDocument> solrDocuments = new ArrayList<SolrInputDocument>(entries.size());
+        for (Entry entry : entries) {
+            solrDocuments.add(entry.getSolrDocument());
+        }
+        return solrDocuments;
+    }
+
+    /**
+     * Closes every content provided as a {@link Reader}.
+     * <p>
+     * Failures are only logged, as the contents aren't useful anymore.
+     * </p>
+     */
+    public void closeReaders() {
+        for (Entry entry : entries) {
+            for (SolrInputField field : entry.getSolrDocument()) {
+                for (Object value : field) {
+                    if (!(value instanceof Reader))
+                        continue;
+                    try {
+                        ((Reader) value).close();
+                    } catch (IOException e) {
+                        logger.warn("Couldn't close the content of '" + entry.getDocument().getReference() + "'", e);
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        payloadSize = 0;
+    }
+
+    /**
+     * Estimates the size of a document once serialised, based on the length of its values.
+     *
+     * @param solrDocument document to measure.
+     * @return an estimation of the size of the document in bytes.
+     */
+    private static long estimatePayloadSize(SolrInputDocument solrDocument) {
+        long size = 0;
+        for (SolrInputField field : solrDocument) {
+            for (Object value : field) {
+                if (value == null || value instanceof Reader)
+                    continue;
+                // Characters are mostly ASCII, the name of the field is repeated for every value
+                size += value.toString().length() + field.getName().length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Document waiting in the batch.
+     */
+    public static final class Entry {
+        private final Document document;
+        private final DateTime taskCreationDate;
+        private final SolrInputDocument solrDocument;
+
+        private Entry(Document document, DateTime taskCreationDate, SolrInputDocument solrDocument) {
+            this.document = document;
+            this.taskCreationDate = taskCreationDate;
+            this.solrDocument = solrDocument;
+        }
+
+        public Document getDocument() {
+            return document;
+        }
+
+        public DateTime getTaskCreationDate() {
+            return taskCreationDate;
+        }
+
+        public SolrInputDocument getSolrDocument() {
+            return solrDocument;
+        }
+    }
+}
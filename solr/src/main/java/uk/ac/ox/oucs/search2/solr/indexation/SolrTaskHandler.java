@@ -1,12 +1,14 @@
 package uk.ac.ox.oucs.search2.solr.indexation;
 
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
 import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
@@ -23,17 +25,39 @@ import uk.ac.ox.oucs.search2.document.StringDocument;
 import uk.ac.ox.oucs.search2.indexation.AbstractTaskHandler;
 import uk.ac.ox.oucs.search2.indexation.DefaultTask;
 import uk.ac.ox.oucs.search2.indexation.Task;
+import uk.ac.ox.oucs.search2.indexation.exception.BackendUnavailableException;
 import uk.ac.ox.oucs.search2.indexation.exception.MultipleTasksException;
 import uk.ac.ox.oucs.search2.indexation.exception.TaskException;
 import uk.ac.ox.oucs.search2.indexation.exception.TemporaryTaskException;
 import uk.ac.ox.oucs.search2.indexation.exception.UnsupportedTaskException;
+import uk.ac.ox.oucs.search2.indexation.pipeline.Pipeline;
+import uk.ac.ox.oucs.search2.indexation.pipeline.Stage;
+import uk.ac.ox.oucs.search2.solr.CircuitBreakingSolrServer;
+import uk.ac.ox.oucs.search2.solr.indexation.commit.CommitPolicy;
+import uk.ac.ox.oucs.search2.solr.request.BinaryReaderUpdateRequest;
 import uk.ac.ox.oucs.search2.solr.request.ReaderUpdateRequest;
-import uk.ac.ox.oucs.search2.tika.document.TikaDocument;
+import uk.ac.ox.oucs.search2.tika.cache.ExtractionCache;
+import uk.ac.ox.oucs.search2.tika.document.TikaReaderDocument;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import static uk.ac.ox.oucs.search2.indexation.DefaultTask.Type.*;
 import static uk.ac.ox.oucs.search2.solr.SolrSchemaConstants.*;
@@ -47,6 +71,30 @@ import static uk.ac.ox.oucs.search2.solr.indexation.SolrTask.Type.OPTIMISE;
  * The SolrTaskHandler handles {@link StreamDocument} either with an embedded Tika, or with
  * <a href="http://wiki.apache.org/solr/ExtractingRequestHandler">SolrCell</a>.
  * </p>
+ * <p>
+ * Commits are handled by a {@link CommitPolicy}, notified after the execution of each task.
+ * </p>
+ * <p>
+ * If a {@link MappedTimestampStore} is available, it's consulted before asking Solr whether a document is already
+ * up to date.<br />
+ * The store only knows the indexations made by this server. A document is added to the store once the
+ * {@link CommitPolicy} reports that it has been committed, so a document lost by Solr before its commit is never
+ * considered up to date. The documents of a removed site are removed from the store one by one, removing every
+ * document invalidates the older entries of the store.
+ * </p>
+ * <p>
+ * If a {@link #pipelineExecutor} is available, multiple documents are indexed through a {@link Pipeline} made of
+ * three stages: fetch (metadata and textual content), extraction (binary content parsed by Tika) and send.
+ * </p>
+ * <p>
+ * The number of threads using each backend at the same time (Solr, the content hosting and Tika) can be limited
+ * with permits. This allows to run tasks with many lightweight threads without overloading any backend.
+ * </p>
+ * <p>
+ * Contents provided as a {@link Reader} (including the text extracted by Tika) are read and spooled in a temporary
+ * file before the request is sent. A content which can't be read fails the document as any other
+ * {@link TaskException}, instead of failing the request as if Solr was unavailable.
+ * </p>
  *
  * @author Colin Hebert
  */
@@ -56,15 +104,121 @@ public class SolrTaskHandler extends AbstractTaskHandler {
      * DateTime format used in Solr requests.
      */
     private static final DateTimeFormatter DATE_TIME_FORMATTER = ISODateTimeFormat.dateTime();
+    /**
+     * Number of documents fetched at once while rebuilding or updating the {@link #timestampStore}.
+     */
+    private static final int TIMESTAMP_STORE_PAGE_SIZE = 1000;
     /**
      * Solr server used for indexation requests.
      */
     private SolrServer solrServer;
     /**
      * Status of SolrCell, if enabled, the TaskHandler will send binary streams directly to the Solr server.
-     * If it is disabled, Tika will be run directly by the TaskHandler to obtain a {@link StringDocument}.
+     * If it is disabled, Tika will be run directly by the TaskHandler to obtain a {@link ReaderDocument}.
      */
     private boolean solrCellEnabled;
+    /**
+     * If enabled, documents are sent in the binary format of Solr (javabin) instead of XML.
+     * <p>
+     * The binary update handler must be available on the Solr server (by default on {@code /update/javabin}).
+     * </p>
+     */
+    private boolean binaryUpdatesEnabled;
+    /**
+     * If enabled, the documents of a batch are sent in a single XML stream instead of one stream per document, which
+     * lets Solr parse the whole batch at once.
+     */
+    private boolean singleStreamBatchesEnabled;
+    /**
+     * Maximum number of characters extracted by Tika from a binary document, a negative value means no limit.
+     */
+    private int maximumExtractedCharacters = -1;
+    /**
+     * Cache of the content extracted from binary documents, optional.
+     * <p>
+     * When a cache is available, a binary document is parsed only if it changed since its last extraction.
+     * </p>
+     */
+    private ExtractionCache extractionCache;
+    /**
+     * Scheduler in charge of the optimisations of the index, optional.
+     * <p>
+     * Without a scheduler, the index is optimised as soon as an optimisation is requested, blocking the current task.
+     * </p>
+     */
+    private OptimisationScheduler optimisationScheduler;
+    /**
+     * Maximum number of documents sent to Solr within a single update request when multiple documents are indexed
+     * at once (site or full indexation).
+     * <p>
+     * A batch size of 1 or less disables the batching, each document is then sent in its own request.
+     * </p>
+     */
+    private int batchSize = 100;
+    /**
+     * Maximum estimated size (in bytes) of the documents sent to Solr within a single update request.
+     */
+    private long batchMaximumPayloadSize = 10 * 1024 * 1024;
+    /**
+     * Policy deciding when changes are committed.
+     */
+    private CommitPolicy commitPolicy;
+    /**
+     * Local copy of the indexation timestamp of each document, optional.
+     */
+    private MappedTimestampStore timestampStore;
+    /**
+     * Whether the {@link #timestampStore} should be rebuilt from the Solr index on startup.
+     */
+    private boolean timestampStoreRebuiltOnStartup;
+    /**
+     * Executor running the workers of the indexation {@link Pipeline}, optional.
+     * <p>
+     * It must be able to run every worker of the pipeline at the same time, for each site indexed in parallel.
+     * </p>
+     */
+    private ExecutorService pipelineExecutor;
+    /**
+     * Maximum number of documents waiting in front of each stage of the pipeline.
+     */
+    private int pipelineQueueSize = 100;
+    /**
+     * Number of workers fetching documents (I/O bound).
+     */
+    private int fetchParallelism = 4;
+    /**
+     * Number of workers extracting the content of binary documents (CPU bound).
+     */
+    private int extractionParallelism = 2;
+    /**
+     * Number of workers sending documents to Solr (network bound).
+     */
+    private int sendParallelism = 2;
+    /**
+     * Permits to send requests to Solr, null if unlimited.
+     */
+    private Semaphore solrPermits;
+    /**
+     * Permits to fetch documents from the content hosting, null if unlimited.
+     */
+    private Semaphore contentPermits;
+    /**
+     * Permits to extract binary contents with Tika (CPU bound), null if unlimited.
+     */
+    private Semaphore extractionPermits;
+
+    public void init() {
+        if (timestampStore != null && timestampStoreRebuiltOnStartup) {
+            Thread rebuildThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    rebuildTimestampStore();
+                }
+            }, "search2-timestamp-store-rebuild");
+            rebuildThread.setDaemon(true);
+            rebuildThread.start();
+        }
+    }
 
     @Override
     public void executeTask(Task task) {
@@ -74,9 +228,9 @@ public class SolrTaskHandler extends AbstractTaskHandler {
             String type = task.getType();
             try {
                 if (OPTIMISE.getTypeName().equals(type)) {
-                    optimise();
+                    requestOptimisation();
                 } else if (COMMIT.getTypeName().equals(type)) {
-                    // Don't do anything, the commit is done automatically in the finally.
+                    commit();
                 } else if (IGNORE.getTypeName().equals(type)) {
                     logger.debug("Task '" + task + "', was ignored as expected");
                 } else {
@@ -86,7 +240,64 @@ public class SolrTaskHandler extends AbstractTaskHandler {
                 throw wrapException(ex, "An exception occurred while handling the task '" + task + "'", task);
             }
         } finally {
-            commit();
+            taskExecuted();
+        }
+    }
+
+    /**
+     * Executes multiple tasks, sending the indexed documents in batches.
+     * <p>
+     * {@link DefaultTask.Type#INDEX_DOCUMENT} tasks are grouped in batches of {@link #batchSize} documents, other
+     * tasks are executed one by one. The pending batch is sent before any other task, so tasks are still applied in
+     * order.<br />
+     * The {@link CommitPolicy} is notified once for the whole group of tasks.
+     * </p>
+     *
+     * @param tasks tasks to execute.
+     */
+    @Override
+    public void executeTasks(Collection<Task> tasks) {
+        if (batchSize <= 1) {
+            super.executeTasks(tasks);
+            return;
+        }
+
+        MultipleTasksException mte = new MultipleTasksException("An exception occurred while executing "
+                + tasks.size() + " tasks");
+        SolrDocumentBatch batch = new SolrDocumentBatch(batchSize, batchMaximumPayloadSize);
+        for (Task task : tasks) {
+            try {
+                if (INDEX_DOCUMENT.getTypeName().equals(task.getType())) {
+                    addToBatch(batch, getDocument(task), new DateTime(task.getCreationDate()));
+                    if (batch.isFull())
+                        sendBatch(batch);
+                } else {
+                    sendPendingBatch(batch, mte);
+                    executeTask(task);
+                }
+            } catch (TaskException e) {
+                mte.addTaskException(e);
+            } catch (Exception e) {
+                mte.addTaskException(new TaskException("An exception occurred while handling the task '" + task
+                        + "'", e));
+            }
+        }
+
+        sendPendingBatch(batch, mte);
+        try {
+            taskExecuted();
+        } catch (TaskException e) {
+            mte.addTaskException(e);
+        }
+
+        if (!mte.isEmpty()) throw mte;
+    }
+
+    private void sendPendingBatch(SolrDocumentBatch batch, MultipleTasksException mte) {
+        try {
+            sendBatch(batch);
+        } catch (TaskException e) {
+            mte.addTaskException(e);
         }
     }
 
@@ -110,19 +321,363 @@ public class SolrTaskHandler extends AbstractTaskHandler {
                     logger.debug("Indexation not useful as the document was updated earlier");
                 return;
             }
+        } catch (Exception e) {
+            throw wrapException(e, "An exception occurred while indexing the document '" + document.getReference()
+                    + "'", createIndexDocumentTask(document, taskCreationDate));
+        }
+
+        sendDocument(document, taskCreationDate);
+    }
+
+    /**
+     * Indexes multiple documents, grouping them in batches.
+     * <p>
+     * Documents are accumulated until the batch reaches either {@link #batchSize} documents or
+     * {@link #batchMaximumPayloadSize} bytes, and are then sent within a single {@link ReaderUpdateRequest}.<br />
+     * If a batch fails, its documents are sent again one by one, so each failing document gets its own
+     * {@link TaskException} (and its own {@link Task} to retry).
+     * </p>
+     *
+     * @param documents        documents to index.
+     * @param taskCreationDate creation date of the {@link Task}.
+     */
+    @Override
+    protected void indexDocuments(Iterable<Document> documents, DateTime taskCreationDate) {
+        if (pipelineExecutor != null) {
+            indexDocumentsThroughPipeline(documents, taskCreationDate);
+            return;
+        }
+
+        if (batchSize <= 1) {
+            super.indexDocuments(documents, taskCreationDate);
+            return;
+        }
+
+        MultipleTasksException mte = new MultipleTasksException("An exception occurred while indexing documents");
+        SolrDocumentBatch batch = new SolrDocumentBatch(batchSize, batchMaximumPayloadSize);
+        for (Document document : documents) {
+            try {
+                addToBatch(batch, document, taskCreationDate);
+                if (batch.isFull())
+                    sendBatch(batch);
+            } catch (TaskException e) {
+                mte.addTaskException(e);
+            }
+        }
 
+        try {
+            sendBatch(batch);
+        } catch (TaskException e) {
+            mte.addTaskException(e);
+        }
+
+        if (!mte.isEmpty()) throw mte;
+    }
+
+    /**
+     * Indexes multiple documents through a {@link Pipeline}.
+     * <p>
+     * Documents are enumerated by the current thread, then go through the fetch, extraction and send stages.<br />
+     * Each worker of the send stage has its own batch.
+     * </p>
+     *
+     * @param documents        documents to index.
+     * @param taskCreationDate creation date of the {@link Task}.
+     */
+    private void indexDocumentsThroughPipeline(Iterable<Document> documents, final DateTime taskCreationDate) {
+        final Iterator<Document> documentIterator = documents.iterator();
+        Iterator<PipelineElement> elements = new Iterator<PipelineElement>() {
+            @Override
+            public boolean hasNext() {
+                return documentIterator.hasNext();
+            }
+
+            @Override
+            public PipelineElement next() {
+                return new PipelineElement(documentIterator.next(), taskCreationDate);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        new Pipeline<PipelineElement>(pipelineExecutor, pipelineQueueSize)
+                .addStage("fetch", new Stage.Factory<PipelineElement>() {
+                    @Override
+                    public Stage<PipelineElement> createStage() {
+                        return new FetchStage();
+                    }
+                }, fetchParallelism)
+                .addStage("extraction", new Stage.Factory<PipelineElement>() {
+                    @Override
+                    public Stage<PipelineElement> createStage() {
+                        return new ExtractionStage();
+                    }
+                }, extractionParallelism)
+                .addStage("send", new Stage.Factory<PipelineElement>() {
+                    @Override
+                    public Stage<PipelineElement> createStage() {
+                        return new SendStage();
+                    }
+                }, sendParallelism)
+                .process(elements);
+    }
+
+    /**
+     * Prepares a document and adds it to a batch.
+     * <p>
+     * Documents already up to date are ignored.<br />
+     * Documents handled by SolrCell can't be part of a batch and are sent straight away.
+     * </p>
+     *
+     * @param batch            batch in which the document is added.
+     * @param document         document to index.
+     * @param taskCreationDate creation date of the {@link Task}.
+     */
+    private void addToBatch(SolrDocumentBatch batch, Document document, DateTime taskCreationDate) {
+        if (logger.isDebugEnabled())
+            logger.debug("Add '" + document.getReference() + "' to the index");
+
+        try {
+            if (isAlreadyUpToDate(document, taskCreationDate)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Indexation not useful as the document was updated earlier");
+                return;
+            }
+
+            if (document instanceof StreamDocument && solrCellEnabled) {
+                sendDocument(document, taskCreationDate);
+            } else {
+                SolrInputDocument solrDocument = generateSolrBaseDocument(document, taskCreationDate);
+                addContent(document, solrDocument);
+                batch.add(document, taskCreationDate, solrDocument);
+            }
+        } catch (Exception e) {
+            throw wrapException(e, "An exception occurred while indexing the document '" + document.getReference()
+                    + "'", createIndexDocumentTask(document, taskCreationDate));
+        }
+    }
+
+    /**
+     * Sends every document of a batch in one request and empties the batch.
+     * <p>
+     * If the request fails, each document is sent on its own.<br />
+     * The contents of the batch are closed once the request is done, the documents sent again on their own get a new
+     * content.
+     * </p>
+     *
+     * @param batch batch to send.
+     */
+    private void sendBatch(SolrDocumentBatch batch) {
+        if (batch.isEmpty())
+            return;
+
+        try {
+            try {
+                if (logger.isDebugEnabled())
+                    logger.debug("Send a batch of " + batch.size() + " documents");
+                ReaderUpdateRequest updateRequest = createUpdateRequest()
+                        .setSingleStream(singleStreamBatchesEnabled).add(batch.getSolrDocuments());
+                commitPolicy.prepareUpdateRequest(updateRequest);
+                send(updateRequest);
+                documentsSent(batch.getEntries());
+            } finally {
+                // Contents which weren't read (or entirely read) by the request would stay open
+                batch.closeReaders();
+            }
+        } catch (Exception e) {
+            logger.warn("Couldn't send a batch of " + batch.size() + " documents, sending them one by one", e);
+            MultipleTasksException mte = new MultipleTasksException(
+                    "An exception occurred while indexing a batch of documents");
+            for (SolrDocumentBatch.Entry entry : batch.getEntries()) {
+                try {
+                    sendDocument(entry.getDocument(), entry.getTaskCreationDate());
+                } catch (TaskException te) {
+                    mte.addTaskException(te);
+                }
+            }
+            if (!mte.isEmpty()) throw mte;
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends a single document to Solr without checking whether it's up to date.
+     *
+     * @param document         the document to index.
+     * @param taskCreationDate creation date of the {@link Task}.
+     */
+    private void sendDocument(Document document, DateTime taskCreationDate) {
+        try {
             SolrInputDocument solrDocument = generateSolrBaseDocument(document, taskCreationDate);
-            SolrRequest indexRequest = createSolrRequest(document, solrDocument);
+            AbstractUpdateRequest indexRequest = createSolrRequest(document, solrDocument);
+            commitPolicy.prepareUpdateRequest(indexRequest);
             logger.debug("Executing the following request '" + indexRequest + "'");
-            solrServer.request(indexRequest);
+            send(indexRequest);
+            documentsSent(new String[]{document.getReference()}, new long[]{taskCreationDate.getMillis()});
         } catch (Exception e) {
-            Task task = new DefaultTask(INDEX_DOCUMENT, taskCreationDate)
-                    .setProperty(DefaultTask.DOCUMENT_REFERENCE, document.getReference());
-            throw wrapException(e,
-                    "An exception occurred while indexing the document '" + document.getReference() + "'", task);
+            throw wrapException(e, "An exception occurred while indexing the document '" + document.getReference()
+                    + "'", createIndexDocumentTask(document, taskCreationDate));
+        }
+    }
+
+    /**
+     * Sends an update request to Solr, within the limit of {@link #solrPermits}.
+     *
+     * @param request request to send.
+     * @throws SolrServerException if the request failed.
+     * @throws IOException         if the request failed, or if the thread was interrupted while waiting.
+     */
+    private void send(AbstractUpdateRequest request) throws SolrServerException, IOException {
+        acquire(solrPermits);
+        try {
+            solrServer.request(request);
+        } finally {
+            release(solrPermits);
         }
     }
 
+    /**
+     * Parses a binary document straight away, within the limit of {@link #extractionPermits}.
+     * <p>
+     * The extracted text is spooled, so the document is entirely parsed before the request is sent.
+     * </p>
+     *
+     * @param document binary document.
+     * @return the extracted text.
+     * @throws IOException if the text couldn't be spooled, or if the thread was interrupted while waiting.
+     */
+    private Reader extractContent(StreamDocument document) throws IOException {
+        return spoolContent(new TikaReaderDocument(document, maximumExtractedCharacters).getContent(),
+                extractionPermits);
+    }
+
+    /**
+     * Reads a content entirely and spools it in a temporary file, within the limit of the given permits.
+     * <p>
+     * The temporary file is deleted once the returned Reader is closed.<br />
+     * A content failing while it's read (unavailable file, broken document) fails here, before anything is sent to
+     * Solr.
+     * </p>
+     *
+     * @param content content to read, always closed.
+     * @param permits permits of the backend providing the content.
+     * @return a Reader on the spooled content.
+     * @throws IOException if the content couldn't be read or spooled, or if the thread was interrupted while waiting.
+     */
+    private Reader spoolContent(Reader content, Semaphore permits) throws IOException {
+        try {
+            acquire(permits);
+            try {
+                File spool = File.createTempFile("search2-content", ".txt");
+                try {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool), "UTF-8"));
+                    try {
+                        char[] buffer = new char[8192];
+                        int read;
+                        while ((read = content.read(buffer)) >= 0) {
+                            writer.write(buffer, 0, read);
+                        }
+                    } finally {
+                        writer.close();
+                    }
+                    return new SpooledContentReader(spool);
+                } catch (IOException e) {
+                    deleteSpool(spool);
+                    throw e;
+                } catch (RuntimeException e) {
+                    deleteSpool(spool);
+                    throw e;
+                }
+            } finally {
+                release(permits);
+            }
+        } finally {
+            content.close();
+        }
+    }
+
+    private static void deleteSpool(File spool) {
+        if (spool.exists() && !spool.delete())
+            logger.warn("Couldn't delete '" + spool + "'");
+    }
+
+    /**
+     * Waits for a permit to use a backend.
+     *
+     * @param permits permits of the backend, null if the backend isn't limited.
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    private static void acquire(Semaphore permits) throws InterruptedIOException {
+        if (permits == null)
+            return;
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a backend");
+        }
+    }
+
+    private static void release(Semaphore permits) {
+        if (permits != null)
+            permits.release();
+    }
+
+    /**
+     * Keeps track of the last indexation of the documents of a batch in the {@link #timestampStore}.
+     *
+     * @param entries documents successfully sent to Solr.
+     */
+    private void documentsSent(List<SolrDocumentBatch.Entry> entries) {
+        if (timestampStore == null)
+            return;
+
+        String[] references = new String[entries.size()];
+        long[] timestamps = new long[entries.size()];
+        for (int i = 0; i < references.length; i++) {
+            references[i] = entries.get(i).getDocument().getReference();
+            timestamps[i] = entries.get(i).getTaskCreationDate().getMillis();
+        }
+        documentsSent(references, timestamps);
+    }
+
+    /**
+     * Keeps track of the last indexation of documents in the {@link #timestampStore}.
+     * <p>
+     * The documents are only added to the store once they've been committed, until then Solr could lose them.
+     * </p>
+     *
+     * @param references references of the documents successfully sent to Solr.
+     * @param timestamps creation dates of the {@link Task}s which sent the documents.
+     */
+    private void documentsSent(final String[] references, final long[] timestamps) {
+        if (timestampStore == null)
+            return;
+
+        commitPolicy.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < references.length; i++) {
+                    timestampStore.put(references[i], timestamps[i]);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "Add " + references.length + " documents to the timestamp store";
+            }
+        });
+    }
+
+    private static Task createIndexDocumentTask(Document document, DateTime taskCreationDate) {
+        return new DefaultTask(INDEX_DOCUMENT, taskCreationDate)
+                .setProperty(DefaultTask.DOCUMENT_REFERENCE, document.getReference());
+    }
+
     /**
      * Removes a single document from the index.
      * <p>
@@ -138,8 +693,10 @@ public class SolrTaskHandler extends AbstractTaskHandler {
             logger.debug("Remove '" + documentReference + "' from the index");
 
         try {
-            solrServer.deleteByQuery(REFERENCE_FIELD + ":" + ClientUtils.escapeQueryChars(documentReference)
+            deleteByQuery(REFERENCE_FIELD + ":" + ClientUtils.escapeQueryChars(documentReference)
                     + " AND " + TIMESTAMP_FIELD + ":" + solrDateRange(null, taskCreationDate, false));
+            if (timestampStore != null)
+                timestampStore.remove(documentReference);
         } catch (Exception e) {
             Task task = new DefaultTask(UNINDEX_DOCUMENT, taskCreationDate)
                     .setProperty(DefaultTask.DOCUMENT_REFERENCE, documentReference);
@@ -187,8 +744,10 @@ public class SolrTaskHandler extends AbstractTaskHandler {
         logger.info("Remove old documents from '" + siteId + "'");
 
         try {
-            solrServer.deleteByQuery(SITE_ID_FIELD + ":" + ClientUtils.escapeQueryChars(siteId)
-                    + " AND " + TIMESTAMP_FIELD + ":" + solrDateRange(null, taskCreationDate, false));
+            String query = SITE_ID_FIELD + ":" + ClientUtils.escapeQueryChars(siteId)
+                    + " AND " + TIMESTAMP_FIELD + ":" + solrDateRange(null, taskCreationDate, false);
+            removeFromTimestampStore(query);
+            deleteByQuery(query);
         } catch (Exception e) {
             Task task = new DefaultTask(UNINDEX_SITE, taskCreationDate).setProperty(DefaultTask.SITE_ID, siteId);
             throw wrapException(e, "An exception occurred while unindexing the site '" + siteId + "'", task);
@@ -212,18 +771,13 @@ public class SolrTaskHandler extends AbstractTaskHandler {
             mte.addTaskException(e);
         }
 
+        // The optimisation is requested by unindexAll
         try {
             unindexAll(taskCreationDate);
         } catch (TaskException e) {
             mte.addTaskException(e);
         }
 
-        try {
-            optimise();
-        } catch (TaskException e) {
-            mte.addTaskException(e);
-        }
-
         if (!mte.isEmpty()) throw mte;
     }
 
@@ -239,14 +793,66 @@ public class SolrTaskHandler extends AbstractTaskHandler {
     protected void unindexAll(DateTime taskCreationDate) {
         logger.info("Remove old documents from every sites");
         try {
-            solrServer.deleteByQuery(TIMESTAMP_FIELD + ":" + solrDateRange(null, taskCreationDate, false));
-            optimise();
+            if (timestampStore != null)
+                timestampStore.invalidateBefore(taskCreationDate.getMillis());
+            deleteByQuery(TIMESTAMP_FIELD + ":" + solrDateRange(null, taskCreationDate, false));
+            requestOptimisation();
         } catch (Exception e) {
             Task task = new DefaultTask(UNINDEX_ALL, taskCreationDate);
             throw wrapException(e, "An exception occurred while unindexing everything", task);
         }
     }
 
+    /**
+     * Removes the documents matching a query from the {@link #timestampStore}, before they're deleted from Solr.
+     * <p>
+     * Only the references of the matching documents are fetched, in pages sorted by reference. Other documents keep
+     * their entries, unlike with {@link MappedTimestampStore#invalidateBefore(long)}.
+     * </p>
+     *
+     * @param query query selecting the documents about to be deleted.
+     * @throws SolrServerException if the documents couldn't be fetched.
+     * @throws IOException         if the documents couldn't be fetched.
+     */
+    private void removeFromTimestampStore(String query) throws SolrServerException, IOException {
+        if (timestampStore == null)
+            return;
+
+        String lastReference = null;
+        SolrDocumentList results;
+        do {
+            SolrQuery solrQuery = new SolrQuery()
+                    .setQuery((lastReference == null) ? query : "(" + query + ") AND " + REFERENCE_FIELD + ":{\""
+                            + ClientUtils.escapeQueryChars(lastReference) + "\" TO *}")
+                    .setFields(REFERENCE_FIELD)
+                    .addSortField(REFERENCE_FIELD, SolrQuery.ORDER.asc)
+                    .setRows(TIMESTAMP_STORE_PAGE_SIZE);
+            acquire(solrPermits);
+            try {
+                results = solrServer.query(solrQuery).getResults();
+            } finally {
+                release(solrPermits);
+            }
+            for (SolrDocument result : results) {
+                lastReference = (String) result.getFirstValue(REFERENCE_FIELD);
+                timestampStore.remove(lastReference);
+            }
+        } while (results.size() == TIMESTAMP_STORE_PAGE_SIZE);
+    }
+
+    /**
+     * Requests an optimisation of the index to the {@link #optimisationScheduler}.
+     * <p>
+     * If there is no scheduler, the index is optimised immediately.
+     * </p>
+     */
+    private void requestOptimisation() {
+        if (optimisationScheduler != null)
+            optimisationScheduler.requestOptimisation();
+        else
+            optimise();
+    }
+
     /**
      * Optimises the Solr index.
      * <p>
@@ -266,23 +872,42 @@ public class SolrTaskHandler extends AbstractTaskHandler {
     }
 
     /**
-     * Commits the current Solr transaction.
-     * <p>
-     * Forces a <a href="http://wiki.apache.org/solr/UpdateXmlMessages#A.22commit.22_and_.22optimize.22">commit</a>
-     * in the Solr index.
-     * </p>
+     * Requests a commit of the current Solr transaction to the {@link CommitPolicy}.
      */
     private void commit() {
-        if (logger.isDebugEnabled())
-            logger.debug("Commit the current transaction");
         try {
-            solrServer.commit();
+            commitPolicy.commit();
         } catch (Exception e) {
             Task task = new SolrTask(SolrTask.Type.COMMIT);
             throw wrapException(e, "An exception occurred while committing", task);
         }
     }
 
+    /**
+     * Notifies the {@link CommitPolicy} that a task has been executed.
+     */
+    private void taskExecuted() {
+        try {
+            commitPolicy.taskExecuted();
+        } catch (Exception e) {
+            Task task = new SolrTask(SolrTask.Type.COMMIT);
+            throw wrapException(e, "An exception occurred while committing", task);
+        }
+    }
+
+    /**
+     * Deletes every document matching a query.
+     *
+     * @param query query selecting the documents to delete.
+     * @throws SolrServerException if the deletion failed.
+     * @throws IOException         if the deletion failed.
+     */
+    private void deleteByQuery(String query) throws SolrServerException, IOException {
+        UpdateRequest deleteRequest = new UpdateRequest().deleteByQuery(query);
+        commitPolicy.prepareUpdateRequest(deleteRequest);
+        send(deleteRequest);
+    }
+
     /**
      * Wraps any type of exception in a {@link TaskException}.
      * <p>
@@ -290,10 +915,13 @@ public class SolrTaskHandler extends AbstractTaskHandler {
      * with a {@link Task} to run later.<br />
      * Such exceptions are :
      * <ul>
-     * <li>{@link IOException} which are due to a connection problem between the Solr server and Sakai</li>
+     * <li>{@link IOException} which are due to a connection problem between the Solr server and Sakai, or to a
+     * content which couldn't be read</li>
      * <li>{@link SolrServerException} containing an {@code IOException} (same as above)</li>
      * <li>{@link SolrException} when due to a 503 - Service unavailable</li>
      * </ul>
+     * When the Solr server itself can't be reached (see {@link CircuitBreakingSolrServer#isSolrUnavailable(Throwable)}),
+     * the exception is a {@link BackendUnavailableException}, which doesn't count as an attempt.
      * </p>
      * <p>
      * Exceptions that are already considered as {@link TaskException} are simply returned.<br />
@@ -306,10 +934,10 @@ public class SolrTaskHandler extends AbstractTaskHandler {
      * @return
      */
     private TaskException wrapException(Exception e, String message, Task newTask) {
-        if (e instanceof SolrServerException && ((SolrServerException) e).getRootCause() instanceof IOException) {
-            return new TemporaryTaskException(message, e, newTask);
-        } else if (e instanceof SolrException
-                && ((SolrException) e).code() == SolrException.ErrorCode.SERVICE_UNAVAILABLE.code) {
+        if (CircuitBreakingSolrServer.isSolrUnavailable(e)) {
+            return new BackendUnavailableException(message, e, newTask);
+        } else if (e instanceof SolrServerException
+                && ((SolrServerException) e).getRootCause() instanceof IOException) {
             return new TemporaryTaskException(message, e, newTask);
         } else if (e instanceof IOException) {
             return new TemporaryTaskException(message, e, newTask);
@@ -322,16 +950,27 @@ public class SolrTaskHandler extends AbstractTaskHandler {
 
     /**
      * Checks if a newer version of the document has been indexed, based on the creation date of the {@link Task}.
+     * <p>
+     * The {@link #timestampStore} is consulted first, Solr is queried only for documents unknown to the store.
+     * </p>
      *
      * @param document         document checked.
      * @param taskCreationDate creation date of the current task.
      * @return true if the index is already up to date, false otherwise.
      * @throws SolrServerException thrown if the verification of the document status failed.
+     * @throws IOException         thrown if the thread was interrupted while waiting for Solr.
      */
-    private boolean isAlreadyUpToDate(Document document, DateTime taskCreationDate) throws SolrServerException {
+    private boolean isAlreadyUpToDate(Document document, DateTime taskCreationDate)
+            throws SolrServerException, IOException {
         if (logger.isDebugEnabled())
             logger.debug("Check if '" + document + "' is up to date");
 
+        if (timestampStore != null) {
+            long lastIndexation = timestampStore.get(document.getReference());
+            if (lastIndexation != MappedTimestampStore.UNKNOWN)
+                return lastIndexation >= taskCreationDate.getMillis();
+        }
+
         // Count the number of documents with an indexation date after the task creation date
         // and with the same reference.
         SolrQuery query = new SolrQuery()
@@ -339,7 +978,48 @@ public class SolrTaskHandler extends AbstractTaskHandler {
                         + " AND " + TIMESTAMP_FIELD + ":" + solrDateRange(taskCreationDate, null, true))
                 .setRows(0);
         // If there is a result, then the document is already up to date.
-        return solrServer.query(query).getResults().getNumFound() != 0;
+        acquire(solrPermits);
+        try {
+            return solrServer.query(query).getResults().getNumFound() != 0;
+        } finally {
+            release(solrPermits);
+        }
+    }
+
+    /**
+     * Rebuilds the {@link #timestampStore} from the documents currently in the Solr index.
+     * <p>
+     * Documents are fetched in pages sorted by reference. While the store is being rebuilt, documents not yet known
+     * by the store are checked directly with Solr.
+     * </p>
+     */
+    public void rebuildTimestampStore() {
+        logger.info("Rebuild the timestamp store from the Solr index");
+        timestampStore.clear();
+        try {
+            String lastReference = null;
+            SolrDocumentList results;
+            do {
+                SolrQuery query = new SolrQuery()
+                        .setQuery((lastReference == null) ? "*:*" : REFERENCE_FIELD + ":{\""
+                                + ClientUtils.escapeQueryChars(lastReference) + "\" TO *}")
+                        .setFields(REFERENCE_FIELD, TIMESTAMP_FIELD)
+                        .addSortField(REFERENCE_FIELD, SolrQuery.ORDER.asc)
+                        .setRows(TIMESTAMP_STORE_PAGE_SIZE);
+                results = solrServer.query(query).getResults();
+                for (SolrDocument result : results) {
+                    lastReference = (String) result.getFirstValue(REFERENCE_FIELD);
+                    Object timestamp = result.getFirstValue(TIMESTAMP_FIELD);
+                    if (timestamp instanceof Date)
+                        timestampStore.put(lastReference, ((Date) timestamp).getTime());
+                    else if (timestamp != null)
+                        timestampStore.put(lastReference, new DateTime(timestamp.toString()).getMillis());
+                }
+            } while (results.size() == TIMESTAMP_STORE_PAGE_SIZE);
+            logger.info("Timestamp store rebuilt with " + timestampStore.size() + " documents");
+        } catch (Exception e) {
+            logger.error("Couldn't rebuild the timestamp store, remaining documents will be checked with Solr", e);
+        }
     }
 
     /**
@@ -347,7 +1027,7 @@ public class SolrTaskHandler extends AbstractTaskHandler {
      */
     private String solrDateRange(DateTime from, DateTime to, boolean inclusive) {
         String fromAsString = (from != null) ? DATE_TIME_FORMATTER.print(from) : "*";
-        String toAsString = (from != null) ? DATE_TIME_FORMATTER.print(to) : "*";
+        String toAsString = (to != null) ? DATE_TIME_FORMATTER.print(to) : "*";
         if (inclusive)
             return "[" + fromAsString + " TO " + toAsString + "]";
         else
@@ -365,8 +1045,19 @@ public class SolrTaskHandler extends AbstractTaskHandler {
      * @param document         document to index
      * @param taskCreationDate creation date of the request (used to fill the timestamp)
      * @return a {@code SolrInputDocument} ready to be indexed.
+     * @throws IOException if the thread was interrupted while waiting for the content hosting.
      */
-    private SolrInputDocument generateSolrBaseDocument(Document document, DateTime taskCreationDate) {
+    private SolrInputDocument generateSolrBaseDocument(Document document, DateTime taskCreationDate)
+            throws IOException {
+        acquire(contentPermits);
+        try {
+            return fillSolrBaseDocument(document, taskCreationDate);
+        } finally {
+            release(contentPermits);
+        }
+    }
+
+    private SolrInputDocument fillSolrBaseDocument(Document document, DateTime taskCreationDate) {
         SolrInputDocument solrDocument = new SolrInputDocument();
         solrDocument.addField(ID_FIELD, document.getId());
         solrDocument.addField(TITLE_FIELD, document.getTitle());
@@ -397,39 +1088,93 @@ public class SolrTaskHandler extends AbstractTaskHandler {
      * @param document     document to index.
      * @param solrDocument document indexable by solr.
      * @return a SolrRequest to index the document.
+     * @throws IOException if the thread was interrupted while waiting for a backend.
      */
-    private SolrRequest createSolrRequest(Document document, SolrInputDocument solrDocument) {
+    private AbstractUpdateRequest createSolrRequest(Document document, SolrInputDocument solrDocument)
+            throws IOException {
         if (logger.isDebugEnabled())
             logger.debug("Create a solr request to add '" + document + "' to the index");
 
+        if (document instanceof StreamDocument && solrCellEnabled) {
+            if (logger.isDebugEnabled())
+                logger.debug("Create a SolrCell request");
+            return getStreamIndexRequest((StreamDocument) document, solrDocument);
+        }
+
+        if (addContent(document, solrDocument)) {
+            if (logger.isDebugEnabled())
+                logger.debug("Create a request with a Reader");
+            return createUpdateRequest().add(solrDocument);
+        } else if (binaryUpdatesEnabled) {
+            if (logger.isDebugEnabled())
+                logger.debug("Create a binary request based on a String");
+            return new BinaryReaderUpdateRequest().add(solrDocument);
+        } else {
+            if (logger.isDebugEnabled())
+                logger.debug("Create a request based on a String");
+            return new UpdateRequest().add(solrDocument);
+        }
+    }
+
+    /**
+     * Creates an empty update request able to send {@link java.io.Reader} values, either in XML or in javabin
+     * depending on {@link #binaryUpdatesEnabled}.
+     *
+     * @return an empty update request.
+     */
+    private ReaderUpdateRequest createUpdateRequest() {
+        return binaryUpdatesEnabled ? new BinaryReaderUpdateRequest() : new ReaderUpdateRequest();
+    }
+
+    /**
+     * Adds the content of a {@link Document} to the {@link SolrInputDocument}.
+     * <p>
+     * The only supported documents are {@link StreamDocument}, {@link ReaderDocument} and {@link StringDocument}.<br />
+     * If the document is a {@link StreamDocument}, the binary content is parsed by an embedded Tika, up to
+     * {@link #maximumExtractedCharacters}, or obtained from the {@link #extractionCache} if there is one.<br />
+     * Contents provided as a {@link Reader} are spooled before being added (see
+     * {@link #spoolContent(Reader, Semaphore)}), except the ones from the cache which are already local files.
+     * </p>
+     *
+     * @param document     document to index.
+     * @param solrDocument document indexable by solr.
+     * @return true if the content has been added as a {@link java.io.Reader}, false if it's a String.
+     * @throws IOException if the thread was interrupted while waiting for a backend.
+     */
+    private boolean addContent(Document document, SolrInputDocument solrDocument) throws IOException {
         if (document instanceof StreamDocument) {
-            StreamDocument streamDocument = (StreamDocument) document;
-            if (solrCellEnabled) {
-                if (logger.isDebugEnabled())
-                    logger.debug("Create a SolrCell request");
-                return getStreamIndexRequest(streamDocument, solrDocument);
+            if (logger.isDebugEnabled())
+                logger.debug("Transform the document with tika");
+            if (extractionCache != null) {
+                ReaderDocument extractedDocument;
+                acquire(extractionPermits);
+                try {
+                    extractedDocument = extractionCache.getExtractedDocument((StreamDocument) document);
+                } finally {
+                    release(extractionPermits);
+                }
+                solrDocument.addField(CONTENT_FIELD, extractedDocument.getContent());
             } else {
-                if (logger.isDebugEnabled())
-                    logger.debug("Transform the document with tika");
-                document = new TikaDocument(streamDocument);
+                solrDocument.addField(CONTENT_FIELD, extractContent((StreamDocument) document));
             }
+            return true;
         }
 
-        SolrRequest indexRequest;
         if (document instanceof ReaderDocument) {
-            if (logger.isDebugEnabled())
-                logger.debug("Create a request with a Reader");
-            solrDocument.addField(CONTENT_FIELD, ((ReaderDocument) document).getContent());
-            indexRequest = new ReaderUpdateRequest().add(solrDocument);
+            solrDocument.addField(CONTENT_FIELD, spoolContent(((ReaderDocument) document).getContent(),
+                    contentPermits));
+            return true;
         } else if (document instanceof StringDocument) {
-            if (logger.isDebugEnabled())
-                logger.debug("Create a request based on a String");
-            solrDocument.addField(CONTENT_FIELD, ((StringDocument) document).getContent());
-            indexRequest = new UpdateRequest().add(solrDocument);
+            acquire(contentPermits);
+            try {
+                solrDocument.addField(CONTENT_FIELD, ((StringDocument) document).getContent());
+            } finally {
+                release(contentPermits);
+            }
+            return false;
         } else {
             throw new TaskException("Impossible to index '" + document + "'");
         }
-        return indexRequest;
     }
 
     /**
@@ -495,4 +1240,220 @@ public class SolrTaskHandler extends AbstractTaskHandler {
     public void setSolrCellEnabled(boolean solrCellEnabled) {
         this.solrCellEnabled = solrCellEnabled;
     }
+
+    public void setCommitPolicy(CommitPolicy commitPolicy) {
+        this.commitPolicy = commitPolicy;
+    }
+
+    public void setTimestampStore(MappedTimestampStore timestampStore) {
+        this.timestampStore = timestampStore;
+    }
+
+    public void setTimestampStoreRebuiltOnStartup(boolean timestampStoreRebuiltOnStartup) {
+        this.timestampStoreRebuiltOnStartup = timestampStoreRebuiltOnStartup;
+    }
+
+    public void setPipelineExecutor(ExecutorService pipelineExecutor) {
+        this.pipelineExecutor = pipelineExecutor;
+    }
+
+    public void setPipelineQueueSize(int pipelineQueueSize) {
+        this.pipelineQueueSize = pipelineQueueSize;
+    }
+
+    public void setFetchParallelism(int fetchParallelism) {
+        this.fetchParallelism = fetchParallelism;
+    }
+
+    public void setExtractionParallelism(int extractionParallelism) {
+        this.extractionParallelism = extractionParallelism;
+    }
+
+    public void setSendParallelism(int sendParallelism) {
+        this.sendParallelism = sendParallelism;
+    }
+
+    public void setMaximumExtractedCharacters(int maximumExtractedCharacters) {
+        this.maximumExtractedCharacters = maximumExtractedCharacters;
+    }
+
+    public void setBinaryUpdatesEnabled(boolean binaryUpdatesEnabled) {
+        this.binaryUpdatesEnabled = binaryUpdatesEnabled;
+    }
+
+    public void setOptimisationScheduler(OptimisationScheduler optimisationScheduler) {
+        this.optimisationScheduler = optimisationScheduler;
+    }
+
+    public void setSingleStreamBatchesEnabled(boolean singleStreamBatchesEnabled) {
+        this.singleStreamBatchesEnabled = singleStreamBatchesEnabled;
+    }
+
+    public void setExtractionCache(ExtractionCache extractionCache) {
+        this.extractionCache = extractionCache;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the maximum number of requests sent to Solr at the same time.
+     *
+     * @param maximumSolrRequests maximum number of concurrent requests, 0 or less for no limit.
+     */
+    public void setMaximumSolrRequests(int maximumSolrRequests) {
+        this.solrPermits = (maximumSolrRequests > 0) ? new Semaphore(maximumSolrRequests, true) : null;
+    }
+
+    /**
+     * Sets the maximum number of documents fetched from the content hosting at the same time.
+     *
+     * @param maximumContentRequests maximum number of concurrent fetches, 0 or less for no limit.
+     */
+    public void setMaximumContentRequests(int maximumContentRequests) {
+        this.contentPermits = (maximumContentRequests > 0) ? new Semaphore(maximumContentRequests, true) : null;
+    }
+
+    /**
+     * Sets the maximum number of binary documents extracted by Tika at the same time.
+     *
+     * @param maximumExtractions maximum number of concurrent extractions, 0 or less for no limit.
+     */
+    public void setMaximumExtractions(int maximumExtractions) {
+        this.extractionPermits = (maximumExtractions > 0) ? new Semaphore(maximumExtractions, true) : null;
+    }
+
+    public void setBatchMaximumPayloadSize(long batchMaximumPayloadSize) {
+        this.batchMaximumPayloadSize = batchMaximumPayloadSize;
+    }
+
+    /**
+     * Document going through the indexation {@link Pipeline}.
+     */
+    private static final class PipelineElement {
+        private final Document document;
+        private final DateTime taskCreationDate;
+        private SolrInputDocument solrDocument;
+
+        private PipelineElement(Document document, DateTime taskCreationDate) {
+            this.document = document;
+            this.taskCreationDate = taskCreationDate;
+        }
+    }
+
+    /**
+     * Checks whether documents are up to date and fetches everything but binary contents.
+     * <p>
+     * Documents handled by SolrCell are sent straight away.
+     * </p>
+     */
+    private final class FetchStage implements Stage<PipelineElement> {
+        @Override
+        public PipelineElement process(PipelineElement element) {
+            Document document = element.document;
+            try {
+                if (isAlreadyUpToDate(document, element.taskCreationDate)) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Indexation of '" + document.getReference() + "' not useful as the document "
+                                + "was updated earlier");
+                    return null;
+                }
+
+                if (document instanceof StreamDocument && solrCellEnabled) {
+                    sendDocument(document, element.taskCreationDate);
+                    return null;
+                }
+
+                element.solrDocument = generateSolrBaseDocument(document, element.taskCreationDate);
+                if (!(document instanceof StreamDocument))
+                    addContent(document, element.solrDocument);
+                return element;
+            } catch (Exception e) {
+                throw wrapException(e, "An exception occurred while indexing the document '"
+                        + document.getReference() + "'", createIndexDocumentTask(document, element.taskCreationDate));
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    /**
+     * Extracts the content of binary documents.
+     * <p>
+     * The content is either obtained from the {@link #extractionCache}, or parsed straight away and spooled in a
+     * temporary file.
+     * </p>
+     */
+    private final class ExtractionStage implements Stage<PipelineElement> {
+        @Override
+        public PipelineElement process(PipelineElement element) {
+            Document document = element.document;
+            try {
+                if (document instanceof StreamDocument) {
+                    if (extractionCache != null)
+                        addContent(document, element.solrDocument);
+                    else
+                        element.solrDocument.addField(CONTENT_FIELD, extractContent((StreamDocument) document));
+                }
+                return element;
+            } catch (Exception e) {
+                throw wrapException(e, "An exception occurred while indexing the document '"
+                        + document.getReference() + "'", createIndexDocumentTask(document, element.taskCreationDate));
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    /**
+     * Sends documents to Solr in batches.
+     */
+    private final class SendStage implements Stage<PipelineElement> {
+        private final SolrDocumentBatch batch = new SolrDocumentBatch(Math.max(batchSize, 1),
+                batchMaximumPayloadSize);
+
+        @Override
+        public PipelineElement process(PipelineElement element) {
+            batch.add(element.document, element.taskCreationDate, element.solrDocument);
+            if (batch.isFull())
+                sendBatch(batch);
+            return null;
+        }
+
+        @Override
+        public void finish() {
+            sendBatch(batch);
+        }
+    }
+
+    /**
+     * Reader on a content spooled by {@link #spoolContent(Reader, Semaphore)}.
+     * <p>
+     * The file is deleted as soon as it's opened (the content stays readable until the Reader is closed), or when the
+     * Reader is closed if the system doesn't allow to delete an opened file.
+     * </p>
+     */
+    private static final class SpooledContentReader extends InputStreamReader {
+        private final File spool;
+
+        private SpooledContentReader(File spool) throws IOException {
+            super(new BufferedInputStream(new FileInputStream(spool)), "UTF-8");
+            this.spool = spool;
+            spool.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deleteSpool(spool);
+            }
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package uk.ac.ox.oucs.search2.solr.indexation.commit;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base for {@link CommitPolicy} sending hard commits to the Solr server.
+ * <p>
+ * Callbacks waiting for a commit are run once a hard commit succeeds. If the commit fails, they wait for the next
+ * one.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public abstract class AbstractCommitPolicy implements CommitPolicy {
+    private static final Logger logger = LoggerFactory.getLogger(AbstractCommitPolicy.class);
+    /**
+     * Maximum number of callbacks waiting for a commit, newer callbacks are dropped while commits fail.
+     */
+    private static final int MAXIMUM_PENDING_CALLBACKS = 10000;
+    /**
+     * Callbacks waiting for the next commit.
+     */
+    private final List<Runnable> commitCallbacks = new ArrayList<Runnable>();
+    /**
+     * Solr server on which the commits are done.
+     */
+    private SolrServer solrServer;
+
+    @Override
+    public void prepareUpdateRequest(AbstractUpdateRequest updateRequest) {
+    }
+
+    @Override
+    public void afterCommit(Runnable callback) {
+        synchronized (commitCallbacks) {
+            if (commitCallbacks.size() < MAXIMUM_PENDING_CALLBACKS) {
+                commitCallbacks.add(callback);
+                return;
+            }
+        }
+        logger.warn("Too many changes waiting for a commit, the callback '" + callback + "' is dropped");
+    }
+
+    /**
+     * Commits the current Solr transaction.
+     * <p>
+     * Forces a <a href="http://wiki.apache.org/solr/UpdateXmlMessages#A.22commit.22_and_.22optimize.22">commit</a>
+     * in the Solr index.
+     * </p>
+     *
+     * @throws SolrServerException if the commit failed.
+     * @throws IOException         if the commit failed.
+     */
+    protected void hardCommit() throws SolrServerException, IOException {
+        if (logger.isDebugEnabled())
+            logger.debug("Commit the current transaction");
+        // Only the callbacks registered before the commit are sure to see their changes committed
+        List<Runnable> callbacks;
+        synchronized (commitCallbacks) {
+            callbacks = new ArrayList<Runnable>(commitCallbacks);
+            commitCallbacks.clear();
+        }
+
+        boolean committed = false;
+        try {
+            solrServer.commit();
+            committed = true;
+        } finally {
+            if (committed) {
+                runCallbacks(callbacks);
+            } else {
+                synchronized (commitCallbacks) {
+                    commitCallbacks.addAll(0, callbacks);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs callbacks whose changes have been committed.
+     *
+     * @param callbacks callbacks to run.
+     */
+    protected static void runCallbacks(List<Runnable> callbacks) {
+        for (Runnable callback : callbacks) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                logger.error("The callback '" + callback + "' failed after the commit", e);
+            }
+        }
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+}
@@ -0,0 +1,54 @@
+package uk.ac.ox.oucs.search2.solr.indexation.commit;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+
+import java.io.IOException;
+
+/**
+ * Policy deciding when changes sent to the Solr server are committed.
+ * <p>
+ * A commit is an expensive operation for Solr as it opens a new searcher and discards its caches.<br />
+ * Depending on the load, committing after every single change can be replaced by a commit grouping multiple changes
+ * or by letting Solr commit on its own with a <a href="http://wiki.apache.org/solr/CommitWithin">commitWithin</a>.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface CommitPolicy {
+    /**
+     * Prepares an update request before it's sent to the Solr server.
+     *
+     * @param updateRequest request about to be sent.
+     */
+    void prepareUpdateRequest(AbstractUpdateRequest updateRequest);
+
+    /**
+     * Notifies the policy that a task has been executed and that the index may have changed.
+     *
+     * @throws SolrServerException if the commit triggered by this task failed.
+     * @throws IOException         if the commit triggered by this task failed.
+     */
+    void taskExecuted() throws SolrServerException, IOException;
+
+    /**
+     * Requests a commit of every pending change.
+     * <p>
+     * Depending on the policy, the commit may be done straight away or scheduled for later.
+     * </p>
+     *
+     * @throws SolrServerException if the commit failed.
+     * @throws IOException         if the commit failed.
+     */
+    void commit() throws SolrServerException, IOException;
+
+    /**
+     * Runs a callback once every change sent before this call has been committed.
+     * <p>
+     * If the changes are never committed (for example if every commit fails), the callback may never be run.
+     * </p>
+     *
+     * @param callback callback to run after the commit.
+     */
+    void afterCommit(Runnable callback);
+}
@@ -0,0 +1,93 @@
+package uk.ac.ox.oucs.search2.solr.indexation.commit;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.common.params.UpdateParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Lets Solr commit changes on its own with a <a href="http://wiki.apache.org/solr/CommitWithin">commitWithin</a>.
+ * <p>
+ * Every update request is sent with a maximum delay before the commit, Solr groups the commits by itself.<br />
+ * An explicit commit request is still honoured straight away.
+ * </p>
+ * <p>
+ * As the commits done by Solr aren't reported, a callback waiting for a commit is run once the
+ * {@link #commitWithin} delay is over, the next time a task is executed.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class CommitWithinPolicy extends AbstractCommitPolicy {
+    /**
+     * Maximum time (in ms) before a change is committed by Solr.
+     */
+    private int commitWithin = 10000;
+    /**
+     * Callbacks waiting for the commit done by Solr, from the oldest to the newest.
+     */
+    private final LinkedList<ScheduledCallback> scheduledCallbacks = new LinkedList<ScheduledCallback>();
+
+    @Override
+    public void prepareUpdateRequest(AbstractUpdateRequest updateRequest) {
+        updateRequest.setCommitWithin(commitWithin);
+        // Requests built without an UpdateRequest body (SolrCell) rely on the parameter
+        updateRequest.setParam(UpdateParams.COMMIT_WITHIN, String.valueOf(commitWithin));
+    }
+
+    @Override
+    public void taskExecuted() {
+        runCallbacks(takeScheduledCallbacks(System.currentTimeMillis()));
+    }
+
+    @Override
+    public void commit() throws SolrServerException, IOException {
+        List<Runnable> callbacks = takeScheduledCallbacks(Long.MAX_VALUE);
+        hardCommit();
+        runCallbacks(callbacks);
+    }
+
+    @Override
+    public void afterCommit(Runnable callback) {
+        synchronized (scheduledCallbacks) {
+            scheduledCallbacks.add(new ScheduledCallback(System.currentTimeMillis() + commitWithin, callback));
+        }
+    }
+
+    /**
+     * Takes the callbacks whose changes are committed by a given time.
+     *
+     * @param time time (in ms) at which the changes are committed.
+     * @return the callbacks to run.
+     */
+    private List<Runnable> takeScheduledCallbacks(long time) {
+        List<Runnable> callbacks = new ArrayList<Runnable>();
+        synchronized (scheduledCallbacks) {
+            while (!scheduledCallbacks.isEmpty() && scheduledCallbacks.getFirst().commitTime <= time) {
+                callbacks.add(scheduledCallbacks.removeFirst().callback);
+            }
+        }
+        return callbacks;
+    }
+
+    public void setCommitWithin(int commitWithin) {
+        this.commitWithin = commitWithin;
+    }
+
+    /**
+     * Callback with the time by which Solr will have committed its changes.
+     */
+    private static final class ScheduledCallback {
+        private final long commitTime;
+        private final Runnable callback;
+
+        private ScheduledCallback(long commitTime, Runnable callback) {
+            this.commitTime = commitTime;
+            this.callback = callback;
+        }
+    }
+}
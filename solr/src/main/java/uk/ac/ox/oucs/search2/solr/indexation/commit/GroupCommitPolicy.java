@@ -0,0 +1,112 @@
+package uk.ac.ox.oucs.search2.solr.indexation.commit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups the changes of multiple tasks within a single commit.
+ * <p>
+ * A commit is done either when the number of tasks executed since the last commit reaches
+ * {@link #maximumPendingTasks}, or every {@link #commitInterval} if at least one task has been executed.<br />
+ * Commits are done by a dedicated thread, so tasks never wait for a commit.<br />
+ * A single commit is scheduled at a time once the limit is reached or exceeded, so a failed commit is attempted
+ * again by the next task rather than when the counter wraps around.
+ * </p>
+ * <p>
+ * An explicit commit request is handed to the same thread and executed as soon as possible.<br />
+ * If a commit fails, the changes stay pending and will be committed on the next attempt.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class GroupCommitPolicy extends AbstractCommitPolicy {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitPolicy.class);
+    /**
+     * Number of tasks executed since the last commit.
+     */
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    /**
+     * Whether a commit triggered by the number of pending tasks is waiting to be done.
+     */
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+    private final Runnable commitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commitPendingTasks();
+        }
+    };
+    private ScheduledExecutorService commitScheduler;
+    /**
+     * Number of executed tasks triggering a commit.
+     */
+    private int maximumPendingTasks = 1000;
+    /**
+     * Interval (in ms) between two commits.
+     */
+    private long commitInterval = 60000;
+
+    public void init() {
+        commitScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search2-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        commitScheduler.scheduleWithFixedDelay(commitRunnable, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() {
+        commitScheduler.shutdown();
+        // Don't lose the last changes
+        commitPendingTasks();
+    }
+
+    @Override
+    public void taskExecuted() {
+        if (pendingTasks.incrementAndGet() >= maximumPendingTasks && commitScheduled.compareAndSet(false, true))
+            commitScheduler.execute(commitRunnable);
+    }
+
+    @Override
+    public void commit() {
+        pendingTasks.incrementAndGet();
+        commitScheduler.execute(commitRunnable);
+    }
+
+    /**
+     * Commits if at least one task has been executed since the last commit.
+     */
+    private void commitPendingTasks() {
+        // Tasks executed from now on can schedule another commit
+        commitScheduled.set(false);
+        int committedTasks = pendingTasks.get();
+        if (committedTasks == 0)
+            return;
+
+        try {
+            hardCommit();
+            pendingTasks.addAndGet(-committedTasks);
+            if (logger.isDebugEnabled())
+                logger.debug("Committed the changes of " + committedTasks + " tasks");
+        } catch (Exception e) {
+            logger.warn("Couldn't commit the changes of " + committedTasks + " tasks, will try again later", e);
+        }
+    }
+
+    public void setMaximumPendingTasks(int maximumPendingTasks) {
+        this.maximumPendingTasks = maximumPendingTasks;
+    }
+
+    public void setCommitInterval(long commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+}
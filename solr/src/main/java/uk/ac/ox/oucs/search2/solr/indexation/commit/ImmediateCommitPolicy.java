@@ -0,0 +1,25 @@
+package uk.ac.ox.oucs.search2.solr.indexation.commit;
+
+import org.apache.solr.client.solrj.SolrServerException;
+
+import java.io.IOException;
+
+/**
+ * Commits after every single task.
+ * <p>
+ * Changes are visible as soon as possible, but this policy generates a lot of commits under heavy load.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ImmediateCommitPolicy extends AbstractCommitPolicy {
+    @Override
+    public void taskExecuted() throws SolrServerException, IOException {
+        hardCommit();
+    }
+
+    @Override
+    public void commit() throws SolrServerException, IOException {
+        hardCommit();
+    }
+}
@@ -0,0 +1,318 @@
+package uk.ac.ox.oucs.search2.solr.request;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * UpdateRequest sending documents in the binary format of Solr (javabin) instead of XML.
+ * <p>
+ * The payload is built the same way as {@link org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec}
+ * does, and must be sent to the binary update handler (by default {@code /update/javabin}).<br />
+ * Unlike the default codec, {@link Reader} values are supported and large contents are never loaded in memory. As
+ * the length of a string is written before its content, each Reader is first spooled in memory, or in a temporary
+ * file if it's too large.
+ * </p>
+ * <p>
+ * The whole payload is written in a temporary file as well, which allows to send its exact size to the server.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class BinaryReaderUpdateRequest extends ReaderUpdateRequest {
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final String TEMP_FILE_PREFIX = "search2-javabin";
+
+    public BinaryReaderUpdateRequest() {
+        super("/update/javabin");
+    }
+
+    public BinaryReaderUpdateRequest(String url) {
+        super(url);
+    }
+
+    @Override
+    public Collection<ContentStream> getContentStreams() throws IOException {
+        final File payload = File.createTempFile(TEMP_FILE_PREFIX, ".bin");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(payload));
+            try {
+                new ReaderJavaBinCodec().marshal(createRequestNamedList(), out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            deleteFile(payload);
+            throw e;
+        } catch (RuntimeException e) {
+            deleteFile(payload);
+            throw e;
+        }
+
+        ContentStreamBase contentStream = new ContentStreamBase() {
+            @Override
+            public InputStream getStream() throws IOException {
+                return new FileInputStream(payload) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            deleteFile(payload);
+                        }
+                    }
+                };
+            }
+        };
+        contentStream.setContentType(CONTENT_TYPE);
+        contentStream.setSize(payload.length());
+        return Collections.<ContentStream>singletonList(contentStream);
+    }
+
+    /**
+     * Creates the content of the request as expected by the binary update handler.
+     *
+     * @return the request as a NamedList.
+     */
+    private NamedList<Object> createRequestNamedList() {
+        NamedList<Object> params = new NamedList<Object>();
+        if (getCommitWithin() > 0)
+            params.add("commitWithin", getCommitWithin());
+
+        NamedList<Object> request = new NamedList<Object>();
+        request.add("params", params);
+        request.add("delById", null);
+        request.add("delByQ", null);
+        List<SolrInputDocument> documents = getDocuments();
+        final Iterator<SolrInputDocument> documentIterator = (documents != null)
+                ? documents.iterator() : Collections.<SolrInputDocument>emptyList().iterator();
+        // Documents are converted one by one while being written
+        request.add("docs", new Iterator<List<NamedList<Object>>>() {
+            @Override
+            public boolean hasNext() {
+                return documentIterator.hasNext();
+            }
+
+            @Override
+            public List<NamedList<Object>> next() {
+                return toNamedLists(documentIterator.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Converts a document in the list of NamedList expected by the binary update handler.
+     * <p>
+     * The first element contains the boost of the document, each following element is a field.
+     * </p>
+     *
+     * @param document document to convert.
+     * @return a list representing the document.
+     */
+    private static List<NamedList<Object>> toNamedLists(SolrInputDocument document) {
+        List<NamedList<Object>> namedLists = new ArrayList<NamedList<Object>>(document.size() + 1);
+        NamedList<Object> documentNamedList = new NamedList<Object>();
+        documentNamedList.add("boost", document.getDocumentBoost() == 1.0f ? null : document.getDocumentBoost());
+        namedLists.add(documentNamedList);
+
+        for (SolrInputField field : document) {
+            NamedList<Object> fieldNamedList = new NamedList<Object>();
+            fieldNamedList.add("boost", field.getBoost() == 1.0f ? null : field.getBoost());
+            fieldNamedList.add("name", field.getName());
+            fieldNamedList.add("val", field.getValue());
+            namedLists.add(fieldNamedList);
+        }
+        return namedLists;
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete())
+            file.deleteOnExit();
+    }
+
+    /**
+     * JavaBinCodec able to write the content of a {@link Reader} as a String.
+     */
+    private static class ReaderJavaBinCodec extends JavaBinCodec {
+        private byte[] utf8Buffer;
+
+        @Override
+        public boolean writeKnownType(Object val) throws IOException {
+            if (val instanceof Reader) {
+                writeReader((Reader) val);
+                return true;
+            } else {
+                return super.writeKnownType(val);
+            }
+        }
+
+        /**
+         * Writes the content of a Reader the same way {@link #writeStr(String)} writes a String.
+         * <p>
+         * The string is prefixed by its length in bytes, and encoded in UTF-8. As in writeStr, a surrogate pair is
+         * written as a single four bytes sequence and an unpaired surrogate is replaced by U+FFFD.<br />
+         * The encoded content is kept in a {@link Spool} until its length is known.
+         * </p>
+         *
+         * @param reader reader to write.
+         * @throws IOException if the content couldn't be read or spooled.
+         */
+        private void writeReader(Reader reader) throws IOException {
+            Spool spool = new Spool();
+            try {
+                long length = 0;
+                try {
+                    char[] buffer = new char[8192];
+                    // Number of chars kept from the previous read (a high surrogate waiting for its pair)
+                    int kept = 0;
+                    int read;
+                    while ((read = reader.read(buffer, kept, buffer.length - kept)) >= 0) {
+                        int end = kept + read;
+                        kept = (end > 0 && Character.isHighSurrogate(buffer[end - 1])) ? 1 : 0;
+                        length += writeUtf8(spool, buffer, end - kept);
+                        if (kept > 0)
+                            buffer[0] = buffer[end - 1];
+                    }
+                    length += writeUtf8(spool, buffer, kept);
+                } finally {
+                    spool.close();
+                    reader.close();
+                }
+                if (length > Integer.MAX_VALUE)
+                    throw new IOException("The content is too long to be sent (" + length + " bytes)");
+
+                writeTag(STR, (int) length);
+                spool.writeTo(daos);
+            } finally {
+                spool.delete();
+            }
+        }
+
+        /**
+         * Encodes chars in UTF-8.
+         * <p>
+         * The chars are encoded in {@link #utf8Buffer} and written in a single call.
+         * </p>
+         *
+         * @param out    stream in which the bytes are written.
+         * @param chars  chars to encode.
+         * @param length number of chars to encode.
+         * @return the number of bytes written.
+         * @throws IOException if the bytes couldn't be written.
+         */
+        private int writeUtf8(OutputStream out, char[] chars, int length) throws IOException {
+            // Each char takes at most three bytes, a surrogate pair takes four
+            if (utf8Buffer == null || utf8Buffer.length < length * 3)
+                utf8Buffer = new byte[length * 3];
+            byte[] bytes = utf8Buffer;
+            int written = 0;
+            for (int i = 0; i < length; i++) {
+                int code = chars[i];
+                if (code < 0x80) {
+                    bytes[written++] = (byte) code;
+                } else if (code < 0x800) {
+                    bytes[written++] = (byte) (0xC0 | (code >> 6));
+                    bytes[written++] = (byte) (0x80 | (code & 0x3F));
+                } else if (code < 0xD800 || code > 0xDFFF) {
+                    bytes[written++] = (byte) (0xE0 | (code >> 12));
+                    bytes[written++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                    bytes[written++] = (byte) (0x80 | (code & 0x3F));
+                } else if (Character.isHighSurrogate(chars[i]) && i + 1 < length
+                        && Character.isLowSurrogate(chars[i + 1])) {
+                    int codePoint = Character.toCodePoint(chars[i], chars[++i]);
+                    bytes[written++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[written++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[written++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[written++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    // Unpaired surrogate, replaced by the substitution character
+                    bytes[written++] = (byte) 0xEF;
+                    bytes[written++] = (byte) 0xBF;
+                    bytes[written++] = (byte) 0xBD;
+                }
+            }
+            out.write(bytes, 0, written);
+            return written;
+        }
+    }
+
+    /**
+     * Stream keeping its content in memory, then in a temporary file once it exceeds {@link #MEMORY_SPOOL_SIZE}.
+     * <p>
+     * Most documents are small, creating a temporary file for each of them costs more than their encoding.
+     * </p>
+     */
+    private static class Spool extends OutputStream {
+        private static final int MEMORY_SPOOL_SIZE = 64 * 1024;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(8192);
+        private File file;
+        private OutputStream fileOut;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOut == null && memory.size() + len > MEMORY_SPOOL_SIZE) {
+                file = File.createTempFile(TEMP_FILE_PREFIX, ".str");
+                fileOut = new BufferedOutputStream(new FileOutputStream(file));
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+
+            if (fileOut != null)
+                fileOut.write(b, off, len);
+            else
+                memory.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null)
+                fileOut.close();
+        }
+
+        /**
+         * Copies the content of the spool, once closed.
+         *
+         * @param out stream receiving the content.
+         * @throws IOException if the content couldn't be read or written.
+         */
+        private void writeTo(OutputStream out) throws IOException {
+            if (file == null) {
+                memory.writeTo(out);
+                return;
+            }
+
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private void delete() {
+            if (file != null)
+                deleteFile(file);
+        }
+    }
+}
@@ -23,6 +23,13 @@ import java.util.*;
  */
 public class ReaderUpdateRequest extends AbstractUpdateRequest {
     private List<SolrInputDocument> documents = null;
+    /**
+     * If enabled, every document is written within a single add tag, in a single stream.
+     * <p>
+     * The stream is generated while being sent, its size is unknown and the request is sent with a chunked transfer.
+     * </p>
+     */
+    private boolean singleStream;
 
     public ReaderUpdateRequest() {
         super(METHOD.POST, "/update");
@@ -53,6 +60,15 @@ public class ReaderUpdateRequest extends AbstractUpdateRequest {
 
     @Override
     public Collection<ContentStream> getContentStreams() throws IOException {
+        if (singleStream) {
+            return Collections.<ContentStream>singletonList(new ContentStreamReaderBase() {
+                @Override
+                public Reader getReader() throws IOException {
+                    return addDocumentsRequest(documents);
+                }
+            });
+        }
+
         Collection<ContentStream> contentStreams = new ArrayList<ContentStream>(documents.size());
 
         for (final SolrInputDocument doc : documents) {
@@ -69,12 +85,49 @@ public class ReaderUpdateRequest extends AbstractUpdateRequest {
 
     public Reader addDocumentRequest(final SolrInputDocument doc) throws IOException {
         final List<InputSupplier<? extends Reader>> readers = new LinkedList<InputSupplier<? extends Reader>>();
-        readers.add(CharStreams.newReaderSupplier("<add>"));
+        readers.add(CharStreams.newReaderSupplier(getAddTag()));
         readers.add(new SimpleInputSupplier(getDocumentXml(doc)));
         readers.add(CharStreams.newReaderSupplier("</add>"));
         return CharStreams.join(readers).getInput();
     }
 
+    /**
+     * Generates a single add request for multiple documents.
+     * <p>
+     * The XML of each document is generated only when the previous documents have been read.
+     * </p>
+     *
+     * @param docs documents to add.
+     * @return a Reader containing the whole request.
+     * @throws IOException shouldn't happen as the XML is generated lazily.
+     */
+    public Reader addDocumentsRequest(final Collection<SolrInputDocument> docs) throws IOException {
+        final List<InputSupplier<? extends Reader>> readers = new LinkedList<InputSupplier<? extends Reader>>();
+        readers.add(CharStreams.newReaderSupplier(getAddTag()));
+        for (final SolrInputDocument doc : docs) {
+            readers.add(new InputSupplier<Reader>() {
+                @Override
+                public Reader getInput() throws IOException {
+                    return getDocumentXml(doc);
+                }
+            });
+        }
+        readers.add(CharStreams.newReaderSupplier("</add>"));
+        return CharStreams.join(readers).getInput();
+    }
+
+    /**
+     * Generates the opening add tag, with the commitWithin attribute if necessary.
+     *
+     * @return the opening add tag.
+     */
+    private String getAddTag() {
+        if (getCommitWithin() > 0)
+            return "<add commitWithin=\"" + getCommitWithin() + "\">";
+        else
+            return "<add>";
+    }
+
     // --------------------------------------------------------------------------
     // --------------------------------------------------------------------------
 
@@ -82,6 +135,15 @@ public class ReaderUpdateRequest extends AbstractUpdateRequest {
         return documents;
     }
 
+    public boolean isSingleStream() {
+        return singleStream;
+    }
+
+    public ReaderUpdateRequest setSingleStream(boolean singleStream) {
+        this.singleStream = singleStream;
+        return this;
+    }
+
     public static Reader getDocumentXml(SolrInputDocument doc) throws IOException {
         List<InputSupplier<? extends Reader>> readers = new LinkedList<InputSupplier<? extends Reader>>();
         readers.add(CharStreams.newReaderSupplier("<doc boost=\"" + doc.getDocumentBoost() + "\">"));
@@ -146,7 +208,7 @@ public class ReaderUpdateRequest extends AbstractUpdateRequest {
         } else {
             out.write('>');
             readers.add(CharStreams.newReaderSupplier(out.toString()));
-            readers.add(new SimpleInputSupplier(new FilterChardataReader(fieldContent)));
+            readers.add(new SimpleInputSupplier(new EscapingReader(fieldContent)));
             out = new StringWriter();
             out.write('<');
             out.write('/');
@@ -173,42 +235,122 @@ public class ReaderUpdateRequest extends AbstractUpdateRequest {
     public static final String[] chardata_escapes =
             {"#0;", "#1;", "#2;", "#3;", "#4;", "#5;", "#6;", "#7;", "#8;", null, null, "#11;", "#12;", null, "#14;", "#15;", "#16;", "#17;", "#18;", "#19;", "#20;", "#21;", "#22;", "#23;", "#24;", "#25;", "#26;", "#27;", "#28;", "#29;", "#30;", "#31;", null, null, null, null, null, null, "&amp;", null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, "&lt;", null, "&gt;"};
 
-    private static class FilterChardataReader extends FilterReader {
-        private final Deque<Character> nextChars = new ArrayDeque<Character>();
+    /**
+     * Reader escaping character data on the fly, based on {@link #chardata_escapes}.
+     * <p>
+     * The content is read and escaped by blocks, characters which don't need to be escaped are copied in bulk.<br />
+     * When the destination buffer is too small for an escape sequence, the remaining part of the sequence is kept
+     * and written on the next read.
+     * </p>
+     */
+    private static class EscapingReader extends FilterReader {
+        private static final int BUFFER_SIZE = 8192;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int bufferPosition;
+        private int bufferLength;
+        /**
+         * Escape sequence not yet entirely written, null if there is none.
+         */
+        private String pendingEscape;
+        private int pendingEscapeOffset;
 
-        protected FilterChardataReader(Reader in) {
+        protected EscapingReader(Reader in) {
             super(in);
         }
 
         @Override
         public int read(char[] cbuf, int off, int len) throws IOException {
-            int i = 0;
-            for (; i < len && off + i < cbuf.length; i++) {
-                int read = read();
-                if (read == -1) {
-                    if (i == 0)
-                        i = -1;
-                    break;
+            if (off < 0 || len < 0 || off + len > cbuf.length)
+                throw new IndexOutOfBoundsException();
+            if (len == 0)
+                return 0;
+
+            int written = 0;
+            while (written < len) {
+                if (pendingEscape != null) {
+                    int count = Math.min(len - written, pendingEscape.length() - pendingEscapeOffset);
+                    pendingEscape.getChars(pendingEscapeOffset, pendingEscapeOffset + count, cbuf, off + written);
+                    written += count;
+                    pendingEscapeOffset += count;
+                    if (pendingEscapeOffset == pendingEscape.length())
+                        pendingEscape = null;
+                    continue;
                 }
-                cbuf[off + i] = (char) read;
-            }
 
-            return i;
+                if (bufferPosition == bufferLength) {
+                    // Avoid blocking on the underlying reader if some content is already available
+                    if (written > 0)
+                        break;
+                    int read = in.read(buffer, 0, BUFFER_SIZE);
+                    if (read < 0)
+                        return -1;
+                    bufferPosition = 0;
+                    bufferLength = read;
+                    continue;
+                }
+
+                // Copy every character until the next one to escape
+                int end = Math.min(bufferLength, bufferPosition + len - written);
+                int position = bufferPosition;
+                while (position < end && getEscape(buffer[position]) == null)
+                    position++;
+                int count = position - bufferPosition;
+                System.arraycopy(buffer, bufferPosition, cbuf, off + written, count);
+                written += count;
+                bufferPosition = position;
+
+                if (position < end) {
+                    pendingEscape = getEscape(buffer[position]);
+                    pendingEscapeOffset = 0;
+                    bufferPosition++;
+                }
+            }
+            return written;
         }
 
         @Override
         public int read() throws IOException {
-            if (nextChars.isEmpty()) {
-                int i = super.read();
-                if (i <= 0 || i >= chardata_escapes.length || chardata_escapes[i] == null) {
-                    return i;
-                } else {
-                    for (char c : chardata_escapes[i].toCharArray()) {
-                        nextChars.push(c);
-                    }
-                }
+            char[] c = new char[1];
+            return (read(c, 0, 1) < 0) ? -1 : c[0];
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n < 0)
+                throw new IllegalArgumentException("skip value is negative");
+            char[] skipBuffer = new char[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+                if (read < 0)
+                    break;
+                skipped += read;
             }
-            return nextChars.pop();
+            return skipped;
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            return pendingEscape != null || bufferPosition < bufferLength || in.ready();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) throws IOException {
+            throw new IOException("mark() not supported");
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("reset() not supported");
+        }
+
+        private static String getEscape(char c) {
+            return (c < chardata_escapes.length) ? chardata_escapes[c] : null;
         }
     }
 }
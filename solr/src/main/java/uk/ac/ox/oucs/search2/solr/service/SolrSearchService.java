@@ -5,15 +5,18 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ox.oucs.search2.exception.InvalidSearchQueryException;
+import uk.ac.ox.oucs.search2.exception.SearchUnavailableException;
 import uk.ac.ox.oucs.search2.result.SearchResultList;
 import uk.ac.ox.oucs.search2.result.filter.ResultFilter;
 import uk.ac.ox.oucs.search2.service.AbstractSearchService;
 import uk.ac.ox.oucs.search2.solr.SolrSchemaConstants;
 import uk.ac.ox.oucs.search2.solr.result.SolrSearchResultList;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
 
@@ -51,7 +54,13 @@ public class SolrSearchService extends AbstractSearchService {
             QueryResponse rsp = solrServer.query(query);
             return new SolrSearchResultList(rsp, filterChain);
         } catch (SolrServerException e) {
+            if (e.getRootCause() instanceof IOException)
+                throw new SearchUnavailableException("Solr can't be reached", e);
             throw new InvalidSearchQueryException("Failed to parse Query ", e);
+        } catch (SolrException e) {
+            if (e.code() == SolrException.ErrorCode.SERVICE_UNAVAILABLE.code)
+                throw new SearchUnavailableException("Solr is unavailable", e);
+            throw e;
         }
     }
 
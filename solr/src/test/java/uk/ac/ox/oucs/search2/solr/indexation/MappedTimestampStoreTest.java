@@ -0,0 +1,85 @@
+package uk.ac.ox.oucs.search2.solr.indexation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link MappedTimestampStore} grows up to its maximum capacity, then stops storing new references.
+ *
+ * @author Colin Hebert
+ */
+public class MappedTimestampStoreTest {
+    private File storeFile;
+
+    @Before
+    public void setUp() throws Exception {
+        storeFile = File.createTempFile("timestamps", ".dat");
+        assertTrue(storeFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        storeFile.delete();
+        new File(storeFile.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testMaximumCapacityCanBeMapped() {
+        int maximumCapacity = MappedTimestampStore.MAXIMUM_CAPACITY;
+        assertEquals(maximumCapacity, Integer.highestOneBit(maximumCapacity));
+        // The whole table, header included, must be addressable with int offsets
+        assertTrue(24 + (long) maximumCapacity * 16 <= Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testFullStore() {
+        MappedTimestampStore store = createStore(16, 64);
+        for (int i = 0; i < 100; i++) {
+            store.put("/document/" + i, i + 1);
+        }
+
+        // The table grows until 64 slots, three quarters of which can be used
+        assertEquals(48, store.size());
+        for (int i = 0; i < 48; i++) {
+            assertEquals(i + 1, store.get("/document/" + i));
+        }
+        assertEquals(MappedTimestampStore.UNKNOWN, store.get("/document/99"));
+
+        // Known references are still updated
+        store.put("/document/0", 1000);
+        assertEquals(1000, store.get("/document/0"));
+        store.destroy();
+    }
+
+    @Test
+    public void testStoreReopened() {
+        MappedTimestampStore store = createStore(16, MappedTimestampStore.MAXIMUM_CAPACITY);
+        for (int i = 0; i < 20; i++) {
+            store.put("/document/" + i, i + 1);
+        }
+        store.remove("/document/0");
+        store.invalidateBefore(5);
+        store.destroy();
+
+        MappedTimestampStore reopenedStore = createStore(16, MappedTimestampStore.MAXIMUM_CAPACITY);
+        assertEquals(19, reopenedStore.size());
+        assertEquals(MappedTimestampStore.UNKNOWN, reopenedStore.get("/document/0"));
+        assertEquals(MappedTimestampStore.UNKNOWN, reopenedStore.get("/document/1"));
+        assertEquals(20, reopenedStore.get("/document/19"));
+        reopenedStore.destroy();
+    }
+
+    private MappedTimestampStore createStore(int initialCapacity, int maximumCapacity) {
+        MappedTimestampStore store = new MappedTimestampStore();
+        store.setStoreFile(storeFile);
+        store.setInitialCapacity(initialCapacity);
+        store.setMaximumCapacity(maximumCapacity);
+        store.init();
+        return store;
+    }
+}
@@ -0,0 +1,239 @@
+package uk.ac.ox.oucs.search2.solr.indexation;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ox.oucs.search2.document.DefaultDocumentProducerRegistry;
+import uk.ac.ox.oucs.search2.document.Document;
+import uk.ac.ox.oucs.search2.document.DocumentProducer;
+import uk.ac.ox.oucs.search2.document.ReaderDocument;
+import uk.ac.ox.oucs.search2.indexation.CircuitBreaker;
+import uk.ac.ox.oucs.search2.indexation.DefaultTask;
+import uk.ac.ox.oucs.search2.indexation.Task;
+import uk.ac.ox.oucs.search2.indexation.exception.BackendUnavailableException;
+import uk.ac.ox.oucs.search2.indexation.exception.TemporaryTaskException;
+import uk.ac.ox.oucs.search2.solr.CircuitBreakingSolrServer;
+import uk.ac.ox.oucs.search2.solr.indexation.commit.ImmediateCommitPolicy;
+import uk.ac.ox.oucs.search2.solr.request.ReaderUpdateRequest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+import static uk.ac.ox.oucs.search2.solr.SolrSchemaConstants.CONTENT_FIELD;
+
+/**
+ * Checks that a content which can't be read fails its document without being mistaken for an unavailable Solr.
+ *
+ * @author Colin Hebert
+ */
+public class SolrTaskHandlerTest {
+    private static final String BROKEN_PREFIX = "/broken/";
+    private static final String READABLE_CONTENT = "Readable content";
+    private RecordingSolrServer solrServer;
+    private CircuitBreaker circuitBreaker;
+    private SolrTaskHandler solrTaskHandler;
+
+    @Before
+    public void setUp() {
+        solrServer = new RecordingSolrServer();
+        circuitBreaker = new CircuitBreaker();
+        SolrServer circuitBreakingSolrServer = new CircuitBreakingSolrServer(solrServer, circuitBreaker);
+
+        ImmediateCommitPolicy commitPolicy = new ImmediateCommitPolicy();
+        commitPolicy.setSolrServer(circuitBreakingSolrServer);
+        DefaultDocumentProducerRegistry documentProducerRegistry = new DefaultDocumentProducerRegistry();
+        documentProducerRegistry.registerDocumentProducer(new TestDocumentProducer());
+
+        solrTaskHandler = new SolrTaskHandler();
+        solrTaskHandler.setSolrServer(circuitBreakingSolrServer);
+        solrTaskHandler.setCommitPolicy(commitPolicy);
+        solrTaskHandler.setDocumentProducerRegistry(documentProducerRegistry);
+    }
+
+    @Test
+    public void testUnreadableContentIsAnAttempt() {
+        for (int i = 0; i < 5; i++) {
+            try {
+                solrTaskHandler.executeTask(createIndexTask(BROKEN_PREFIX + i));
+                fail("The unreadable content should have failed the task");
+            } catch (TemporaryTaskException e) {
+                assertFalse("An unreadable content isn't a Solr failure", e instanceof BackendUnavailableException);
+            }
+        }
+
+        assertFalse(circuitBreaker.isOpen());
+        assertTrue("The unreadable contents should never be sent", solrServer.sentContents.isEmpty());
+    }
+
+    @Test
+    public void testReadableContentSent() {
+        solrTaskHandler.executeTask(createIndexTask("/readable/1"));
+
+        assertEquals(Collections.singletonList(READABLE_CONTENT), solrServer.sentContents);
+        assertFalse(circuitBreaker.isOpen());
+    }
+
+    @Test
+    public void testUnreachableSolrOpensTheBreaker() {
+        solrServer.failure = new SolrServerException(new ConnectException("Connection refused"));
+        for (int i = 0; i < 3; i++) {
+            try {
+                solrTaskHandler.executeTask(createIndexTask("/readable/" + i));
+                fail("Solr shouldn't be reachable");
+            } catch (BackendUnavailableException e) {
+                // Expected
+            }
+        }
+
+        assertTrue(circuitBreaker.isOpen());
+    }
+
+    private static Task createIndexTask(String reference) {
+        return new DefaultTask(DefaultTask.Type.INDEX_DOCUMENT, new DateTime())
+                .setProperty(DefaultTask.DOCUMENT_REFERENCE, reference);
+    }
+
+    /**
+     * Solr server answering every request, or failing them all if a failure is set.
+     * <p>
+     * The content of each document sent is read as Solr would.
+     * </p>
+     */
+    private static final class RecordingSolrServer extends SolrServer {
+        private final List<String> sentContents = new ArrayList<String>();
+        private SolrServerException failure;
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+            if (failure != null)
+                throw failure;
+
+            if (request instanceof ReaderUpdateRequest) {
+                for (SolrInputDocument document : ((ReaderUpdateRequest) request).getDocuments()) {
+                    sentContents.add(read((Reader) document.getFieldValue(CONTENT_FIELD)));
+                }
+            }
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("response", new SolrDocumentList());
+            return response;
+        }
+
+        private static String read(Reader reader) throws IOException {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        }
+    }
+
+    /**
+     * Producer of documents whose content fails as soon as it's read if their reference starts with
+     * {@link #BROKEN_PREFIX}.
+     */
+    private static final class TestDocumentProducer implements DocumentProducer {
+        @Override
+        public Document getDocument(final String reference) {
+            return new ReaderDocument() {
+                @Override
+                public Reader getContent() {
+                    if (!reference.startsWith(BROKEN_PREFIX))
+                        return new StringReader(READABLE_CONTENT);
+
+                    return new Reader() {
+                        @Override
+                        public int read(char[] buffer, int offset, int length) throws IOException {
+                            throw new IOException("The content of '" + reference + "' is unavailable");
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+                    };
+                }
+
+                @Override
+                public String getReference() {
+                    return reference;
+                }
+
+                @Override
+                public String getId() {
+                    return reference;
+                }
+
+                @Override
+                public String getTitle() {
+                    return reference;
+                }
+
+                @Override
+                public String getUrl() {
+                    return reference;
+                }
+
+                @Override
+                public boolean isPortalUrl() {
+                    return false;
+                }
+
+                @Override
+                public String getTool() {
+                    return "test";
+                }
+
+                @Override
+                public String getType() {
+                    return "test";
+                }
+
+                @Override
+                public String getSiteId() {
+                    return "site";
+                }
+
+                @Override
+                public String getContainer() {
+                    return null;
+                }
+
+                @Override
+                public Map<String, Collection<String>> getProperties() {
+                    return Collections.emptyMap();
+                }
+            };
+        }
+
+        @Override
+        public Queue<Document> getSiteDocuments(String siteId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isHandled(String reference) {
+            return true;
+        }
+
+        @Override
+        public boolean isReadable(String reference) {
+            return true;
+        }
+    }
+}
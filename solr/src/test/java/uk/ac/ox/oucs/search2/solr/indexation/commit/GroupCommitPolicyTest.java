@@ -0,0 +1,73 @@
+package uk.ac.ox.oucs.search2.solr.indexation.commit;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link GroupCommitPolicy} commits again once the limit is exceeded after a failed commit.
+ *
+ * @author Colin Hebert
+ */
+public class GroupCommitPolicyTest {
+    private static final int MAXIMUM_PENDING_TASKS = 3;
+    private final AtomicInteger commitAttempts = new AtomicInteger();
+    private GroupCommitPolicy commitPolicy;
+
+    @Before
+    public void setUp() {
+        commitPolicy = new GroupCommitPolicy();
+        commitPolicy.setSolrServer(new SolrServer() {
+            @Override
+            public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+                // Only the first commit fails
+                if (commitAttempts.incrementAndGet() == 1)
+                    throw new SolrServerException("Solr is unavailable");
+                return new NamedList<Object>();
+            }
+        });
+        commitPolicy.setMaximumPendingTasks(MAXIMUM_PENDING_TASKS);
+        // Only the commits triggered by the number of tasks are expected
+        commitPolicy.setCommitInterval(60 * 60 * 1000);
+        commitPolicy.init();
+    }
+
+    @After
+    public void tearDown() {
+        commitPolicy.destroy();
+    }
+
+    @Test
+    public void testCommitRetriedAfterLimitExceeded() throws Exception {
+        for (int i = 0; i < MAXIMUM_PENDING_TASKS; i++) {
+            commitPolicy.taskExecuted();
+        }
+        waitForCommitAttempts(1);
+
+        // The limit has been exceeded, it won't be reached exactly again
+        commitPolicy.taskExecuted();
+        waitForCommitAttempts(2);
+
+        // Everything has been committed, the next task doesn't trigger a commit
+        commitPolicy.taskExecuted();
+        Thread.sleep(100);
+        assertEquals(2, commitAttempts.get());
+    }
+
+    private void waitForCommitAttempts(int expectedAttempts) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (commitAttempts.get() < expectedAttempts && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expectedAttempts, commitAttempts.get());
+    }
+}
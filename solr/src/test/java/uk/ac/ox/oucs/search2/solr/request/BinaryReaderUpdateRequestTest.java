@@ -0,0 +1,120 @@
+package uk.ac.ox.oucs.search2.solr.request;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the content of a Reader is written exactly as {@link JavaBinCodec} writes a String, so the server
+ * reads it back with {@link JavaBinCodec#readStr}.
+ *
+ * @author Colin Hebert
+ */
+public class BinaryReaderUpdateRequestTest {
+    @Test
+    public void testAsciiContent() throws Exception {
+        assertReaderEncodedAsString("Plain ASCII content <with> & markup");
+    }
+
+    @Test
+    public void testNonAsciiContent() throws Exception {
+        assertReaderEncodedAsString("Caf\u00e9, \u0000 na\u00efve \u20ac \u4e2d\u6587 \ud83d\ude00");
+    }
+
+    @Test
+    public void testSurrogatePairAcrossReads() throws Exception {
+        // The reader is read 8192 chars at a time, the pair is split between two reads
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 8191; i++) {
+            content.append('a');
+        }
+        content.append("\ud83d\ude00 end");
+        assertReaderEncodedAsString(content.toString());
+    }
+
+    @Test
+    public void testLargeContent() throws Exception {
+        // Spooled in a temporary file instead of memory
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            content.append("\u00e9t\u00e9 ");
+        }
+        assertReaderEncodedAsString(content.toString());
+    }
+
+    @Test
+    public void testUnpairedSurrogates() throws Exception {
+        assertReaderEncodedAsString("lone \ud83d high, lone \ude00 low, last \ud83d",
+                "lone \ufffd high, lone \ufffd low, last \ufffd");
+    }
+
+    /**
+     * Checks that the content is read back unchanged by the server.
+     *
+     * @param content content of the field.
+     * @throws IOException shouldn't happen.
+     */
+    private static void assertReaderEncodedAsString(String content) throws IOException {
+        assertReaderEncodedAsString(content, content);
+    }
+
+    /**
+     * Sends the content as a Reader and checks that the payload is identical to the one containing a String.
+     *
+     * @param content         content of the field.
+     * @param expectedContent content read by the server.
+     * @throws IOException shouldn't happen.
+     */
+    private static void assertReaderEncodedAsString(String content, String expectedContent) throws IOException {
+        byte[] readerPayload = getPayload(new StringReader(content), content);
+        byte[] stringPayload = getPayload(null, content);
+        assertArrayEquals(stringPayload, readerPayload);
+
+        NamedList<?> request = (NamedList<?>) new JavaBinCodec().unmarshal(new ByteArrayInputStream(readerPayload));
+        List<?> documents = (List<?>) request.get("docs");
+        List<?> fields = (List<?>) documents.get(0);
+        NamedList<?> field = (NamedList<?>) fields.get(1);
+        assertEquals(expectedContent, field.get("val"));
+    }
+
+    /**
+     * Generates the payload of a request containing a single document.
+     *
+     * @param reader  content as a reader, or null to send the content as a String.
+     * @param content content as a String.
+     * @return the payload sent to the server.
+     * @throws IOException shouldn't happen.
+     */
+    private static byte[] getPayload(StringReader reader, String content) throws IOException {
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField("content", (reader != null) ? reader : content);
+        BinaryReaderUpdateRequest request = new BinaryReaderUpdateRequest();
+        request.add(document);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ContentStream contentStream : request.getContentStreams()) {
+            InputStream in = contentStream.getStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,105 @@
+package uk.ac.ox.oucs.search2.tika.cache;
+
+import uk.ac.ox.oucs.search2.document.ReaderDocument;
+import uk.ac.ox.oucs.search2.document.StreamDocument;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * This {@link uk.ac.ox.oucs.search2.document.Document} is a wrapper for {@link StreamDocument} whose content has
+ * already been extracted by the {@link ExtractionCache}.
+ * <p>
+ * The {@link #getProperties()} contains the original properties and the cached metadata.<br />
+ * The cached text is opened by the cache before the document is created, so the entry can be evicted while the
+ * document is in use. {@link #getContent()} always returns the same {@link Reader} which can only be read once.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class CachedTikaDocument implements ReaderDocument {
+    private final StreamDocument streamDocument;
+    private final Reader content;
+    private final Map<String, Collection<String>> metadata;
+
+    /**
+     * Creates a document based on a cache entry.
+     *
+     * @param streamDocument original document.
+     * @param content        extracted text, or null if the content isn't available.
+     * @param metadata       extracted metadata.
+     */
+    CachedTikaDocument(StreamDocument streamDocument, Reader content, Map<String, Collection<String>> metadata) {
+        this.streamDocument = streamDocument;
+        this.content = (content != null) ? content : new StringReader("");
+        this.metadata = metadata;
+    }
+
+    @Override
+    public Map<String, Collection<String>> getProperties() {
+        Map<String, Collection<String>> properties =
+                new HashMap<String, Collection<String>>(streamDocument.getProperties());
+        for (Map.Entry<String, Collection<String>> metadataEntry : metadata.entrySet()) {
+            Collection<String> property = properties.get(metadataEntry.getKey());
+            if (property == null) {
+                property = new LinkedList<String>();
+                properties.put(metadataEntry.getKey(), property);
+            }
+            property.addAll(metadataEntry.getValue());
+        }
+        return Collections.unmodifiableMap(properties);
+    }
+
+    @Override
+    public Reader getContent() {
+        return content;
+    }
+
+    // Delegated methods
+
+    @Override
+    public String getReference() {
+        return streamDocument.getReference();
+    }
+
+    @Override
+    public String getId() {
+        return streamDocument.getId();
+    }
+
+    @Override
+    public String getTitle() {
+        return streamDocument.getTitle();
+    }
+
+    @Override
+    public String getUrl() {
+        return streamDocument.getUrl();
+    }
+
+    @Override
+    public boolean isPortalUrl() {
+        return streamDocument.isPortalUrl();
+    }
+
+    @Override
+    public String getTool() {
+        return streamDocument.getTool();
+    }
+
+    @Override
+    public String getType() {
+        return streamDocument.getType();
+    }
+
+    @Override
+    public String getSiteId() {
+        return streamDocument.getSiteId();
+    }
+
+    @Override
+    public String getContainer() {
+        return streamDocument.getContainer();
+    }
+}
@@ -0,0 +1,417 @@
+package uk.ac.ox.oucs.search2.tika.cache;
+
+import org.apache.tika.Tika;
+import org.apache.tika.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.document.ReaderDocument;
+import uk.ac.ox.oucs.search2.document.StreamDocument;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * On-disk cache of the text extracted by Tika from binary documents.
+ * <p>
+ * Entries are identified by a SHA-1 digest of the document content, so identical files (copied in multiple sites
+ * for example) are parsed only once.<br />
+ * When the document provides a last modification date through the {@link #lastModifiedProperty}, the entry is
+ * identified by the reference and this date instead, which avoids reading the content to compute the digest.
+ * </p>
+ * <p>
+ * Each entry is made of two files, the extracted text (UTF-8) and the extracted metadata.<br />
+ * The total size of the cache is bounded, the least recently used entries are removed first.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ExtractionCache {
+    private static final Logger logger = LoggerFactory.getLogger(ExtractionCache.class);
+    private static final Tika TIKA = new Tika();
+    private static final String CONTENT_SUFFIX = ".txt";
+    private static final String METADATA_SUFFIX = ".meta";
+    private static final String CHARSET = "UTF-8";
+    /**
+     * Maximum length of a metadata value, longer values are truncated.
+     */
+    private static final int MAXIMUM_METADATA_LENGTH = 16 * 1024;
+    /**
+     * Size of each entry (in bytes), ordered from the least to the most recently used.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalSize;
+    /**
+     * Directory containing the cache entries.
+     */
+    private File cacheDirectory;
+    /**
+     * Maximum size (in bytes) of the cache.
+     */
+    private long maximumSize = 1024L * 1024 * 1024;
+    /**
+     * Maximum number of characters extracted from a document, a negative value means no limit.
+     */
+    private int maximumCharacters = -1;
+    /**
+     * Name of the document property containing the last modification date, optional.
+     */
+    private String lastModifiedProperty;
+
+    /**
+     * Loads the existing entries, the last modification date of each file keeps track of the last use.
+     */
+    public void init() {
+        if (!cacheDirectory.exists() && !cacheDirectory.mkdirs())
+            throw new IllegalStateException("Couldn't create the directory '" + cacheDirectory + "'");
+
+        List<File> contentFiles = new ArrayList<File>();
+        for (File file : cacheDirectory.listFiles()) {
+            String name = file.getName();
+            if (name.endsWith(CONTENT_SUFFIX) && getMetadataFile(getKey(file)).exists()) {
+                contentFiles.add(file);
+            } else if (!name.endsWith(METADATA_SUFFIX) || !getContentFile(getKey(file)).exists()) {
+                // Leftover from an interrupted extraction
+                delete(file);
+            }
+        }
+        Collections.sort(contentFiles, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long lastModified1 = o1.lastModified();
+                long lastModified2 = o2.lastModified();
+                return (lastModified1 < lastModified2) ? -1 : ((lastModified1 == lastModified2) ? 0 : 1);
+            }
+        });
+
+        synchronized (entries) {
+            for (File contentFile : contentFiles) {
+                String key = getKey(contentFile);
+                addEntry(key, contentFile.length() + getMetadataFile(key).length());
+            }
+        }
+        logger.info("Extraction cache '" + cacheDirectory + "' loaded with " + contentFiles.size() + " entries");
+    }
+
+    /**
+     * Gets a document containing the text extracted from a binary document.
+     * <p>
+     * If the document isn't in the cache yet, it's parsed by Tika and stored in the cache.<br />
+     * The content of the entry is opened before the document is returned, so the entry can be evicted in the meantime.
+     * If the parsing fails, the content is empty and nothing is stored, so the document is parsed again next time.
+     * </p>
+     *
+     * @param streamDocument binary document.
+     * @return a document with the extracted text as its content.
+     */
+    public ReaderDocument getExtractedDocument(StreamDocument streamDocument) {
+        try {
+            String key = getKey(streamDocument);
+            CachedTikaDocument document = openEntry(streamDocument, key);
+            if (document != null) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Extracted content of '" + streamDocument.getReference() + "' found in the cache");
+                return document;
+            }
+
+            return extract(streamDocument, key);
+        } catch (IOException e) {
+            logger.warn("Couldn't use the extraction cache for '" + streamDocument.getReference() + "'", e);
+            return new CachedTikaDocument(streamDocument, null, Collections.<String, Collection<String>>emptyMap());
+        }
+    }
+
+    /**
+     * Opens the content and the metadata of an entry.
+     * <p>
+     * An entry whose files disappeared is removed from the index and considered missing.<br />
+     * Only the lookup in the index is done while holding the lock on {@link #entries}, the files are opened outside of
+     * it so a slow disk doesn't block every other thread using the cache. An entry evicted in the meantime can't be
+     * opened and is considered missing.
+     * </p>
+     *
+     * @param streamDocument binary document.
+     * @param key            key of the entry.
+     * @return the cached document, or null if the entry isn't in the cache.
+     * @throws IOException if the entry couldn't be read.
+     */
+    private CachedTikaDocument openEntry(StreamDocument streamDocument, String key) throws IOException {
+        synchronized (entries) {
+            if (entries.get(key) == null)
+                return null;
+        }
+
+        File contentFile = getContentFile(key);
+        Reader content;
+        Map<String, Collection<String>> metadata;
+        try {
+            content = new BufferedReader(new InputStreamReader(new FileInputStream(contentFile), CHARSET));
+        } catch (FileNotFoundException e) {
+            logger.warn("The cache entry of '" + streamDocument.getReference() + "' disappeared", e);
+            discardEntry(key);
+            return null;
+        }
+        try {
+            metadata = readMetadata(getMetadataFile(key));
+        } catch (IOException e) {
+            content.close();
+            logger.warn("The cache entry of '" + streamDocument.getReference() + "' couldn't be read", e);
+            discardEntry(key);
+            return null;
+        }
+
+        // Keep track of the last use in case of restart
+        contentFile.setLastModified(System.currentTimeMillis());
+        return new CachedTikaDocument(streamDocument, content, metadata);
+    }
+
+    /**
+     * Removes an entry which couldn't be opened, unless it has already been evicted.
+     *
+     * @param key key of the entry.
+     */
+    private void discardEntry(String key) {
+        synchronized (entries) {
+            if (entries.containsKey(key))
+                removeEntry(key);
+        }
+    }
+
+    /**
+     * Parses a document with Tika and stores the result in the cache.
+     *
+     * @param streamDocument binary document.
+     * @param key            key of the entry.
+     * @return the cached document, with an empty content if the document couldn't be parsed.
+     * @throws IOException if the entry couldn't be written.
+     */
+    private CachedTikaDocument extract(StreamDocument streamDocument, String key) throws IOException {
+        if (logger.isDebugEnabled())
+            logger.debug("Extract the content of '" + streamDocument.getReference() + "'");
+
+        Metadata metadata = new Metadata();
+        if (streamDocument.getContentName() != null)
+            metadata.add(Metadata.RESOURCE_NAME_KEY, streamDocument.getContentName());
+        if (streamDocument.getContentType() != null)
+            metadata.add(Metadata.CONTENT_TYPE, streamDocument.getContentType());
+
+        File contentFile = File.createTempFile(key, ".tmp", cacheDirectory);
+        File metadataFile = File.createTempFile(key, ".tmp", cacheDirectory);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(contentFile), CHARSET));
+            try {
+                Reader reader = TIKA.parse(streamDocument.getContent(), metadata);
+                try {
+                    copy(reader, writer);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // Same behaviour as TikaDocument, a document that can't be parsed is empty
+                // The failure may only be temporary (content unavailable), so it isn't cached
+                logger.warn("Couldn't parse the content of the document", e);
+                return new CachedTikaDocument(streamDocument, null, Collections.<String, Collection<String>>emptyMap());
+            } finally {
+                writer.close();
+            }
+            writeMetadata(metadata, metadataFile);
+
+            synchronized (entries) {
+                moveTo(contentFile, getContentFile(key));
+                moveTo(metadataFile, getMetadataFile(key));
+                if (entries.get(key) == null)
+                    addEntry(key, getContentFile(key).length() + getMetadataFile(key).length());
+            }
+            CachedTikaDocument document = openEntry(streamDocument, key);
+            if (document == null)
+                throw new IOException("Couldn't open the new entry '" + key + "'");
+            return document;
+        } finally {
+            delete(contentFile);
+            delete(metadataFile);
+        }
+    }
+
+    /**
+     * Copies the extracted text, up to {@link #maximumCharacters}.
+     *
+     * @param reader extracted text.
+     * @param writer destination.
+     * @throws IOException if the text couldn't be read or written.
+     */
+    private void copy(Reader reader, Writer writer) throws IOException {
+        char[] buffer = new char[8192];
+        long remainingCharacters = (maximumCharacters >= 0) ? maximumCharacters : Long.MAX_VALUE;
+        int read;
+        while (remainingCharacters > 0
+                && (read = reader.read(buffer, 0, (int) Math.min(buffer.length, remainingCharacters))) >= 0) {
+            writer.write(buffer, 0, read);
+            remainingCharacters -= read;
+        }
+    }
+
+    /**
+     * Adds an entry to the index and removes the least recently used entries if the cache is too big.
+     * <p>
+     * Must be called while holding the lock on {@link #entries}.
+     * </p>
+     *
+     * @param key  key of the new entry.
+     * @param size size of the new entry.
+     */
+    private void addEntry(String key, long size) {
+        entries.put(key, size);
+        totalSize += size;
+
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalSize > maximumSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (eldest.getKey().equals(key))
+                continue;
+            iterator.remove();
+            totalSize -= eldest.getValue();
+            delete(getContentFile(eldest.getKey()));
+            delete(getMetadataFile(eldest.getKey()));
+        }
+    }
+
+    /**
+     * Removes an entry from the index and deletes its files.
+     * <p>
+     * Must be called while holding the lock on {@link #entries}.
+     * </p>
+     *
+     * @param key key of the entry.
+     */
+    private void removeEntry(String key) {
+        Long size = entries.remove(key);
+        if (size != null)
+            totalSize -= size;
+        delete(getContentFile(key));
+        delete(getMetadataFile(key));
+    }
+
+    /**
+     * Generates the key of a document.
+     *
+     * @param streamDocument binary document.
+     * @return an hexadecimal digest identifying the content of the document.
+     * @throws IOException if the content of the document couldn't be read.
+     */
+    private String getKey(StreamDocument streamDocument) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 isn't available", e);
+        }
+
+        Collection<String> lastModified = (lastModifiedProperty != null)
+                ? streamDocument.getProperties().get(lastModifiedProperty) : null;
+        if (lastModified != null && !lastModified.isEmpty()) {
+            digest.update((streamDocument.getReference() + '\n' + lastModified.iterator().next()).getBytes(CHARSET));
+        } else {
+            InputStream content = new DigestInputStream(streamDocument.getContent(), digest);
+            try {
+                byte[] buffer = new byte[8192];
+                while (content.read(buffer) >= 0) {
+                    // Only the digest is useful
+                }
+            } finally {
+                content.close();
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static String getKey(File file) {
+        String name = file.getName();
+        int extension = name.lastIndexOf('.');
+        return (extension < 0) ? name : name.substring(0, extension);
+    }
+
+    private File getContentFile(String key) {
+        return new File(cacheDirectory, key + CONTENT_SUFFIX);
+    }
+
+    private File getMetadataFile(String key) {
+        return new File(cacheDirectory, key + METADATA_SUFFIX);
+    }
+
+    private static void writeMetadata(Metadata metadata, File metadataFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataFile)));
+        try {
+            String[] names = metadata.names();
+            out.writeInt(names.length);
+            for (String name : names) {
+                out.writeUTF(truncate(name));
+                String[] values = metadata.getValues(name);
+                out.writeInt(values.length);
+                for (String value : values) {
+                    out.writeUTF(truncate(value));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Map<String, Collection<String>> readMetadata(File metadataFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metadataFile)));
+        try {
+            int namesCount = in.readInt();
+            Map<String, Collection<String>> metadata = new HashMap<String, Collection<String>>(namesCount);
+            for (int i = 0; i < namesCount; i++) {
+                String name = in.readUTF();
+                int valuesCount = in.readInt();
+                Collection<String> values = new ArrayList<String>(valuesCount);
+                for (int j = 0; j < valuesCount; j++) {
+                    values.add(in.readUTF());
+                }
+                metadata.put(name, values);
+            }
+            return metadata;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String truncate(String value) {
+        return (value.length() > MAXIMUM_METADATA_LENGTH) ? value.substring(0, MAXIMUM_METADATA_LENGTH) : value;
+    }
+
+    private static void moveTo(File source, File destination) throws IOException {
+        if (destination.exists())
+            delete(destination);
+        if (!source.renameTo(destination))
+            throw new IOException("Couldn't move '" + source + "' to '" + destination + "'");
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete())
+            logger.warn("Couldn't delete '" + file + "'");
+    }
+
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public void setMaximumCharacters(int maximumCharacters) {
+        this.maximumCharacters = maximumCharacters;
+    }
+
+    public void setLastModifiedProperty(String lastModifiedProperty) {
+        this.lastModifiedProperty = lastModifiedProperty;
+    }
+}
@@ -89,7 +89,7 @@ public class TikaDocument implements StringDocument {
      * @param metadata       metadata obtained during {@link #getStreamDocumentContent(StreamDocument, Metadata)}.
      * @return
      */
-    private static Map<String, Collection<String>> extractProperties(StreamDocument streamDocument, Metadata metadata) {
+    static Map<String, Collection<String>> extractProperties(StreamDocument streamDocument, Metadata metadata) {
         // The original properties map could be unmodifiable, it would be better to make a copy of it.
         // We assume that the Collection is still mutable.
         Map<String, Collection<String>> properties =
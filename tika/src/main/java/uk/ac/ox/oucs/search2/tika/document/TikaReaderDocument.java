@@ -0,0 +1,267 @@
+package uk.ac.ox.oucs.search2.tika.document;
+
+import org.apache.tika.Tika;
+import org.apache.tika.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ox.oucs.search2.document.ReaderDocument;
+import uk.ac.ox.oucs.search2.document.StreamDocument;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * This {@link uk.ac.ox.oucs.search2.document.Document} is a wrapper for {@link StreamDocument} streaming the text
+ * extracted by Tika.
+ * <p>
+ * Unlike {@link TikaDocument}, the content is never entirely loaded in memory, the document is parsed while the
+ * content is read.<br />
+ * The parsing starts the first time {@link #getContent()} is called.
+ * </p>
+ * <p>
+ * Tika writes the metadata from its parsing thread until the end of the document, so it's only copied once the
+ * content has been entirely read.<br />
+ * Until then (or if the content is truncated or can't be parsed), {@link #getProperties()} only contains the
+ * original properties. Once the content has been consumed, it contains the metadata extracted from the document too.
+ * </p>
+ * <p>
+ * As the content is a stream, {@link #getContent()} always returns the same {@link Reader} which can only be read
+ * once.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class TikaReaderDocument implements ReaderDocument {
+    private static final Logger logger = LoggerFactory.getLogger(TikaReaderDocument.class);
+    private static final Tika TIKA = new Tika();
+    private final StreamDocument streamDocument;
+    /**
+     * Maximum number of characters extracted from the document, a negative value means no limit.
+     */
+    private final int maximumCharacters;
+    private final Metadata metadata = new Metadata();
+    private Reader documentContent;
+    /**
+     * Original properties and extracted metadata, copied once the parsing is complete.
+     */
+    private volatile Map<String, Collection<String>> extractedProperties;
+
+    /**
+     * Creates a TikaReaderDocument based on a {@link StreamDocument}, without limiting the extracted text.
+     *
+     * @param streamDocument original document to wrap.
+     */
+    public TikaReaderDocument(StreamDocument streamDocument) {
+        this(streamDocument, -1);
+    }
+
+    /**
+     * Creates a TikaReaderDocument based on a {@link StreamDocument}.
+     *
+     * @param streamDocument    original document to wrap.
+     * @param maximumCharacters maximum number of characters extracted from the document, a negative value means no
+     *                          limit.
+     */
+    public TikaReaderDocument(StreamDocument streamDocument, int maximumCharacters) {
+        this.streamDocument = streamDocument;
+        this.maximumCharacters = maximumCharacters;
+    }
+
+    /**
+     * Starts the parsing of the document if it hasn't been done yet.
+     * <p>
+     * Tika parses the document in a background thread while the content is read.<br />
+     * If Tika can't parse the document, the content will be empty.
+     * </p>
+     *
+     * @return the parsed content.
+     */
+    private synchronized Reader getStreamDocumentContent() {
+        if (documentContent == null) {
+            try {
+                // Sets the document name to attempt to determine the content type based on the file extension
+                String contentName = streamDocument.getContentName();
+                if (contentName != null)
+                    metadata.add(Metadata.RESOURCE_NAME_KEY, contentName);
+
+                // Sets the content type to simplify type detection
+                String contentType = streamDocument.getContentType();
+                if (contentType != null)
+                    metadata.add(Metadata.CONTENT_TYPE, contentType);
+
+                Reader parsedContent = new MetadataCopyingReader(TIKA.parse(streamDocument.getContent(), metadata));
+                documentContent = (maximumCharacters >= 0)
+                        ? new LimitedReader(parsedContent, maximumCharacters) : parsedContent;
+            } catch (Exception e) {
+                logger.warn("Couldn't parse the content of the document", e);
+                documentContent = new StringReader("");
+            }
+        }
+        return documentContent;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The extracted metadata is only available once the content has been entirely read.
+     * </p>
+     */
+    @Override
+    public Map<String, Collection<String>> getProperties() {
+        Map<String, Collection<String>> properties = extractedProperties;
+        return (properties != null) ? properties : Collections.unmodifiableMap(streamDocument.getProperties());
+    }
+
+    @Override
+    public Reader getContent() {
+        return getStreamDocumentContent();
+    }
+
+    // Delegated methods
+
+    @Override
+    public String getReference() {
+        return streamDocument.getReference();
+    }
+
+    @Override
+    public String getId() {
+        return streamDocument.getId();
+    }
+
+    @Override
+    public String getTitle() {
+        return streamDocument.getTitle();
+    }
+
+    @Override
+    public String getUrl() {
+        return streamDocument.getUrl();
+    }
+
+    @Override
+    public boolean isPortalUrl() {
+        return streamDocument.isPortalUrl();
+    }
+
+    @Override
+    public String getTool() {
+        return streamDocument.getTool();
+    }
+
+    @Override
+    public String getType() {
+        return streamDocument.getType();
+    }
+
+    @Override
+    public String getSiteId() {
+        return streamDocument.getSiteId();
+    }
+
+    @Override
+    public String getContainer() {
+        return streamDocument.getContainer();
+    }
+
+    /**
+     * Reader copying the metadata once the end of the parsed content is reached.
+     * <p>
+     * The end of the content is only reached once Tika's parsing thread has completed the parsing, so the metadata
+     * isn't modified anymore.
+     * </p>
+     */
+    private final class MetadataCopyingReader extends FilterReader {
+        private MetadataCopyingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c < 0)
+                copyMetadata();
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int read = super.read(cbuf, off, len);
+            if (read < 0)
+                copyMetadata();
+            return read;
+        }
+
+        private void copyMetadata() {
+            if (extractedProperties == null)
+                extractedProperties = Collections.unmodifiableMap(
+                        TikaDocument.extractProperties(streamDocument, metadata));
+        }
+    }
+
+    /**
+     * Reader stopping after a maximum number of characters.
+     * <p>
+     * Once the limit is reached, the underlying reader is closed, which stops the parsing of the document.
+     * </p>
+     */
+    private static final class LimitedReader extends FilterReader {
+        private int remainingCharacters;
+
+        private LimitedReader(Reader in, int maximumCharacters) {
+            super(in);
+            this.remainingCharacters = maximumCharacters;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remainingCharacters <= 0) {
+                stopReading();
+                return -1;
+            }
+
+            int c = super.read();
+            if (c >= 0)
+                remainingCharacters--;
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (remainingCharacters <= 0) {
+                stopReading();
+                return -1;
+            }
+
+            int read = super.read(cbuf, off, Math.min(len, remainingCharacters));
+            if (read > 0)
+                remainingCharacters -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, Math.max(remainingCharacters, 0)));
+            remainingCharacters -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void stopReading() throws IOException {
+            if (remainingCharacters == 0) {
+                logger.info("Maximum number of extracted characters reached, the rest of the document is ignored");
+                remainingCharacters = -1;
+                in.close();
+            }
+        }
+    }
+}